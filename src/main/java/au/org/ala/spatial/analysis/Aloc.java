@@ -14,13 +14,27 @@
 
 package au.org.ala.spatial.analysis;
 
+import au.org.ala.spatial.analysis.aloc.AlocMetrics;
+import au.org.ala.spatial.analysis.aloc.AlocArena;
+import au.org.ala.spatial.analysis.aloc.AlocMatrixFile;
+import au.org.ala.spatial.analysis.aloc.AlocOffHeap;
+import au.org.ala.spatial.analysis.aloc.AlocOptions;
+import au.org.ala.spatial.analysis.aloc.AlocPieceFile;
+import au.org.ala.spatial.analysis.aloc.AlocSeedScans;
 import au.org.ala.spatial.util.Grid;
+import au.org.ala.spatial.util.GridCache;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * entry into running Aloc
@@ -31,6 +45,12 @@ import java.util.ArrayList;
  */
 public class Aloc {
 
+    /**
+     * number of data pieces when loading, and the least number of data pieces
+     * classified by threads in turn
+     */
+    static final int PIECES = 64;
+
     /**
      * exports means and colours of a classification (ALOC) into a csv
      *
@@ -41,8 +61,29 @@ public class Aloc {
      * @param colours  RGB colours of legend records as [n][3] where n is number
      *                 of records [][0] is red [][1] is green [][2] is blue
      * @param layers   layers used to generate the classification as Layer[]
+     * @return true when written
+     */
+    static boolean exportMeansColours(String filename, double[][] means, int[][] colours, String[] layers) {
+        return exportMeansColours(filename, means, colours, layers, null, null);
+    }
+
+    /**
+     * exports means and colours of a classification (ALOC) into a csv, with
+     * the minimum and range of each layer as the first two records when
+     * provided.
+     * <p/>
+     * with the minimum and range the csv is a model that can be used to
+     * allocate cells of another area to the same groups, see predict.
+     *
+     * @param filename csv filename to export into
+     * @param means    mean values for each legend record as [n][m]
+     * @param colours  RGB colours of legend records as [n][3]
+     * @param layers   layers used to generate the classification as Layer[]
+     * @param min      minimum of each layer as [m], or null
+     * @param range    range of each layer as [m], or null
+     * @return true when written
      */
-    static void exportMeansColours(String filename, double[][] means, int[][] colours, String[] layers) {
+    static boolean exportMeansColours(String filename, double[][] means, int[][] colours, String[] layers, double[] min, double[] range) {
         try {
             FileWriter fw = new FileWriter(filename);
             int i, j;
@@ -60,6 +101,24 @@ public class Aloc {
             }
             fw.append("\r\n");
 
+            /*
+             * layer ranges
+             */
+            if (min != null && range != null) {
+                fw.append("min,,,");
+                for (i = 0; i < min.length; i++) {
+                    fw.append(",");
+                    fw.append(String.valueOf(min[i]));
+                }
+                fw.append("\r\n");
+                fw.append("range,,,");
+                for (i = 0; i < range.length; i++) {
+                    fw.append(",");
+                    fw.append(String.valueOf(range[i]));
+                }
+                fw.append("\r\n");
+            }
+
             /*
              * outputs
              */
@@ -81,12 +140,78 @@ public class Aloc {
             }
 
             fw.close();
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
+            return false;
         }
     }
 
-    static void exportMetadata(String filename, int numberOfGroups, String[] layers, String[] invariantLayers, String pid, String coloursAndMeansUrl, String area, int width, int height, double minx, double miny, double maxx, double maxy, int iterationCount) {
+    /**
+     * imports means and colours of a classification (ALOC) from a csv
+     * written by exportMeansColours
+     *
+     * @param filename csv filename to import from
+     * @param layers   receives the layer names of the mean columns
+     * @param colours  receives the RGB colour of each record as int[3], may be
+     *                 null
+     * @param ranges   receives the minimum and range records of a model as
+     *                 double[m], may be null
+     * @return mean values for each legend record as [n][m] where n is number
+     * of records m is number of layers, or null when the file cannot be read
+     */
+    static double[][] importMeansColours(String filename, List<String> layers, List<int[]> colours, List<double[]> ranges) {
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(filename));
+            String[] header = br.readLine().split(",");
+            for (int i = 4; i < header.length; i++) {
+                layers.add(header[i]);
+            }
+
+            List<double[]> means = new ArrayList<double[]>();
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                String[] record = line.split(",");
+                if (record[0].equals("min") || record[0].equals("range")) {
+                    if (ranges != null) {
+                        double[] r = new double[header.length - 4];
+                        for (int i = 0; i < r.length; i++) {
+                            r[i] = Double.parseDouble(record[i + 4]);
+                        }
+                        ranges.add(r);
+                    }
+                    continue;
+                }
+                if (colours != null) {
+                    colours.add(new int[]{Integer.parseInt(record[1]), Integer.parseInt(record[2]), Integer.parseInt(record[3])});
+                }
+                double[] m = new double[header.length - 4];
+                for (int i = 0; i < m.length; i++) {
+                    m[i] = Double.parseDouble(record[i + 4]);
+                }
+                means.add(m);
+            }
+
+            return means.toArray(new double[means.size()][]);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return null;
+    }
+
+    static boolean exportMetadata(String filename, int numberOfGroups, String[] layers, String[] invariantLayers, String pid, String coloursAndMeansUrl, String area, int width, int height, double minx, double miny, double maxx, double maxy, int iterationCount) {
         try {
             FileWriter fw = new FileWriter(filename);
             int i;
@@ -149,8 +274,10 @@ public class Aloc {
             fw.append("</body> </html> ");
 
             fw.close();
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
+            return false;
         }
     }
 
@@ -167,8 +294,9 @@ public class Aloc {
      *                 of records [][0] is red [][1] is green [][2] is blue
      * @param layers   layers used to generate the classification as Layer[]
      * @param id       unique id (likely to be session_id) as String
+     * @return true when written
      */
-    static void exportSLD(String filename, double[][] means, int[][] colours, String[] layers, String id) {
+    static boolean exportSLD(String filename, double[][] means, int[][] colours, String[] layers, String id) {
         try {
             StringBuffer sld = new StringBuffer();
             sld.append("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>");
@@ -215,8 +343,10 @@ public class Aloc {
             FileWriter fw = new FileWriter(filename);
             fw.append(sld.toString());
             fw.close();
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
+            return false;
         }
     }
 
@@ -241,28 +371,239 @@ public class Aloc {
         return max - min;
     }
 
+    /**
+     * exports a classification (ALOC) as means and colours csv, metadata html,
+     * png, grid, ascii grid and sld files
+     *
+     * @param filename        output png filename, other output filenames are
+     *                        derived from it
+     * @param name            name of the output grids
+     * @param groups          group number (0..n-1) of each cell
+     * @param cells           position of each cell as y * width + x where y
+     *                        is the row from the bottom of the extents
+     * @param extents         width, height, xmin, ymin, xmax, ymax
+     * @param group_means     mean values for each group
+     * @param colours         RGB colours of groups
+     * @param layers          layers used to generate the classification
+     * @param invariantLayers layers excluded from the classification
+     * @param iterationCount  number of iterations
+     * @param numberOfThreads threads encoding bands of rows, writers run
+     *                        concurrently
+     * @param options         web map tiles are written when tileZoom is set,
+     *                        may be null
+     * @param log
+     * @return true when every output is written
+     */
+    static boolean exportOutputs(final String filename, final String name, int[] groups, int[] cells, final double[] extents, final double[][] group_means, final int[][] colours, final String[] layers, final String[] invariantLayers, final int iterationCount, int numberOfThreads, final AlocOptions options, final AnalysisLog log) {
+        final int width = (int) extents[0];
+        final int height = (int) extents[1];
+
+        //bands of rows of each writer are encoded by a shared pool, writers
+        //only wait for their bands
+        final AlocRaster raster = new AlocRaster(cells, groups, width, height, numberOfThreads,
+                options == null ? null : options.executor);
+        final float res = (float) ((extents[4] - extents[2]) / width);
+
+        //writers throw or return false when an output is not written
+        List<Callable<Boolean>> writers = new ArrayList<Callable<Boolean>>();
+        writers.add(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                /*
+                 * export means + colours
+                 */
+                boolean written = exportMeansColours(filename.replace("aloc.png", "classification_means.csv"), group_means, colours, layers);
+                log.log("exported group means and colours");
+
+                /*
+                 * export metadata html
+                 */
+                written &= exportMetadata(filename.replace("aloc.png", "classification") + ".html", group_means.length, layers, invariantLayers,
+                        "<insert job number here>",
+                        "classification_means.csv",
+                        "", //(job != null) ? job.area : "",
+                        width, height, extents[2], extents[3], extents[4], extents[5],
+                        iterationCount);
+
+                /*
+                 * export geoserver sld file for legend
+                 */
+                written &= exportSLD(filename + ".sld", group_means, colours, layers, "");
+
+                //export sld
+                written &= exportSLD(filename.replace("aloc.png", name + ".sld"), group_means, colours, layers, "0");
+                if (!written) {
+                    log.err("failed to write group means, metadata or sld");
+                }
+                return written;
+            }
+        });
+        writers.add(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                /*
+                 * map back as colours, transparent for missing values, a row
+                 * at a time
+                 */
+                raster.writePng(filename, colours);
+
+                log.log("saved image");
+                return true;
+            }
+        });
+        writers.add(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                //write grid file, group numbers 1..n instead of 0..n-1
+                raster.writeGrid(filename.replace("aloc.png", name), extents, res);
+                return true;
+            }
+        });
+        writers.add(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                //export ASCGRID
+                raster.writeAsc(filename.replace("aloc.png", name + ".asc"), extents, res);
+                return true;
+            }
+        });
+
+        if (options != null && options.tileZoom != null) {
+            writers.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    //web map tiles
+                    int count = new AlocTiles(raster, colours, extents, res).write(filename.replace("aloc.png", "tiles"),
+                            options.tileZoom[0], options.tileZoom[1], options.tms);
+                    log.log("saved " + count + " tiles, zoom " + options.tileZoom[0] + " to " + options.tileZoom[1]);
+                    return true;
+                }
+            });
+        }
+
+        //writers wait for their bands, so with threads of the process they
+        //run one at a time in this thread
+        boolean written = true;
+        ExecutorService executor = null;
+        try {
+            if (options != null && options.executor != null) {
+                for (Callable<Boolean> writer : writers) {
+                    try {
+                        written &= writer.call();
+                    } catch (Exception e) {
+                        written = false;
+                        log.err("failed to write outputs: " + e);
+                        e.printStackTrace();
+                    }
+                }
+            } else {
+                executor = Executors.newFixedThreadPool(numberOfThreads > 1 ? writers.size() : 1);
+                for (Future<Boolean> f : executor.invokeAll(writers)) {
+                    try {
+                        written &= f.get();
+                    } catch (ExecutionException e) {
+                        written = false;
+                        log.err("failed to write outputs: " + e.getCause());
+                        e.getCause().printStackTrace();
+                    }
+                }
+            }
+        } catch (Exception e) {
+            written = false;
+            log.err("failed to write outputs: " + e);
+            e.printStackTrace();
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+            raster.close();
+        }
+        return written;
+    }
+
     public static void main(String[] args) {
-        System.out.println("args[0] = grid files directory\n"
+        System.out.println(USAGE);
+
+        run(args, null);
+    }
+
+    static final String USAGE = "args[0] = grid files directory\n"
                 + "args[1] = number of groups\n"
                 + "args[2] = number of threads\n"
-                + "args[3] = output path\n");
+                + "args[3] = output path\n"
+                + "args[4..] = optional name=value settings\n"
+                + "    checkpoint=<iterations between checkpoints written to the output path>\n"
+                + "    resume=true to continue from the checkpoint in the output path\n"
+                + "    warmstart=<classification_means.csv of a previous classification to start from>\n"
+                + "    sweep=<comma separated numbers of groups, each written to output path/k<number of groups>, args[1] is ignored>\n"
+                + "    predict=<classification_model.csv of a previous classification to allocate cells to, args[1] is ignored>\n"
+                + "    async=true to allocate groups without an iteration barrier, or compare to also log the dispersion of each mode\n"
+                + "    cache=<KB of cache per core for data piece and tile sizes, default 256>\n"
+                + "    outofcore=true to keep data pieces and distances in memory-mapped files in the output path\n"
+                + "    offheap=true to keep data pieces and distances outside of the heap, up to -XX:MaxDirectMemorySize\n"
+                + "    workers=<number of worker processes to allocate groups, started on this machine unless workerport is set>\n"
+                + "    workerport=<port to wait for workers started with: java -cp aloc.jar au.org.ala.spatial.analysis.aloc.AlocWorker host port [threads]>\n"
+                + "    metrics=<number of cells sampled for silhouette and Calinski-Harabasz, 0 for dispersion only>, written to classification_metrics.csv\n"
+                + "    layers=<comma separated grid file names to use, default all>\n"
+                + "    area=<xmin,ymin,xmax,ymax to restrict the extent to>\n"
+                + "    matrixcache=<directory to keep prepared data in, reused by jobs with the same layers and area>\n"
+                + "    resultcache=<directory to keep outputs in, copied to the output path of identical jobs>\n"
+                + "    resultcachesize=<MB of outputs kept in resultcache, default 1024>\n"
+                + "    preflight=true to log the estimated memory and work of the classification without running it\n"
+                + "    tiles=<first-last zoom levels of web map tiles written to output path/tiles/zoom/x/y.png, e.g. 2-8>\n"
+                + "    tms=true to number tile rows from the bottom (TMS) instead of the top (XYZ)\n";
+
+    /**
+     * run a classification, or a sweep or prediction, with the arguments
+     * of main
+     *
+     * @param args     arguments of main
+     * @param progress receives log messages as they are written, may be null
+     * @return true when outputs were written
+     */
+    public static boolean run(String[] args, Writer progress) {
+        return run(args, progress, null);
+    }
 
+    /**
+     * run a classification, or a sweep or prediction, with the arguments
+     * of main, on threads of the process
+     *
+     * @param args     arguments of main
+     * @param progress receives log messages as they are written, may be null
+     * @param executor threads shared with other classifications, see
+     *                 AlocOptions.executor, null to start threads
+     * @return true when outputs were written
+     */
+    public static boolean run(String[] args, Writer progress, ExecutorService executor) {
         //args = new String[] {"/data/modelling/aloc/test", "3", "8", "/data/modelling/aloc/test"};
 
         String gridfilepath = args[0];
         int numberOfGroups = Integer.parseInt(args[1]);
         int numberOfThreads = Integer.parseInt(args[2]);
         String outputpath = args[3];
+        final AlocOptions options = AlocOptions.parse(args, 4);
+        options.executor = executor;
+        options.checkpointFilename = outputpath + File.separator + "aloc.checkpoint";
+        options.tempPath = outputpath;
 
         String filename = outputpath + File.separator + "aloc.png";
 
         String name = "aloc";
 
-        final AnalysisLog log = new AnalysisLog(outputpath + File.separator + "aloc.log");
+        final AnalysisLog log = options.preflight ? new AnalysisLog() : new AnalysisLog(outputpath + File.separator + "aloc.log");
+        log.forward(progress);
 
         if (log != null) {
             log.log("start ALOC");
         }
+        long[] memoryStart = memoryCounters();
+
+        if (options.predictFilename != null) {
+            boolean predicted = predict(gridfilepath, options.predictFilename, numberOfThreads, filename, options, log);
+            log.close();
+            return predicted;
+        }
 
         /*
          * get data, remove missing values, restrict by optional region
@@ -271,51 +612,99 @@ public class Aloc {
         j = 0;
         int width = 0, height = 0;
 
-        int pieces = numberOfThreads * 4;
+        //the number of pieces does not depend on the number of threads, so
+        //that results are the same for any number of threads
+        int pieces = PIECES;
 
         //identify grid files
-        File[] files = new File(gridfilepath).listFiles(new FilenameFilter() {
+        File[] files = gridFiles(gridfilepath, options, true, log);
+        File[] invariantFiles = gridFiles(gridfilepath, options, false, log);
 
-            @Override
-            public boolean accept(File dir, String name) {
-                //use grid files where MinValue < MaxValue
-                if (name.endsWith(".grd") || name.endsWith(".GRD")) {
-                    try {
-                        Grid g = new Grid(dir.getPath() + File.separator + name.substring(0, name.length() - 4));
-                        if (g != null) {
-                            if (g.minval >= g.maxval) {
-                                log.log("layer " + name + " excluded from classification because it has no invariance for the selected area.");
-                            }
-                            return g.minval < g.maxval;
-                        }
-                    } catch (Exception e) {
-                    }
-                }
+        //piece size from the cache size, for the largest number of groups
+        int maxGroups = numberOfGroups;
+        if (options.sweep != null) {
+            maxGroups = options.sweep[options.sweep.length - 1];
+        }
+        int rowsPerPiece = au.org.ala.spatial.analysis.aloc.Aloc.rowsPerPiece(files.length, maxGroups, options.cacheSize);
+
+        long cacheHits = GridCache.hits();
+        long cacheMisses = GridCache.misses();
+
+        double[] bounds = layerBounds(files, options.area);
+
+        if (options.preflight) {
+            if (files.length < 2) {
+                log.err("Fewer than two layers with postive range.");
+                log.close();
                 return false;
             }
-        });
+            log.log(estimate(args, log).toString());
+            log.close();
+            return true;
+        }
 
-        File[] invariantFiles = new File(gridfilepath).listFiles(new FilenameFilter() {
+        //outputs of an identical job
+        AlocResultCache resultCache = null;
+        String resultKey = resultKey(args, files, invariantFiles, bounds);
+        options.inputKey = resultKey;
+        if (options.resultCachePath != null) {
+            resultCache = new AlocResultCache(options.resultCachePath, options.resultCacheSize);
+            if (resultCache.get(resultKey, outputpath)) {
+                log.log("outputs of an identical job copied from " + options.resultCachePath + File.separator + resultKey);
+                log.log("finished ALOC");
+                log.close();
+                return true;
+            }
+        }
 
-            @Override
-            public boolean accept(File dir, String name) {
-                //use grid files where MinValue < MaxValue
-                if (name.endsWith(".grd") || name.endsWith(".GRD")) {
-                    try {
-                        Grid g = new Grid(dir.getPath() + File.separator + name.substring(0, name.length() - 4));
-                        if (g != null) {
-                            return g.minval >= g.maxval;
-                        }
-                    } catch (Exception e) {
-                    }
-                }
-                return false;
+        String matrixFilename = null;
+        ArrayList<Object> data_pieces = null;
+        if (options.matrixCachePath != null) {
+            String[] gridFilenames = new String[files.length];
+            for (i = 0; i < files.length; i++) {
+                gridFilenames[i] = files[i].getPath().substring(0, files[i].getPath().length() - 4);
             }
-        });
+            matrixFilename = options.matrixCachePath + File.separator + AlocMatrixFile.key(gridFilenames, bounds);
+            data_pieces = AlocMatrixFile.map(matrixFilename, files.length, pieces, rowsPerPiece);
+        }
 
-        ArrayList<Object> data_pieces = loadGrids(files, pieces, outputpath, log);
+        AlocOffHeap dataOffHeap = null;
+        boolean prepared = data_pieces != null;
+        if (prepared) {
+            double[] e = (double[]) data_pieces.get(data_pieces.size() - 1);
+            writeExtents(outputpath, (int) e[0], (int) e[1], new double[]{e[2], e[3], e[4], e[5]});
+            log.log("prepared data: " + matrixFilename);
+        } else if (options.outOfCore) {
+            data_pieces = loadGridsStreamed(files, bounds, pieces, rowsPerPiece, outputpath, null, log);
+        } else if (options.offHeap) {
+            dataOffHeap = new AlocOffHeap();
+            data_pieces = loadGridsStreamed(files, bounds, pieces, rowsPerPiece, outputpath, dataOffHeap, log);
+        } else {
+            data_pieces = loadGrids(files, bounds, pieces, rowsPerPiece, outputpath, log);
+        }
         if (data_pieces == null) {
-            return;
+            log.close();
+            return false;
+        }
+        if (matrixFilename != null && !prepared) {
+            if (AlocMatrixFile.write(matrixFilename, data_pieces, files.length)) {
+                log.log("wrote prepared data: " + matrixFilename);
+            } else {
+                log.err("cannot write prepared data: " + matrixFilename);
+            }
+        }
+        //for workers to map their pieces
+        if (matrixFilename != null && new File(matrixFilename).exists()) {
+            options.dataFilename = matrixFilename;
+            options.dataOffset = AlocMatrixFile.dataOffset(((int[]) data_pieces.get(data_pieces.size() - 2)).length,
+                    ((double[]) data_pieces.get(data_pieces.size() - 1)).length);
+        } else if (options.outOfCore) {
+            options.dataFilename = outputpath + File.separator + "aloc.data";
+            options.dataOffset = 0;
+        }
+        if (GridCache.enabled()) {
+            log.log("layer cache: " + (GridCache.hits() - cacheHits) + " hits, " + (GridCache.misses() - cacheMisses)
+                    + " misses, " + (GridCache.used() >> 20) + " of " + (GridCache.getBudget() >> 20) + " MB used");
         }
 
         //number of pieces may have changed
@@ -337,60 +726,86 @@ public class Aloc {
             invariantLayers[i] = invariantFiles[i].getName();
         }
 
+        //initial seeds from a previous classification
+        if (options.warmStartFilename != null) {
+            List<String> meansLayers = new ArrayList<String>();
+            options.initialMeans = importMeansColours(options.warmStartFilename, meansLayers, null, null);
+            if (options.initialMeans == null || options.initialMeans.length == 0) {
+                log.err("cannot read means for warm start: " + options.warmStartFilename);
+                options.initialMeans = null;
+            } else {
+                options.initialMeansLayers = meansLayers.toArray(new String[meansLayers.size()]);
+            }
+        }
+
+        if (options.sweep != null) {
+            boolean written = sweep(data_pieces, pieces, layers, invariantLayers, numberOfThreads, outputpath, options, log);
+            freeData(outputpath, data_pieces, dataOffHeap, log);
+            logMemory(memoryStart, log);
+            if (!written) {
+                log.err("outputs are incomplete, not added to the result cache");
+                log.close();
+                return false;
+            }
+            if (resultCache != null && !resultCache.put(resultKey, outputpath)) {
+                log.err("cannot add outputs to " + options.resultCachePath);
+            }
+            log.close();
+            return true;
+        }
+
         /*
          * run aloc Note: requested number of groups may not always equal
          * request
          */
         int[] iterationCount = new int[1];
-        int[] groups = au.org.ala.spatial.analysis.aloc.Aloc.runGowerMetricThreadedMemory(data_pieces, numberOfGroups, layers.length, pieces, layers, log, numberOfThreads, iterationCount);
+        double[] rowDistances = null;
+        if (options.metricsSampleSize >= 0 || options.asyncCompare) {
+            int nRows = 0;
+            for (i = 0; i < pieces; i++) {
+                nRows += au.org.ala.spatial.analysis.aloc.Aloc.pieceLength(data_pieces, i) / layers.length;
+            }
+            rowDistances = AlocArena.doubles(nRows, false);
+        }
+
+        //asynchronous classification for comparison, data is left
+        //standardized for the synchronous classification that follows
+        double asyncDispersion = 0;
+        long asyncTime = 0;
+        int asyncPasses = 0;
+        if (options.asyncCompare) {
+            boolean destandardize = options.destandardize;
+            options.destandardize = false;
+            asyncTime = System.currentTimeMillis();
+            au.org.ala.spatial.analysis.aloc.Aloc.runGowerMetricThreadedMemory(data_pieces, numberOfGroups, layers.length, pieces, layers, log, numberOfThreads, iterationCount, rowDistances, options);
+            asyncTime = System.currentTimeMillis() - asyncTime;
+            asyncPasses = iterationCount[0];
+            asyncDispersion = meanOf(rowDistances);
+            options.destandardize = destandardize;
+            options.async = false;
+        }
+
+        long time = System.currentTimeMillis();
+        int[] groups = au.org.ala.spatial.analysis.aloc.Aloc.runGowerMetricThreadedMemory(data_pieces, numberOfGroups, layers.length, pieces, layers, log, numberOfThreads, iterationCount, rowDistances, options);
+        time = System.currentTimeMillis() - time;
         if (groups == null || getGroupRange(groups) < 2) {
             log.err("Classification failed to generate >1 groups");
         }
 
-        log.log("identified groups");
-
-        /*
-         * recalculate group counts
-         */
-        int newNumberOfGroups = 0;
-        for (i = 0; i < groups.length; i++) {
-            if (groups[i] > newNumberOfGroups) {
-                newNumberOfGroups = groups[i];
-            }
+        if (options.asyncCompare) {
+            log.log("asynchronous: dispersion " + asyncDispersion + ", " + asyncPasses + " passes, " + asyncTime + "ms");
+            log.log("synchronous: dispersion " + meanOf(rowDistances) + ", " + iterationCount[0] + " iterations, " + time + "ms");
         }
-        newNumberOfGroups++; //group number is 0..n-1
-        numberOfGroups = newNumberOfGroups;
 
-        /*
-         * calculate group means
-         */
-        double[][] group_means = new double[numberOfGroups][layers.length];
-        int[][] group_counts = new int[numberOfGroups][layers.length];
+        log.log("identified groups");
 
         /*
-         * determine group means
+         * calculate group means
          */
-        int row = 0;
-        for (int k = 0; k < pieces; k++) {
-            float[] d = (float[]) data_pieces.get(k);
-            for (i = 0; i < d.length; i += layers.length, row++) {
-                for (j = 0; j < layers.length; j++) {
-                    if (!Float.isNaN(d[i + j])) {
-                        group_counts[groups[row]][j]++;
-                        group_means[groups[row]][j] += d[i + j];
-                    }
-                }
-            }
-        }
-
-        double[][] group_means_copy = new double[group_means.length][group_means[0].length];
+        double[][] group_means = groupMeans(data_pieces, pieces, layers.length, groups);
+        double[][] group_means_copy = new double[group_means.length][];
         for (i = 0; i < group_means.length; i++) {
-            for (j = 0; j < group_means[i].length; j++) {
-                if (group_counts[i][j] > 0) {
-                    group_means[i][j] /= group_counts[i][j];
-                    group_means_copy[i][j] = group_means[i][j];
-                }
-            }
+            group_means_copy[i] = group_means[i].clone();
         }
 
         log.log("determined group means");
@@ -402,135 +817,162 @@ public class Aloc {
         log.log("determined group colours");
 
         /*
-         * export means + colours
+         * model for predicting, the range of each layer after removing
+         * missing values
          */
-        exportMeansColours(filename.replace("aloc.png", "classification_means.csv"), group_means, colours, layers);
-        log.log("exported group means and colours");
-
-        /*
-         * export metadata html
-         */
-        exportMetadata(filename.replace("aloc.png", "classification") + ".html", numberOfGroups, layers, invariantLayers,
-                "<insert job number here>",
-                "classification_means.csv",
-                "", //(job != null) ? job.area : "",
-                width, height, extents[2], extents[3], extents[4], extents[5],
-                iterationCount[0]);
-
-        /*
-         * export geoserver sld file for legend
-         */
-        exportSLD(filename + ".sld", group_means, colours, layers, "");
-
-        /*
-         * map back as colours, grey scale for now
-         */
-        BufferedImage image = new BufferedImage(width, height,
-                BufferedImage.TYPE_INT_ARGB);
-        int[] image_bytes;
-
-        image_bytes = image.getRGB(0, 0, image.getWidth(), image.getHeight(),
-                null, 0, image.getWidth());
+        double[] layer_min = new double[layers.length];
+        double[] layer_range = new double[layers.length];
+        columnRanges(data_pieces, pieces, layers.length, layer_min, layer_range);
+        boolean written = exportMeansColours(filename.replace("aloc.png", "classification_model.csv"), group_means, colours, layers, layer_min, layer_range);
+
+        if (rowDistances != null) {
+            AlocMetrics metrics = AlocMetrics.calculate(data_pieces, pieces, layers.length, layer_min, layer_range, groups, rowDistances, options.metricsSampleSize, numberOfThreads, options.executor);
+            written &= metrics.export(filename.replace("aloc.png", "classification_metrics.csv"));
+            log.log("determined metrics");
+        }
 
-        /*
-         * try transparency as missing value
-         */
-        for (i = 0; i < image_bytes.length; i++) {
-            image_bytes[i] = 0x00000000;
+        int[] cells = (int[]) data_pieces.get(data_pieces.size() - 2);
+        written &= exportOutputs(filename, name, groups, cells, extents, group_means, colours, layers, invariantLayers, iterationCount[0], numberOfThreads, options, log);
+        freeData(outputpath, data_pieces, dataOffHeap, log);
+        AlocArena.release(rowDistances);
+        logMemory(memoryStart, log);
+        if (!written) {
+            log.err("outputs are incomplete, not added to the result cache");
+            log.close();
+            return false;
+        }
+        if (resultCache != null && !resultCache.put(resultKey, outputpath)) {
+            log.err("cannot add outputs to " + options.resultCachePath);
         }
 
-        int[][] cells = (int[][]) data_pieces.get(data_pieces.size() - 2);
-        int[] colour = new int[3];
-        for (i = 0; i < groups.length; i++) {
-            for (j = 0; j < colour.length; j++) {
-                colour[j] = (int) (colours[groups[i]][j]);
-            }
+        log.log("finished ALOC");
 
-            //set up rgb colour for this group (upside down)
-            image_bytes[cells[i][0] + (height - cells[i][1] - 1) * width] = 0xff000000 | ((colour[0] << 16) | (colour[1] << 8) | colour[2]);
-        }
+        log.close();
 
-        /*
-         * write bytes to image
-         */
-        image.setRGB(0, 0, image.getWidth(), image.getHeight(),
-                image_bytes, 0, image.getWidth());
+        return true;
+    }
 
-        /*
-         * save image
-         */
-        try {
-            ImageIO.write(image, "png",
-                    new File(filename));
-        } catch (IOException e) {
-            e.printStackTrace(System.out);
+    /**
+     * delete the memory-mapped data pieces, or free the off-heap data pieces,
+     * and return data pieces and cells in the heap to the arena
+     */
+    static void freeData(String outputpath, ArrayList<Object> data_pieces, AlocOffHeap dataOffHeap, AnalysisLog log) {
+        for (int i = 0; i < data_pieces.size() - 1; i++) {
+            AlocArena.release(data_pieces.get(i));
         }
+        if (dataOffHeap != null) {
+            dataOffHeap.free();
+            log.log("off-heap: peak " + (AlocOffHeap.peak() >> 20) + "MB");
+        } else {
+            new File(outputpath + File.separator + "aloc.data").delete();
+        }
+    }
 
-        log.log("saved image");
+    /**
+     * @return bytes allocated and reused by the arena, collections and
+     * milliseconds of garbage collection
+     */
+    static long[] memoryCounters() {
+        long[] gc = AlocArena.gcTime();
+        return new long[]{AlocArena.allocated(), AlocArena.reused(), gc[0], gc[1]};
+    }
 
-        log.log("finished ALOC");
+    /**
+     * log the arrays allocated and reused, and garbage collection, since
+     * memoryCounters. Counters are of the process, including other jobs
+     * running at the same time.
+     */
+    static void logMemory(long[] start, AnalysisLog log) {
+        long[] end = memoryCounters();
+        log.log("memory: " + ((end[0] - start[0]) >> 20) + "MB of arrays allocated, " + ((end[1] - start[1]) >> 20)
+                + "MB reused, garbage collection " + (end[2] - start[2]) + " times, " + (end[3] - start[3]) + "ms");
+    }
 
-        //write grid file
-        double[] grid_data = new double[height * width];
-        for (i = 0; i < grid_data.length; i++) {
-            grid_data[i] = Double.NaN;
-        }
-        for (i = 0; i < groups.length; i++) {
-            for (j = 0; j < colour.length; j++) {
-                colour[j] = (int) (colours[groups[i]][j]);
-            }
-            grid_data[cells[i][0] + (height - cells[i][1] - 1) * width] = groups[i] + 1; //set grid values to "1 to number of groups" instead of "0 to number of groups - 1"
-        }
-        Grid g = new Grid(null);
-        float res = (float) ((extents[4] - extents[2]) / width);
-        g.writeGrid(filename.replace("aloc.png", name), grid_data, extents[2], extents[3], extents[4], extents[5],
-                res, res,
-                height, width);
+    /**
+     * estimate the memory and work of a job from the grid file headers
+     *
+     * @param args arguments of main
+     */
+    static AlocEstimate estimate(String[] args, AnalysisLog log) {
+        AlocOptions options = AlocOptions.parse(args, 4);
+        File[] files = gridFiles(args[0], options, true, log);
+        return AlocEstimate.estimate(files, layerBounds(files, options.area), Integer.parseInt(args[1]),
+                Integer.parseInt(args[2]), options);
+    }
 
-        //export sld
-        exportSLD(filename.replace("aloc.png", name + ".sld"), group_means, colours, layers, "0");
+    /**
+     * grid files of a directory to classify
+     *
+     * @param variant true for grid files where MinValue < MaxValue, false for
+     *                the others
+     * @return .grd files
+     */
+    static File[] gridFiles(String gridfilepath, final AlocOptions options, final boolean variant, final AnalysisLog log) {
+        File[] files = new File(gridfilepath).listFiles(new FilenameFilter() {
 
-        //export ASCGRID
-        BufferedWriter fw = null;
-        try {
-            fw = new BufferedWriter(
-                    new OutputStreamWriter(
-                            new FileOutputStream(filename.replace("aloc.png", name + ".asc")), "US-ASCII"));
-            fw.append("ncols ").append(String.valueOf(width)).append("\n");
-            fw.append("nrows ").append(String.valueOf(height)).append("\n");
-            fw.append("xllcorner ").append(String.valueOf(extents[2])).append("\n");
-            fw.append("yllcorner ").append(String.valueOf(extents[3])).append("\n");
-            fw.append("cellsize ").append(String.valueOf(res)).append("\n");
-
-            fw.append("NODATA_value ").append(String.valueOf(-1));
-
-            for (i = 0; i < height; i++) {
-                fw.append("\n");
-                for (j = 0; j < width; j++) {
-                    if (j > 0) {
-                        fw.append(" ");
-                    }
-                    if (Double.isNaN(grid_data[i * width + j])) {
-                        fw.append("-1");
-                    } else {
-                        fw.append(String.valueOf(grid_data[i * width + j]));
+            @Override
+            public boolean accept(File dir, String name) {
+                //use grid files where MinValue < MaxValue
+                if ((name.endsWith(".grd") || name.endsWith(".GRD")) && options.includes(name)) {
+                    try {
+                        Grid g = new Grid(dir.getPath() + File.separator + name.substring(0, name.length() - 4));
+                        if (g != null) {
+                            if (variant && g.minval >= g.maxval) {
+                                log.log("layer " + name + " excluded from classification because it has no invariance for the selected area.");
+                            }
+                            return variant == g.minval < g.maxval;
+                        }
+                    } catch (Exception e) {
                     }
                 }
+                return false;
             }
-            fw.append("\n");
-        } catch (Exception e) {
-            e.printStackTrace(System.out);
-        } finally {
-            if (fw != null) {
-                try {
-                    fw.close();
-                } catch (Exception e) {
-                    e.printStackTrace(System.out);
-                }
+        });
+        return files == null ? new File[0] : files;
+    }
+
+    /**
+     * @return result cache key of a job, from the layer files, bounds,
+     * number of groups and the settings that change outputs
+     */
+    static String resultKey(String[] args, File[] files, File[] invariantFiles, double[] bounds) {
+        List<String> parts = new ArrayList<String>();
+        parts.add(args[1]);
+        for (int i = 0; i < files.length; i++) {
+            String gridFilename = files[i].getPath().substring(0, files[i].getPath().length() - 4);
+            parts.add(AlocResultCache.stamp(files[i].getPath()));
+            parts.add(AlocResultCache.stamp(new File(gridFilename + ".gri").exists() ? gridFilename + ".gri" : gridFilename + ".GRI"));
+        }
+        for (int i = 0; i < invariantFiles.length; i++) {
+            parts.add(invariantFiles[i].getName());
+        }
+        for (int i = 0; i < bounds.length; i++) {
+            parts.add(String.valueOf(bounds[i]));
+        }
+        List<String> settings = new ArrayList<String>();
+        for (int i = 4; i < args.length; i++) {
+            String setting = args[i].substring(0, Math.max(0, args[i].indexOf('=')));
+            if (setting.equals("warmstart") || setting.equals("predict")) {
+                settings.add(setting + "=" + AlocResultCache.stamp(args[i].substring(setting.length() + 1)));
+            } else if (!java.util.Arrays.asList(RESULT_SETTINGS).contains(setting)) {
+                settings.add(args[i]);
             }
         }
+        java.util.Collections.sort(settings);
+        parts.addAll(settings);
+        return AlocResultCache.key(parts);
+    }
 
-        log.close();
+    //settings that do not change outputs
+    static final String[] RESULT_SETTINGS = {"checkpoint", "resume", "outofcore", "offheap", "workerport",
+            "matrixcache", "resultcache", "resultcachesize"};
+
+    static double meanOf(double[] values) {
+        double sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            sum += values[i];
+        }
+        return sum / values.length;
     }
 
     static String readFile(String file) {
@@ -571,10 +1013,13 @@ public class Aloc {
         }
     }
 
-    private static ArrayList<Object> loadGrids(File[] files, int pieces, String outputPath, AnalysisLog log) {
-        ArrayList<Object> data = new ArrayList<Object>();
-
-        //determine outer bounds of layers
+    /**
+     * determine outer bounds of layers
+     *
+     * @param files grid files
+     * @return bounds as xmin, ymin, xmax, ymax, xres, yres
+     */
+    static double[] layerBounds(File[] files) {
         double xmin = Double.MAX_VALUE;
         double ymin = Double.MAX_VALUE;
         double xmax = Double.MAX_VALUE * -1;
@@ -599,6 +1044,395 @@ public class Aloc {
                 ymax = g.ymax;
             }
         }
+        return new double[]{xmin, ymin, xmax, ymax, xres, yres};
+    }
+
+    /**
+     * outer bounds of layers restricted to an area
+     *
+     * @param files grid files
+     * @param area  xmin, ymin, xmax, ymax, may be null
+     * @return bounds as xmin, ymin, xmax, ymax, xres, yres
+     */
+    static double[] layerBounds(File[] files, double[] area) {
+        double[] bounds = layerBounds(files);
+        if (area != null) {
+            bounds[0] = Math.max(bounds[0], area[0]);
+            bounds[1] = Math.max(bounds[1], area[1]);
+            bounds[2] = Math.min(bounds[2], area[2]);
+            bounds[3] = Math.min(bounds[3], area[3]);
+        }
+        return bounds;
+    }
+
+    /**
+     * minimum and range of each column of data pieces
+     *
+     * @param data_pieces data pieces as float[], or FloatBuffer, rows of nCols
+     * @param pieces      number of data pieces
+     * @param nCols       number of columns
+     * @param min         receives the minimum of each column
+     * @param range       receives the range of each column
+     */
+    static void columnRanges(ArrayList<Object> data_pieces, int pieces, int nCols, double[] min, double[] range) {
+        double[] max = new double[nCols];
+        for (int j = 0; j < nCols; j++) {
+            min[j] = Double.MAX_VALUE;
+            max[j] = Double.MAX_VALUE * -1;
+        }
+        for (int k = 0; k < pieces; k++) {
+            float[] d = au.org.ala.spatial.analysis.aloc.Aloc.piece(data_pieces, k);
+            for (int i = 0; i < d.length; i += nCols) {
+                for (int j = 0; j < nCols; j++) {
+                    if (d[i + j] < min[j]) {
+                        min[j] = d[i + j];
+                    }
+                    if (d[i + j] > max[j]) {
+                        max[j] = d[i + j];
+                    }
+                }
+            }
+        }
+        for (int j = 0; j < nCols; j++) {
+            range[j] = max[j] - min[j];
+        }
+    }
+
+    /**
+     * mean of each column for each group
+     * <p/>
+     * the number of groups is one more than the largest group number
+     *
+     * @param data_pieces data pieces as float[], or FloatBuffer, rows of nCols
+     * @param pieces      number of data pieces
+     * @param nCols       number of columns
+     * @param groups      group number (0..n-1) of each row
+     * @return group means as [group][column]
+     */
+    static double[][] groupMeans(ArrayList<Object> data_pieces, int pieces, int nCols, int[] groups) {
+        int i, j;
+
+        /*
+         * recalculate group counts
+         */
+        int numberOfGroups = 0;
+        for (i = 0; i < groups.length; i++) {
+            if (groups[i] > numberOfGroups) {
+                numberOfGroups = groups[i];
+            }
+        }
+        numberOfGroups++; //group number is 0..n-1
+
+        double[][] group_means = new double[numberOfGroups][nCols];
+        int[][] group_counts = new int[numberOfGroups][nCols];
+
+        /*
+         * determine group means
+         */
+        int row = 0;
+        for (int k = 0; k < pieces; k++) {
+            float[] d = au.org.ala.spatial.analysis.aloc.Aloc.piece(data_pieces, k);
+            for (i = 0; i < d.length; i += nCols, row++) {
+                for (j = 0; j < nCols; j++) {
+                    if (!Float.isNaN(d[i + j])) {
+                        group_counts[groups[row]][j]++;
+                        group_means[groups[row]][j] += d[i + j];
+                    }
+                }
+            }
+        }
+
+        for (i = 0; i < group_means.length; i++) {
+            for (j = 0; j < group_means[i].length; j++) {
+                if (group_counts[i][j] > 0) {
+                    group_means[i][j] /= group_counts[i][j];
+                }
+            }
+        }
+
+        return group_means;
+    }
+
+    /**
+     * classifies the same data into each number of groups in options.sweep,
+     * smallest first.
+     * <p/>
+     * the data is loaded and standardized once and each seeding scan is
+     * shared by every number of groups, see AlocSeedScans. Each
+     * classification is the same as when classifying that number of groups
+     * on its own.
+     * Outputs for each number of groups are written to outputpath/k[number
+     * of groups] and the dispersion of each classification to
+     * outputpath/sweep_summary.csv.
+     *
+     * @param data_pieces     loaded data pieces
+     * @param pieces          number of data pieces
+     * @param layers          layers of the data pieces
+     * @param invariantLayers layers excluded from the classification
+     * @param numberOfThreads number of threads
+     * @param outputpath      output path
+     * @param options         options, options.sweep is the numbers of groups
+     * @param log
+     * @return true when the outputs of every classification are written
+     */
+    static boolean sweep(ArrayList<Object> data_pieces, int pieces, String[] layers, String[] invariantLayers, int numberOfThreads, String outputpath, AlocOptions options, AnalysisLog log) {
+        int i, j;
+        int nCols = layers.length;
+        int[] cells = (int[]) data_pieces.get(data_pieces.size() - 2);
+        double[] extents = (double[]) data_pieces.get(data_pieces.size() - 1);
+        int nRows = 0;
+        for (i = 0; i < pieces; i++) {
+            nRows += au.org.ala.spatial.analysis.aloc.Aloc.pieceLength(data_pieces, i) / nCols;
+        }
+
+        //layer units of the standardized data
+        double[] layer_min = new double[nCols];
+        double[] layer_range = new double[nCols];
+        columnRanges(data_pieces, pieces, nCols, layer_min, layer_range);
+        for (j = 0; j < nCols; j++) {
+            double range = extents[6 + j * 2 + 1] - extents[6 + j * 2];
+            layer_min[j] = layer_min[j] * range + extents[6 + j * 2];
+            layer_range[j] *= range;
+        }
+
+        //data is left standardized between classifications
+        options.destandardize = false;
+
+        StringBuilder summary = new StringBuilder();
+        summary.append("groups requested,groups,iterations,dispersion,silhouette,calinski-harabasz\r\n");
+
+        //data is already standardized for metrics
+        double[] unit_min = new double[nCols];
+        double[] unit_range = new double[nCols];
+        java.util.Arrays.fill(unit_range, 1);
+
+        boolean written = true;
+
+        //seeding scans of each radius are shared by all numbers of groups
+        options.seedScans = new AlocSeedScans(options.sweep[options.sweep.length - 1]);
+        for (int n = 0; n < options.sweep.length; n++) {
+            int numberOfGroups = options.sweep[n];
+            String path = outputpath + File.separator + "k" + numberOfGroups;
+            new File(path).mkdirs();
+
+            options.checkpointFilename = path + File.separator + "aloc.checkpoint";
+            if (n > 0) {
+                //a warm start is for the first classification
+                options.initialMeans = null;
+            }
+
+            log.log("sweep: " + numberOfGroups + " groups");
+
+            int[] iterationCount = new int[1];
+            double[] rowDistances = new double[nRows];
+            int[] groups = au.org.ala.spatial.analysis.aloc.Aloc.runGowerMetricThreadedMemory(data_pieces, numberOfGroups, nCols, pieces, layers, log, numberOfThreads, iterationCount, rowDistances, options);
+            if (groups == null || getGroupRange(groups) < 2) {
+                log.err("Classification failed to generate >1 groups");
+                continue;
+            }
+
+            //standardized means, and in layer units for outputs
+            double[][] means = groupMeans(data_pieces, pieces, nCols, groups);
+            double[][] group_means = new double[means.length][nCols];
+            double[][] group_means_copy = new double[means.length][nCols];
+            for (i = 0; i < means.length; i++) {
+                for (j = 0; j < nCols; j++) {
+                    group_means[i][j] = means[i][j] * layer_range[j] + layer_min[j];
+                    group_means_copy[i][j] = group_means[i][j];
+                }
+            }
+            int[][] colours = Pca.getColours(group_means_copy);
+
+            String filename = path + File.separator + "aloc.png";
+            written &= exportMeansColours(filename.replace("aloc.png", "classification_model.csv"), group_means, colours, layers, layer_min, layer_range);
+            written &= exportOutputs(filename, "aloc", groups, cells, extents, group_means, colours, layers, invariantLayers, iterationCount[0], numberOfThreads, options, log);
+
+            //mean distance of each cell to its group, and sampled metrics
+            AlocMetrics metrics = AlocMetrics.calculate(data_pieces, pieces, nCols, unit_min, unit_range, groups, rowDistances, Math.max(0, options.metricsSampleSize), numberOfThreads, options.executor);
+            if (options.metricsSampleSize >= 0) {
+                written &= metrics.export(filename.replace("aloc.png", "classification_metrics.csv"));
+            }
+            summary.append(numberOfGroups).append(",").append(means.length).append(",")
+                    .append(iterationCount[0]).append(",").append(metrics.dispersion)
+                    .append(",").append(metrics.sampleSize > 0 ? String.valueOf(metrics.silhouette) : "")
+                    .append(",").append(Double.isNaN(metrics.calinskiHarabasz) ? "" : String.valueOf(metrics.calinskiHarabasz))
+                    .append("\r\n");
+
+            log.log("sweep: " + numberOfGroups + " groups finished, dispersion " + metrics.dispersion);
+        }
+        log.log("sweep: " + options.seedScans.misses() + " seeding scans, " + options.seedScans.hits() + " shared");
+        options.seedScans = null;
+
+        try {
+            FileWriter fw = new FileWriter(outputpath + File.separator + "sweep_summary.csv");
+            fw.append(summary.toString());
+            fw.close();
+        } catch (Exception e) {
+            log.err("failed to write sweep_summary.csv: " + e);
+            e.printStackTrace();
+            written = false;
+        }
+
+        log.log("finished ALOC sweep");
+        return written;
+    }
+
+    /**
+     * allocates cells to the groups of a previous classification and exports
+     * them the same as a classification.
+     * <p/>
+     * layers are read in bands of rows and each band is allocated in
+     * parallel, only the allocated cells and their groups are retained.
+     *
+     * @param gridfilepath    grid files directory
+     * @param modelFilename   classification_model.csv or
+     *                        classification_means.csv of the classification
+     * @param numberOfThreads number of threads
+     * @param filename        output png filename
+     * @param options         area to restrict the extent to, and tiles
+     * @param log
+     * @return true when the cells are allocated and every output is written
+     */
+    static boolean predict(String gridfilepath, String modelFilename, int numberOfThreads, String filename, AlocOptions options, AnalysisLog log) {
+        double[] area = options.area;
+        List<String> modelLayers = new ArrayList<String>();
+        List<int[]> colourList = new ArrayList<int[]>();
+        List<double[]> ranges = new ArrayList<double[]>();
+        double[][] modelMeans = importMeansColours(modelFilename, modelLayers, colourList, ranges);
+        if (modelMeans == null || modelMeans.length == 0) {
+            log.err("cannot read model: " + modelFilename);
+            return false;
+        }
+
+        //layers of the model
+        List<File> fileList = new ArrayList<File>();
+        List<Integer> modelColumns = new ArrayList<Integer>();
+        for (int i = 0; i < modelLayers.size(); i++) {
+            File f = new File(gridfilepath, modelLayers.get(i));
+            if (f.exists()) {
+                fileList.add(f);
+                modelColumns.add(i);
+            } else {
+                log.log("layer " + modelLayers.get(i) + " of the model is not in " + gridfilepath);
+            }
+        }
+        if (fileList.isEmpty()) {
+            log.err("no layers of the model are in " + gridfilepath);
+            return false;
+        }
+        File[] files = fileList.toArray(new File[fileList.size()]);
+        int nCols = files.length;
+
+        double[] bounds = layerBounds(files, area);
+        final double xmin = bounds[0];
+        final double ymin = bounds[1];
+        final double xres = bounds[4];
+        final double yres = bounds[5];
+        final int width = (int) Math.ceil((bounds[2] - bounds[0]) / xres);
+        int height = (int) Math.ceil((bounds[3] - bounds[1]) / yres);
+
+        //layer ranges of the model, or of the layers when it has none
+        final Grid[] grids = new Grid[nCols];
+        final double[] min = new double[nCols];
+        final double[] range = new double[nCols];
+        double[][] means = new double[modelMeans.length][nCols];
+        if (ranges.size() < 2) {
+            log.log("model has no layer ranges, using the range of each layer");
+        }
+        for (int j = 0; j < nCols; j++) {
+            int m = modelColumns.get(j);
+            grids[j] = new Grid(files[j].getPath().substring(0, files[j].getPath().length() - 4));
+            if (ranges.size() >= 2) {
+                min[j] = ranges.get(0)[m];
+                range[j] = ranges.get(1)[m];
+            } else {
+                min[j] = grids[j].minval;
+                range[j] = grids[j].maxval - grids[j].minval;
+            }
+            for (int i = 0; i < modelMeans.length; i++) {
+                means[i][j] = modelMeans[i][m];
+            }
+        }
+        final double[] centroids = au.org.ala.spatial.analysis.aloc.AlocPredict.standardize(means, min, range);
+
+        //allocate bands of rows
+        final int bandRows = Math.max(1, 65536 / width);
+        ExecutorService executor = options.executor != null ? options.executor : Executors.newFixedThreadPool(numberOfThreads);
+        List<Future<int[][]>> bands = new ArrayList<Future<int[][]>>();
+        for (int r = 0; r < height; r += bandRows) {
+            final int firstRow = r;
+            final int rowCount = Math.min(bandRows, height - r);
+            bands.add(executor.submit(new Callable<int[][]>() {
+                @Override
+                public int[][] call() throws Exception {
+                    float[][] values = new float[grids.length][];
+                    for (int j = 0; j < grids.length; j++) {
+                        values[j] = grids[j].getValuesBlock(xmin, ymin, xres, yres, width, firstRow, rowCount);
+                    }
+                    int[] groups = new int[width * rowCount];
+                    int n = au.org.ala.spatial.analysis.aloc.AlocPredict.predict(values, min, range, centroids, groups);
+
+                    //allocated cells and their groups
+                    int[][] band = new int[2][n];
+                    for (int i = 0, p = 0; i < groups.length; i++) {
+                        if (groups[i] >= 0) {
+                            band[0][p] = firstRow * width + i;
+                            band[1][p] = groups[i];
+                            p++;
+                        }
+                    }
+                    return band;
+                }
+            }));
+        }
+
+        int nCells = 0;
+        List<int[][]> results = new ArrayList<int[][]>();
+        try {
+            for (Future<int[][]> f : bands) {
+                int[][] band = f.get();
+                results.add(band);
+                nCells += band[0].length;
+            }
+        } catch (Exception e) {
+            log.err("failed to allocate cells");
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (executor != options.executor) {
+                executor.shutdown();
+            }
+        }
+        int[] cells = new int[nCells];
+        int[] groups = new int[nCells];
+        int p = 0;
+        for (int[][] band : results) {
+            System.arraycopy(band[0], 0, cells, p, band[0].length);
+            System.arraycopy(band[1], 0, groups, p, band[1].length);
+            p += band[0].length;
+        }
+        results = null;
+
+        log.log("allocated " + nCells + " cells to " + modelMeans.length + " groups");
+
+        double[] extents = new double[]{width, height, bounds[0], bounds[1], bounds[2], bounds[3]};
+        boolean written = exportOutputs(filename, "aloc", groups, cells, extents, modelMeans,
+                colourList.toArray(new int[colourList.size()][]), modelLayers.toArray(new String[modelLayers.size()]),
+                new String[0], 0, numberOfThreads, options, log);
+
+        log.log("finished ALOC predict");
+        return written;
+    }
+
+    private static ArrayList<Object> loadGrids(File[] files, double[] bounds, int pieces, int rowsPerPiece, String outputPath, AnalysisLog log) {
+        ArrayList<Object> data = new ArrayList<Object>();
+
+        double xmin = bounds[0];
+        double ymin = bounds[1];
+        double xmax = bounds[2];
+        double ymax = bounds[3];
+        double xres = bounds[4];
+        double yres = bounds[5];
 
         if (files.length < 2) {
             log.err("Fewer than two layers with postive range.");
@@ -614,19 +1448,7 @@ public class Aloc {
         int height = (int) Math.ceil(yrange / yres);
 
         //write extents into a file now
-        String extentsFilename = outputPath + File.separator + "extents.txt";
-        try {
-            FileWriter fw = new FileWriter(extentsFilename);
-            fw.append(String.valueOf(width)).append("\n");
-            fw.append(String.valueOf(height)).append("\n");
-            fw.append(String.valueOf(xmin)).append("\n");
-            fw.append(String.valueOf(ymin)).append("\n");
-            fw.append(String.valueOf(xmax)).append("\n");
-            fw.append(String.valueOf(ymax));
-            fw.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        writeExtents(outputPath, width, height, bounds);
 
         log.log("exported extents");
 
@@ -634,11 +1456,10 @@ public class Aloc {
         int th = height;
         int tw = width;
         int tp = 0;
-        int[][] cells = new int[tw * th][2];
+        int[] cells = AlocArena.ints(tw * th, false);
         for (int i = 0; i < height; i++) {
             for (int j = 0; j < width; j++) {
-                cells[tp][0] = j;
-                cells[tp][1] = i;
+                cells[tp] = i * width + j;
                 tp++;
             }
         }
@@ -647,64 +1468,53 @@ public class Aloc {
 
         log.log("Cut cells count: " + cells.length);
 
-        //transform cells numbers to long/lat numbers
-        double[][] points = new double[cells.length][2];
-        for (int i = 0; i < cells.length; i++) {
-            points[i][0] = xmin + cells[i][0] * xres;
-            points[i][1] = ymin + cells[i][1] * yres;
-        }
-
         //initialize data structure to hold everything
         // each data piece: row1[col1, col2, ...] row2[col1, col2, ...] row3...
         int remainingLength = cells.length;
         int step = (int) Math.floor(remainingLength / (double) pieces);
         for (int i = 0; i < pieces; i++) {
             if (i == pieces - 1) {
-                data.add(new float[remainingLength * files.length]);
+                data.add(AlocArena.floats(remainingLength * files.length, false));
             } else {
-                data.add(new float[step * files.length]);
+                data.add(AlocArena.floats(step * files.length, false));
                 remainingLength -= step;
             }
         }
 
-        //iterate for layers
+        //iterate for layers, sampled a band of rows at a time
+        int bandRows = Math.max(1, 65536 / width);
         double[] layerExtents = new double[files.length * 2];
         for (int j = 0; j < files.length; j++) {
             String gridFilename = files[j].getPath().substring(0, files[j].getPath().length() - 4);
             Grid g = new Grid(gridFilename);
-            float[] v = g.getValues2(points);
 
-            //row range standardization
             float minv = Float.MAX_VALUE;
             float maxv = Float.MAX_VALUE * -1;
-            for (int i = 0; i < v.length; i++) {
-                if (v[i] < minv) {
-                    minv = v[i];
-                }
-                if (v[i] > maxv) {
-                    maxv = v[i];
-                }
-            }
-            float range = maxv - minv;
-            if (range > 0) {
-                for (int i = 0; i < v.length; i++) {
-                    v[i] = (v[i] - minv) / range;
-                }
-            } else {
-                for (int i = 0; i < v.length; i++) {
-                    v[i] = 0;
+            for (int firstRow = 0; firstRow < height; firstRow += bandRows) {
+                int rowCount = Math.min(bandRows, height - firstRow);
+                float[] v = g.getValuesBlock(xmin, ymin, xres, yres, width, firstRow, rowCount);
+                for (int i = 0, n = firstRow * width; i < v.length; i++, n++) {
+                    if (v[i] < minv) {
+                        minv = v[i];
+                    }
+                    if (v[i] > maxv) {
+                        maxv = v[i];
+                    }
+                    int p = step == 0 ? pieces - 1 : Math.min(n / step, pieces - 1);
+                    ((float[]) data.get(p))[(n - p * step) * files.length + j] = v[i];
                 }
             }
-            layerExtents[j * 2] = minv;
-            layerExtents[j * 2 + 1] = maxv;
 
-            //iterate for pieces
+            //row range standardization
+            float range = maxv - minv;
             for (int i = 0; i < pieces; i++) {
                 float[] d = (float[]) data.get(i);
-                for (int k = j, n = i * step; k < d.length; k += files.length, n++) {
-                    d[k] = v[n];
+                for (int k = j; k < d.length; k += files.length) {
+                    d[k] = range > 0 ? (d[k] - minv) / range : 0;
                 }
             }
+            layerExtents[j * 2] = minv;
+            layerExtents[j * 2 + 1] = maxv;
 
             log.log("opened grid: " + files[j].getName());
         }
@@ -733,45 +1543,245 @@ public class Aloc {
                     }
                     newPos += files.length;
                     if (newCellPos < currentCellPos) {
-                        cells[newCellPos][0] = cells[currentCellPos][0];
-                        cells[newCellPos][1] = cells[currentCellPos][1];
+                        cells[newCellPos] = cells[currentCellPos];
                     }
                     newCellPos++;
                 }
                 currentCellPos++;
             }
             if (newPos < d.length) {
-                d = java.util.Arrays.copyOf(d, newPos);
-                data.set(i, d);
+                data.set(i, java.util.Arrays.copyOf(d, newPos));
+                AlocArena.release(d);
             }
         }
 
-        //remove zero length data pieces
-        for (int i = pieces - 1; i >= 0; i--) {
+        //rebalance data pieces to rowsPerPiece, or fewer rows for at least
+        //the loaded number of pieces
+        int nRows = 0;
+        for (int i = 0; i < pieces; i++) {
+            nRows += ((float[]) data.get(i)).length / files.length;
+        }
+        int rows = Math.max(1, Math.min(rowsPerPiece, (nRows + pieces - 1) / pieces));
+        ArrayList<Object> balanced = new ArrayList<Object>();
+        float[] current = null;
+        int currentPos = 0;
+        int remainingRows = nRows;
+        for (int i = 0; i < pieces; i++) {
             float[] d = (float[]) data.get(i);
-            if (d.length == 0) {
-                data.remove(i);
+            data.set(i, null);
+            int pos = 0;
+            while (pos < d.length) {
+                if (current == null) {
+                    current = AlocArena.floats(Math.min(rows, remainingRows) * files.length, false);
+                    remainingRows -= current.length / files.length;
+                    currentPos = 0;
+                }
+                int n = Math.min(d.length - pos, current.length - currentPos);
+                System.arraycopy(d, pos, current, currentPos, n);
+                pos += n;
+                currentPos += n;
+                if (currentPos == current.length) {
+                    balanced.add(current);
+                    current = null;
+                }
             }
+            AlocArena.release(d);
         }
+        data = balanced;
+
+        log.log("data pieces: " + data.size() + " of " + rows + " rows");
 
         //add cells reference to output
         data.add(cells);
 
         //add extents to output
+        data.add(dataExtents(width, height, bounds, layerExtents));
+
+        log.log("cleaned data");
+
+        return data;
+    }
+
+    /**
+     * loads grids the same as loadGrids, into data pieces in a memory-mapped
+     * file, outputPath/aloc.data, or in direct buffers of offHeap
+     * <p/>
+     * layers are read twice in bands of rows, first for the range of each
+     * layer and the cells without missing values, then for the data pieces.
+     * Only the cells of the extent are held in the heap.
+     *
+     * @param offHeap direct buffers for the data pieces, null to map
+     *                outputPath/aloc.data
+     * @return data pieces as FloatBuffer, cells and extents
+     */
+    private static ArrayList<Object> loadGridsStreamed(File[] files, double[] bounds, int pieces, int rowsPerPiece, String outputPath, AlocOffHeap offHeap, AnalysisLog log) {
+        double xmin = bounds[0];
+        double ymin = bounds[1];
+        double xres = bounds[4];
+        double yres = bounds[5];
+
+        if (files.length < 2) {
+            log.err("Fewer than two layers with postive range.");
+
+            return null;
+        }
+
+        int nCols = files.length;
+        int width = (int) Math.ceil((bounds[2] - xmin) / xres);
+        int height = (int) Math.ceil((bounds[3] - ymin) / yres);
+
+        writeExtents(outputPath, width, height, bounds);
+
+        log.log("exported extents");
+
+        Grid[] grids = new Grid[nCols];
+        float[] layerMin = new float[nCols];
+        float[] layerMax = new float[nCols];
+        for (int j = 0; j < nCols; j++) {
+            grids[j] = new Grid(files[j].getPath().substring(0, files[j].getPath().length() - 4));
+            layerMin[j] = Float.MAX_VALUE;
+            layerMax[j] = Float.MAX_VALUE * -1;
+        }
+        int bandRows = Math.max(1, 65536 / width);
+
+        //layer ranges and cells without missing values
+        int[] cells = new int[Math.max(1, Math.min(width * height, 1 << 20))];
+        int nRows = 0;
+        float[][] v = new float[nCols][];
+        for (int firstRow = 0; firstRow < height; firstRow += bandRows) {
+            int rowCount = Math.min(bandRows, height - firstRow);
+            for (int j = 0; j < nCols; j++) {
+                v[j] = grids[j].getValuesBlock(xmin, ymin, xres, yres, width, firstRow, rowCount);
+                for (int i = 0; i < v[j].length; i++) {
+                    if (v[j][i] < layerMin[j]) {
+                        layerMin[j] = v[j][i];
+                    }
+                    if (v[j][i] > layerMax[j]) {
+                        layerMax[j] = v[j][i];
+                    }
+                }
+            }
+            for (int i = 0; i < width * rowCount; i++) {
+                boolean missing = false;
+                for (int j = 0; j < nCols; j++) {
+                    if (Float.isNaN(v[j][i])) {
+                        missing = true;
+                    }
+                }
+                if (!missing) {
+                    if (nRows == cells.length) {
+                        cells = java.util.Arrays.copyOf(cells, (int) Math.min((long) width * height, cells.length * 2L));
+                    }
+                    cells[nRows++] = firstRow * width + i;
+                }
+            }
+        }
+        cells = java.util.Arrays.copyOf(cells, nRows);
+
+        log.log("determined target cells");
+
+        //data pieces of rowsPerPiece, or fewer rows for at least pieces
+        int rows = Math.max(1, Math.min(rowsPerPiece, (nRows + pieces - 1) / pieces));
+        long[] pieceBytes = new long[(nRows + rows - 1) / rows];
+        for (int i = 0; i < pieceBytes.length; i++) {
+            pieceBytes[i] = (long) Math.min(rows, nRows - i * rows) * nCols * 4;
+        }
+        String dataFilename = outputPath + File.separator + "aloc.data";
+        ByteBuffer[] mapped;
+        if (offHeap != null) {
+            mapped = offHeap.allocate(pieceBytes);
+            dataFilename = "off-heap memory";
+        } else {
+            try {
+                mapped = AlocPieceFile.map(dataFilename, pieceBytes);
+            } catch (IOException e) {
+                log.err("cannot map " + dataFilename);
+                e.printStackTrace();
+                return null;
+            }
+        }
+        ArrayList<Object> data = new ArrayList<Object>();
+        for (int i = 0; i < mapped.length; i++) {
+            data.add(mapped[i].asFloatBuffer());
+        }
+
+        //row range standardized values of the cells
+        float[] row = new float[nCols];
+        int piece = 0;
+        int next = 0;
+        for (int firstRow = 0; firstRow < height && next < nRows; firstRow += bandRows) {
+            int rowCount = Math.min(bandRows, height - firstRow);
+            for (int j = 0; j < nCols; j++) {
+                v[j] = grids[j].getValuesBlock(xmin, ymin, xres, yres, width, firstRow, rowCount);
+            }
+            for (; next < nRows && cells[next] < (firstRow + rowCount) * width; next++) {
+                int i = cells[next] - firstRow * width;
+                for (int j = 0; j < nCols; j++) {
+                    float range = layerMax[j] - layerMin[j];
+                    row[j] = range > 0 ? (v[j][i] - layerMin[j]) / range : 0;
+                }
+                FloatBuffer fb = (FloatBuffer) data.get(piece);
+                fb.put(row);
+                if (!fb.hasRemaining()) {
+                    fb.rewind();
+                    piece++;
+                }
+            }
+        }
+
+        log.log("finished opening grids");
+        log.log("data pieces: " + data.size() + " of " + rows + " rows, in " + dataFilename);
+
+        double[] layerExtents = new double[nCols * 2];
+        for (int j = 0; j < nCols; j++) {
+            layerExtents[j * 2] = layerMin[j];
+            layerExtents[j * 2 + 1] = layerMax[j];
+        }
+        data.add(cells);
+        data.add(dataExtents(width, height, bounds, layerExtents));
+
+        log.log("cleaned data");
+
+        return data;
+    }
+
+    /**
+     * writes outputPath/extents.txt
+     *
+     * @param bounds layer bounds as xmin, ymin, xmax, ymax
+     */
+    static void writeExtents(String outputPath, int width, int height, double[] bounds) {
+        String extentsFilename = outputPath + File.separator + "extents.txt";
+        try {
+            FileWriter fw = new FileWriter(extentsFilename);
+            fw.append(String.valueOf(width)).append("\n");
+            fw.append(String.valueOf(height)).append("\n");
+            fw.append(String.valueOf(bounds[0])).append("\n");
+            fw.append(String.valueOf(bounds[1])).append("\n");
+            fw.append(String.valueOf(bounds[2])).append("\n");
+            fw.append(String.valueOf(bounds[3]));
+            fw.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param bounds       layer bounds as xmin, ymin, xmax, ymax
+     * @param layerExtents min and max of each layer
+     * @return extents of the data pieces, width, height, xmin, ymin, xmax,
+     * ymax then the min and max of each layer
+     */
+    static double[] dataExtents(int width, int height, double[] bounds, double[] layerExtents) {
         double[] extents = new double[6 + layerExtents.length];
         extents[0] = width;
         extents[1] = height;
-        extents[2] = xmin;
-        extents[3] = ymin;
-        extents[4] = xmax;
-        extents[5] = ymax;
+        for (int i = 0; i < 4; i++) {
+            extents[2 + i] = bounds[i];
+        }
         for (int i = 0; i < layerExtents.length; i++) {
             extents[6 + i] = layerExtents[i];
         }
-        data.add(extents);
-
-        log.log("cleaned data");
-
-        return data;
+        return extents;
     }
 }
@@ -0,0 +1,330 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis;
+
+import au.org.ala.spatial.analysis.aloc.AlocArena;
+import au.org.ala.spatial.analysis.aloc.AlocOptions;
+import au.org.ala.spatial.util.GridCache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ALOC classifications run by a long-lived process, so that each job does
+ * not pay for JVM startup and a cold JIT
+ * <p/>
+ * the daemon listens on a local port. A client sends one job as a line of
+ * tab separated Aloc.main arguments, without the number of threads, and
+ * receives the log messages of the job as they are written, then
+ * "done\t[output file]" for each output file, or "failed", and the
+ * connection is closed.
+ * <p/>
+ * jobs are queued in the order received. A job starts when its estimated
+ * memory, see AlocEstimate, fits in the memory of the daemon not held by
+ * running jobs, and fewer than the most concurrent jobs are running. A job
+ * estimated larger than the memory of the daemon starts when no other job
+ * is running. Jobs with preflight=true return their estimate as
+ * "estimate\t[estimate]" without queueing.
+ * <p/>
+ * the work of jobs runs on one pool of the threads of the daemon, so that
+ * running jobs together use no more than those threads and the threads
+ * stay warm from one job to the next. Tasks of concurrent jobs take turns
+ * on the pool. Paths of a job, including
+ * warm start, predict, matrix cache and result cache paths, are resolved
+ * where the client runs.
+ * <p/>
+ * with a layer cache, grid files decoded by one job are kept for the jobs
+ * that follow, see GridCache. With an arena, the large arrays of one job
+ * are reused by the jobs that follow, see AlocArena.
+ *
+ * @author adam
+ */
+public class AlocDaemon {
+
+    static final String USAGE = "serve <port> <number of threads> [name=value settings]\n"
+            + "    jobs=<most concurrent jobs, default the number of threads>\n"
+            + "    memory=<MB of memory for jobs, default the maximum heap less the layer cache and arena>\n"
+            + "    layercache=<MB of decoded layers kept for following jobs, default 0>\n"
+            + "    compact=true to keep BYTE, UBYTE and SHORT layers in their own datatype\n"
+            + "    arena=<MB of arrays of finished jobs kept for following jobs, default 0>\n"
+            + "submit <port> <grid files directory> <number of groups> <output path> [name=value settings of Aloc]\n";
+
+    //resources not held by running jobs
+    int threads;
+    long memory;
+    long freeMemory;
+    int jobs;
+    int running;
+
+    //jobs waiting to start, in order received
+    LinkedList<Object> queue = new LinkedList<Object>();
+
+    //threads of all jobs
+    ExecutorService executor;
+
+    //settings of Aloc that are paths
+    static final String[] PATH_SETTINGS = {"warmstart", "predict", "matrixcache", "resultcache"};
+
+    public static void main(String[] args) {
+        if (args.length >= 3 && args[0].equals("serve")) {
+            AlocDaemon daemon = new AlocDaemon();
+            daemon.threads = Integer.parseInt(args[2]);
+            daemon.jobs = daemon.threads;
+            long layerCache = 0;
+            boolean compact = false;
+            for (int i = 3; i < args.length; i++) {
+                String[] setting = args[i].split("=", 2);
+                if (setting.length < 2) {
+                    System.out.println("unknown setting: " + args[i]);
+                } else if (setting[0].equals("jobs")) {
+                    daemon.jobs = Integer.parseInt(setting[1]);
+                } else if (setting[0].equals("memory")) {
+                    daemon.memory = Long.parseLong(setting[1]) << 20;
+                } else if (setting[0].equals("layercache")) {
+                    layerCache = Long.parseLong(setting[1]) << 20;
+                } else if (setting[0].equals("arena")) {
+                    AlocArena.setLimit(Long.parseLong(setting[1]) << 20);
+                } else if (setting[0].equals("compact")) {
+                    compact = Boolean.parseBoolean(setting[1]);
+                } else {
+                    System.out.println("unknown setting: " + args[i]);
+                }
+            }
+            if (layerCache > 0) {
+                GridCache.setBudget(layerCache, compact);
+            }
+            if (daemon.memory <= 0) {
+                daemon.memory = Runtime.getRuntime().maxMemory() - layerCache - AlocArena.getLimit();
+            }
+            daemon.freeMemory = daemon.memory;
+            daemon.executor = Executors.newFixedThreadPool(daemon.threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "aloc");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            daemon.serve(Integer.parseInt(args[1]));
+        } else if (args.length >= 5 && args[0].equals("submit")) {
+            String[] job = new String[args.length - 2];
+            System.arraycopy(args, 2, job, 0, job.length);
+            if (!submit(Integer.parseInt(args[1]), job)) {
+                System.exit(1);
+            }
+        } else {
+            System.out.println(USAGE);
+        }
+    }
+
+    /**
+     * accept jobs until the process is stopped
+     */
+    void serve(int port) {
+        try {
+            ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(null));
+            System.out.println("ALOC daemon on port " + server.getLocalPort() + ", " + threads + " threads, "
+                    + (memory >> 20) + " MB for up to " + jobs + " jobs"
+                    + (GridCache.enabled() ? ", " + (GridCache.getBudget() >> 20) + " MB layer cache" : ""));
+            while (true) {
+                final Socket socket = server.accept();
+                Thread t = new Thread() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                };
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * read a job, queue it and return its progress and outputs
+     */
+    void handle(Socket socket) {
+        PrintWriter out = null;
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            String line = in.readLine();
+            String[] job = line == null ? new String[0] : line.split("\t");
+            if (job.length < 3) {
+                out.print("failed\texpected: <grid files directory>\t<number of groups>\t<output path>\t[name=value]...\n");
+                return;
+            }
+
+            //Aloc.main arguments, jobs run tasks on all threads of the pool
+            String[] args = new String[job.length + 1];
+            args[0] = job[0];
+            args[1] = job[1];
+            args[2] = String.valueOf(threads);
+            System.arraycopy(job, 2, args, 3, job.length - 2);
+
+            AlocEstimate estimate;
+            boolean preflight;
+            try {
+                estimate = Aloc.estimate(args, new AnalysisLog());
+                preflight = AlocOptions.parse(args, 4).preflight;
+            } catch (Exception e) {
+                out.print("failed\t" + e + "\n");
+                return;
+            }
+            if (preflight) {
+                out.print("estimate\t" + estimate + "\n");
+                return;
+            }
+
+            File outputPath = new File(args[3]);
+            outputPath.mkdirs();
+
+            Object ticket = new Object();
+            synchronized (this) {
+                out.print("queued\t" + (queue.size() + running) + " jobs ahead, " + estimate + "\n");
+                out.flush();
+                queue.add(ticket);
+            }
+            start(ticket, estimate.memoryBytes());
+            out.print("started\t" + threads + " shared threads\n");
+            out.flush();
+
+            boolean success = false;
+            try {
+                success = Aloc.run(args, out, executor);
+            } catch (Exception e) {
+                out.print("ERROR: " + e + "\n");
+            } finally {
+                finish(estimate.memoryBytes());
+            }
+            if (success) {
+                File[] files = outputPath.listFiles();
+                for (int i = 0; files != null && i < files.length; i++) {
+                    out.print("done\t" + files[i].getPath() + "\n");
+                }
+            } else {
+                out.print("failed\n");
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (out != null) {
+                out.print("failed\t" + e + "\n");
+            }
+        } finally {
+            if (out != null) {
+                out.flush();
+            }
+            try {
+                socket.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * wait until a job is first in the queue and fits in the free memory.
+     * Threads are not reserved, the work of all jobs shares the pool.
+     *
+     * @param ticket job in the queue
+     * @param bytes  estimated memory of the job
+     */
+    synchronized void start(Object ticket, long bytes) throws InterruptedException {
+        try {
+            while (queue.getFirst() != ticket
+                    || (running > 0 && (running >= jobs || bytes > freeMemory))) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            queue.remove(ticket);
+            notifyAll();
+            throw e;
+        }
+        queue.removeFirst();
+        freeMemory -= bytes;
+        running++;
+        notifyAll();
+    }
+
+    /**
+     * release the memory of a finished job
+     */
+    synchronized void finish(long bytes) {
+        freeMemory += bytes;
+        running--;
+        notifyAll();
+    }
+
+    /**
+     * @param setting name=value setting of Aloc
+     * @return setting with an absolute path when it is a path setting
+     */
+    static String resolve(String setting) {
+        String[] s = setting.split("=", 2);
+        if (s.length == 2 && s[1].length() > 0 && java.util.Arrays.asList(PATH_SETTINGS).contains(s[0])) {
+            return s[0] + "=" + new File(s[1]).getAbsolutePath();
+        }
+        return setting;
+    }
+
+    /**
+     * submit a job to a daemon on this machine and print its progress
+     *
+     * @param port daemon port
+     * @param job  grid files directory, number of groups, output path and
+     *             name=value settings
+     * @return true when the job finished with outputs
+     */
+    static boolean submit(int port, String[] job) {
+        try {
+            Socket socket = new Socket(InetAddress.getByName(null), port);
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < job.length; i++) {
+                //paths are resolved where the client runs
+                sb.append(i == 0 ? "" : "\t").append(i == 0 || i == 2 ? new File(job[i]).getAbsolutePath() : resolve(job[i]));
+            }
+            out.write(sb.append("\n").toString());
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            boolean success = false;
+            String line;
+            while ((line = in.readLine()) != null) {
+                System.out.println(line);
+                if (line.startsWith("done\t") || line.startsWith("estimate\t")) {
+                    success = true;
+                }
+            }
+            socket.close();
+            return success;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
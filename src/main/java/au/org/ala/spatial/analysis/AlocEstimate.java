@@ -0,0 +1,147 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis;
+
+import au.org.ala.spatial.analysis.aloc.AlocOptions;
+import au.org.ala.spatial.util.Grid;
+
+import java.io.File;
+
+/**
+ * peak memory and work of a classification, estimated from the grid file
+ * headers before any layer is read
+ * <p/>
+ * every cell of the extent is counted, as cells with missing values are
+ * not known until layers are read, so estimates are an upper bound for
+ * layers with missing values.
+ *
+ * @author adam
+ */
+class AlocEstimate {
+
+    //memory of the JVM before a job
+    static final long BASE_BYTES = 32L << 20;
+
+    int width;
+    int height;
+    long cells;
+    int layers;
+    int groups;
+    int threads;
+
+    /**
+     * peak heap of the job
+     */
+    long heapBytes;
+
+    /**
+     * peak direct buffers of the job, offheap=true
+     */
+    long directBytes;
+
+    /**
+     * size of memory-mapped files of the job, outofcore=true
+     */
+    long mappedBytes;
+
+    /**
+     * distances calculated each iteration
+     */
+    long distancesPerIteration;
+
+    /**
+     * @param files   grid files to classify, .grd
+     * @param bounds  xmin, ymin, xmax, ymax, xres, yres of the classification
+     * @param groups  number of groups, the largest of a sweep
+     * @param threads number of threads
+     * @throws IllegalArgumentException when there are no files, as there is
+     *                                  no extent
+     */
+    static AlocEstimate estimate(File[] files, double[] bounds, int groups, int threads, AlocOptions options) {
+        if (files.length == 0) {
+            throw new IllegalArgumentException("no layers with positive range to classify");
+        }
+        AlocEstimate e = new AlocEstimate();
+        e.layers = files.length;
+        e.groups = options.sweep != null ? options.sweep[options.sweep.length - 1] : groups;
+        e.threads = threads;
+        e.width = (int) Math.ceil((bounds[2] - bounds[0]) / bounds[4]);
+        e.height = (int) Math.ceil((bounds[3] - bounds[1]) / bounds[5]);
+        e.cells = e.width > 0 && e.height > 0 ? (long) e.width * e.height : 0;
+
+        //largest grid file, decoded whole by loadGrids
+        long gridCells = 0;
+        for (int i = 0; i < files.length; i++) {
+            Grid g = new Grid(files[i].getPath().substring(0, files[i].getPath().length() - 4));
+            gridCells = Math.max(gridCells, (long) g.ncols * g.nrows);
+        }
+
+        long data = e.cells * e.layers * 4;
+        long distances = e.cells * e.groups * 8;
+        long cellsIndex = e.cells * 4;
+
+        //group, distance and allocation of each row, with the distance to
+        //its group for metrics and async=compare
+        long perRow = 4 + 8 + 2 + 8;
+        if (options.async) {
+            perRow += 4 + 8;
+        }
+        if (options.metricsSampleSize >= 0 || options.asyncCompare) {
+            perRow += 8;
+        }
+
+        long load;
+        long engine = cellsIndex + e.cells * perRow;
+        if (options.outOfCore) {
+            //streamed in bands, only the cells in the heap
+            load = cellsIndex;
+            e.mappedBytes = data + distances;
+        } else if (options.offHeap) {
+            load = cellsIndex;
+            e.directBytes = data + distances;
+        } else {
+            //cells, points, data pieces, a layer of cells and a grid
+            load = cellsIndex + e.cells * 40 + data + e.cells * 4 + gridCells * 4;
+            engine += data + distances;
+        }
+
+        //cells and groups, outputs are written a row at a time, with the
+        //data pieces still held
+        long output = cellsIndex * 2 + (options.outOfCore || options.offHeap ? 0 : data);
+        if (options.tileZoom != null) {
+            //levels of detail of tiles, 2 bytes a cell, each a quarter of
+            //the one before
+            output += e.cells * 2 / 3;
+        }
+
+        e.heapBytes = BASE_BYTES + Math.max(load, Math.max(engine, output));
+        e.distancesPerIteration = e.cells * e.groups;
+        return e;
+    }
+
+    /**
+     * @return memory of the job that the JVM must hold, heap and direct
+     * buffers
+     */
+    long memoryBytes() {
+        return heapBytes + directBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "estimate: " + cells + " cells (" + width + " x " + height + "), " + layers + " layers, " + groups + " groups, "
+                + threads + " threads, heap " + (heapBytes >> 20) + "MB, off-heap " + (directBytes >> 20) + "MB, mapped "
+                + (mappedBytes >> 20) + "MB, " + distancesPerIteration + " distances per iteration";
+    }
+}
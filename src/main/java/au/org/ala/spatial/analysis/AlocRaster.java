@@ -0,0 +1,620 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis;
+
+import au.org.ala.spatial.util.Grid;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * groups of a classification as rows of a raster, from the top row down,
+ * read from the cells and groups without a buffer of the whole extent
+ * <p/>
+ * each output is written a row at a time, or by bands of rows encoded in
+ * parallel when there is an executor and the format allows.
+ *
+ * @author adam
+ */
+class AlocRaster {
+
+    //rows buffered by writers
+    static final int BUFFER_BYTES = 1 << 16;
+
+    int width;
+    int height;
+    int[] cells;
+    int[] groups;
+
+    //first index into cells of each row from the bottom of the extent
+    int[] rowStart;
+
+    //largest group number + 1
+    int numberOfGroups;
+
+    //encodes bands of rows, null to encode them in the calling thread
+    ExecutorService executor;
+    boolean shared;
+    int threads;
+
+    /**
+     * @param cells    position of each cell as y * width + x where y is the
+     *                 row from the bottom of the extent
+     * @param groups   group number (0..n-1) of each cell
+     * @param threads  threads encoding bands of rows, shared by writers
+     * @param executor threads of the process to encode bands of rows on, or
+     *                 null to start threads
+     */
+    AlocRaster(int[] cells, int[] groups, int width, int height, int threads, ExecutorService executor) {
+        this.width = width;
+        this.height = height;
+        this.threads = Math.max(1, threads);
+        if (executor != null) {
+            this.executor = executor;
+            shared = true;
+        } else if (threads > 1) {
+            this.executor = Executors.newFixedThreadPool(threads);
+        }
+
+        //cells are loaded in order, sort when they are not
+        boolean sorted = true;
+        for (int i = 1; i < groups.length && sorted; i++) {
+            sorted = cells[i - 1] < cells[i];
+        }
+        if (!sorted) {
+            long[] pairs = new long[groups.length];
+            for (int i = 0; i < groups.length; i++) {
+                pairs[i] = ((long) cells[i] << 32) | (groups[i] & 0xffffffffL);
+            }
+            java.util.Arrays.sort(pairs);
+            cells = new int[pairs.length];
+            groups = new int[pairs.length];
+            for (int i = 0; i < pairs.length; i++) {
+                cells[i] = (int) (pairs[i] >> 32);
+                groups[i] = (int) pairs[i];
+            }
+        }
+        this.cells = cells;
+        this.groups = groups;
+
+        rowStart = new int[height + 1];
+        for (int i = 0; i < groups.length; i++) {
+            rowStart[cells[i] / width + 1]++;
+            if (groups[i] >= numberOfGroups) {
+                numberOfGroups = groups[i] + 1;
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            rowStart[y + 1] += rowStart[y];
+        }
+    }
+
+    /**
+     * get the groups of an output row
+     *
+     * @param row    row from the top of the extent
+     * @param labels receives the group number of each column, -1 for
+     *               missing values
+     */
+    void row(int row, int[] labels) {
+        java.util.Arrays.fill(labels, 0, width, -1);
+        int y = height - row - 1;
+        int offset = y * width;
+        for (int i = rowStart[y]; i < rowStart[y + 1]; i++) {
+            labels[cells[i] - offset] = groups[i];
+        }
+    }
+
+    /**
+     * get the group of one cell
+     *
+     * @param row    row from the top of the extent
+     * @param column column from the left of the extent
+     * @return group number, -1 for missing values
+     */
+    int label(int row, int column) {
+        int y = height - row - 1;
+        int cell = y * width + column;
+        int i = java.util.Arrays.binarySearch(cells, rowStart[y], rowStart[y + 1], cell);
+        return i >= 0 ? groups[i] : -1;
+    }
+
+    /**
+     * stop the threads encoding bands of rows
+     */
+    void close() {
+        if (executor != null && !shared) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * work on a band of output rows
+     */
+    abstract static class Band<T> {
+        /**
+         * encode a band, may run in parallel with other bands
+         */
+        abstract T run(int firstRow, int rowCount) throws Exception;
+
+        /**
+         * receive the result of a band, in the calling thread from the top
+         * band down
+         */
+        void done(int firstRow, T result) throws Exception {
+        }
+    }
+
+    /**
+     * run a task for each band of output rows, in parallel when there is an
+     * executor. Results are passed to Band.done in row order, with a few
+     * bands per thread encoded ahead so that memory is bounded.
+     *
+     * @param bytesPerRow bytes encoded for a row, for bands of about
+     *                    BUFFER_BYTES
+     */
+    <T> void bands(long bytesPerRow, final Band<T> band) throws IOException {
+        bands(bytesPerRow, BUFFER_BYTES, band);
+    }
+
+    /**
+     * @param bandBytes bytes encoded for a band
+     */
+    <T> void bands(long bytesPerRow, long bandBytes, final Band<T> band) throws IOException {
+        int rows = (int) Math.max(1, Math.min(height, bandBytes / Math.max(1, bytesPerRow)));
+        try {
+            if (executor == null) {
+                for (int r = 0; r < height; r += rows) {
+                    band.done(r, band.run(r, Math.min(rows, height - r)));
+                }
+            } else {
+                LinkedList<Future<T>> futures = new LinkedList<Future<T>>();
+                LinkedList<Integer> firstRows = new LinkedList<Integer>();
+                try {
+                    for (int r = 0; r < height || !futures.isEmpty(); ) {
+                        if (r < height && futures.size() < threads * 2) {
+                            final int firstRow = r;
+                            final int rowCount = Math.min(rows, height - r);
+                            futures.add(executor.submit(new Callable<T>() {
+                                @Override
+                                public T call() throws Exception {
+                                    return band.run(firstRow, rowCount);
+                                }
+                            }));
+                            firstRows.add(r);
+                            r += rowCount;
+                        } else {
+                            T result = futures.getFirst().get();
+                            futures.removeFirst();
+                            band.done(firstRows.removeFirst(), result);
+                        }
+                    }
+                } finally {
+                    for (Future<T> f : futures) {
+                        f.cancel(false);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * write a PNG of the group colours, transparent for missing values
+     * <p/>
+     * an 8 bit palette image of the colours, index 0 transparent, when there
+     * are fewer than 256 groups, otherwise 8 bit RGBA. Bands of rows are
+     * deflated in parallel and written in order as one zlib stream when the
+     * runtime has sync flush (Java 7), otherwise rows are deflated in order.
+     *
+     * @param colours RGB colours of groups
+     */
+    void writePng(String filename, int[][] colours) throws IOException {
+        final boolean palette = numberOfGroups < 256;
+        final int pixelBytes = palette ? 1 : 4;
+        final int rowBytes = 1 + width * pixelBytes;
+
+        final byte[][] pixels = pngPixels(colours, numberOfGroups, palette);
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), BUFFER_BYTES));
+        final Deflater deflater = new Deflater();
+        try {
+            writePngHeader(out, width, height, colours, numberOfGroups, palette);
+
+            final boolean parallel = DEFLATE_FLUSH != null && executor != null;
+            final long[] adler = {1};
+            final byte[] idat = new byte[BUFFER_BYTES];
+            bands(rowBytes, PNG_BAND_BYTES, new Band<PngBand>() {
+                @Override
+                PngBand run(int firstRow, int rowCount) throws Exception {
+                    //filter type 0 for each row
+                    int[] labels = new int[width];
+                    byte[] b = new byte[rowBytes * rowCount];
+                    int p = 0;
+                    for (int r = firstRow; r < firstRow + rowCount; r++) {
+                        row(r, labels);
+                        b[p++] = 0;
+                        for (int c = 0; c < width; c++) {
+                            byte[] v = pixels[labels[c] < 0 ? numberOfGroups : labels[c]];
+                            for (int i = 0; i < v.length; i++) {
+                                b[p++] = v[i];
+                            }
+                        }
+                    }
+
+                    PngBand band = new PngBand();
+                    band.data = b;
+                    band.length = b.length;
+                    if (parallel) {
+                        band.compress(firstRow == 0, firstRow + rowCount == height);
+                    }
+                    return band;
+                }
+
+                @Override
+                void done(int firstRow, PngBand band) throws Exception {
+                    if (band.compressed) {
+                        writeChunk(out, "IDAT", band.data, band.length);
+                        adler[0] = adler32Combine(adler[0], band.adler, band.rawLength);
+                    } else {
+                        deflater.setInput(band.data, 0, band.length);
+                        while (!deflater.needsInput()) {
+                            int n = deflater.deflate(idat);
+                            if (n > 0) {
+                                writeChunk(out, "IDAT", idat, n);
+                            }
+                        }
+                    }
+                }
+            });
+
+            if (parallel) {
+                writeChunk(out, "IDAT", ByteBuffer.allocate(4).putInt((int) adler[0]).array(), 4);
+            } else {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(idat);
+                    if (n > 0) {
+                        writeChunk(out, "IDAT", idat, n);
+                    }
+                }
+            }
+            writeChunk(out, "IEND", idat, 0);
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    /**
+     * @param palette true for palette indexes, false for RGBA
+     * @return PNG pixel bytes of each group, the last is the missing value
+     */
+    static byte[][] pngPixels(int[][] colours, int numberOfGroups, boolean palette) {
+        byte[][] pixels = new byte[numberOfGroups + 1][];
+        for (int g = 0; g < numberOfGroups; g++) {
+            pixels[g] = palette ? new byte[]{(byte) (g + 1)}
+                    : new byte[]{(byte) colours[g][0], (byte) colours[g][1], (byte) colours[g][2], (byte) 0xff};
+        }
+        pixels[numberOfGroups] = new byte[palette ? 1 : 4];
+        return pixels;
+    }
+
+    /**
+     * write the PNG signature, IHDR and, for a palette image, PLTE and tRNS
+     *
+     * @param palette true for an 8 bit palette image, index 0 transparent,
+     *                false for 8 bit RGBA
+     */
+    static void writePngHeader(DataOutputStream out, int width, int height, int[][] colours, int numberOfGroups, boolean palette) throws IOException {
+        out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+
+        ByteBuffer ihdr = ByteBuffer.allocate(13);
+        ihdr.putInt(width).putInt(height).put((byte) 8).put((byte) (palette ? 3 : 6)).put((byte) 0).put((byte) 0).put((byte) 0);
+        writeChunk(out, "IHDR", ihdr.array(), 13);
+
+        if (palette) {
+            byte[] plte = new byte[(numberOfGroups + 1) * 3];
+            for (int g = 0; g < numberOfGroups; g++) {
+                plte[(g + 1) * 3] = (byte) colours[g][0];
+                plte[(g + 1) * 3 + 1] = (byte) colours[g][1];
+                plte[(g + 1) * 3 + 2] = (byte) colours[g][2];
+            }
+            writeChunk(out, "PLTE", plte, plte.length);
+
+            //alpha of index 0, the others are opaque
+            writeChunk(out, "tRNS", new byte[]{0}, 1);
+        }
+    }
+
+    //uncompressed bytes of a band of a PNG, larger than other bands as each
+    //is deflated without the bands before it
+    static final int PNG_BAND_BYTES = 1 << 20;
+
+    //Deflater.deflate(byte[], int, int, int) of Java 7, for sync flush
+    static final Method DEFLATE_FLUSH = deflateFlush();
+    static final int SYNC_FLUSH = 2;
+
+    static Method deflateFlush() {
+        try {
+            return Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * rows of a band of a PNG, filtered, or deflated as part of the zlib
+     * stream of the image
+     */
+    static class PngBand {
+        byte[] data;
+        int length;
+        boolean compressed;
+        long adler;
+        int rawLength;
+
+        /**
+         * deflate the band on its own, ending byte aligned so that bands
+         * are joined in order into one stream
+         *
+         * @param first write the zlib header
+         * @param last  end the stream, the adler32 of the stream is written
+         *              after
+         */
+        void compress(boolean first, boolean last) throws Exception {
+            Adler32 a = new Adler32();
+            a.update(data, 0, length);
+            adler = a.getValue();
+            rawLength = length;
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 4 + 64);
+            if (first) {
+                //zlib header, deflate with a 32K window and default level
+                bytes.write(0x78);
+                bytes.write(0x9c);
+            }
+            Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                d.setInput(data, 0, length);
+                byte[] buffer = new byte[BUFFER_BYTES];
+                if (last) {
+                    d.finish();
+                    while (!d.finished()) {
+                        bytes.write(buffer, 0, d.deflate(buffer));
+                    }
+                } else {
+                    int n;
+                    do {
+                        n = (Integer) DEFLATE_FLUSH.invoke(d, buffer, 0, buffer.length, SYNC_FLUSH);
+                        bytes.write(buffer, 0, n);
+                    } while (n == buffer.length);
+                }
+            } finally {
+                d.end();
+            }
+            data = bytes.toByteArray();
+            length = data.length;
+            compressed = true;
+        }
+    }
+
+    /**
+     * adler32 of two byte sequences joined, from the adler32 of each, as in
+     * zlib adler32_combine
+     */
+    static long adler32Combine(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= (base << 1)) {
+            sum2 -= (base << 1);
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] t = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(t);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(t);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * write a grid of group numbers 1..n in the smallest integer type that
+     * holds them, INT1U with missing values 0 for up to 255 groups, INT2S
+     * with missing values -1 for up to 32767 groups, otherwise INT4BYTES
+     * with missing values -1
+     *
+     * @param filename grid file name without .gri or .grd
+     * @param extents  width, height, xmin, ymin, xmax, ymax
+     * @param res      cell size
+     */
+    void writeGrid(String filename, double[] extents, float res) throws IOException {
+        final Grid g = new Grid(null);
+        final int nbytes = numberOfGroups <= 255 ? 1 : (numberOfGroups <= Short.MAX_VALUE ? 2 : 4);
+        final int noData = nbytes == 1 ? 0 : -1;
+        final int[] range = {Integer.MAX_VALUE, Integer.MIN_VALUE};
+
+        RandomAccessFile raf = new RandomAccessFile(filename + ".gri", "rw");
+        try {
+            raf.setLength((long) width * height * nbytes);
+            final FileChannel fc = raf.getChannel();
+
+            //rows are the same length, bands are written at their position
+            bands((long) width * nbytes, new Band<int[]>() {
+                @Override
+                int[] run(int firstRow, int rowCount) throws Exception {
+                    int min = Integer.MAX_VALUE;
+                    int max = Integer.MIN_VALUE;
+                    int[] labels = new int[width];
+                    ByteBuffer bb = ByteBuffer.allocate(width * nbytes * rowCount);
+                    bb.order(g.byteorderLSB ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+                    for (int r = firstRow; r < firstRow + rowCount; r++) {
+                        row(r, labels);
+                        for (int c = 0; c < width; c++) {
+                            int v = noData;
+                            if (labels[c] >= 0) {
+                                //group numbers 1..n instead of 0..n-1
+                                v = labels[c] + 1;
+                                if (v < min) {
+                                    min = v;
+                                }
+                                if (v > max) {
+                                    max = v;
+                                }
+                            }
+                            if (nbytes == 1) {
+                                bb.put((byte) v);
+                            } else if (nbytes == 2) {
+                                bb.putShort((short) v);
+                            } else {
+                                bb.putInt(v);
+                            }
+                        }
+                    }
+                    bb.flip();
+                    long pos = (long) firstRow * width * nbytes;
+                    while (bb.hasRemaining()) {
+                        pos += fc.write(bb, pos);
+                    }
+                    return new int[]{min, max};
+                }
+
+                @Override
+                void done(int firstRow, int[] result) {
+                    range[0] = Math.min(range[0], result[0]);
+                    range[1] = Math.max(range[1], result[1]);
+                }
+            });
+        } finally {
+            raf.close();
+        }
+
+        //no groups, the same as Grid.writeGrid
+        double min = range[0] <= range[1] ? range[0] : Double.MAX_VALUE;
+        double max = range[0] <= range[1] ? range[1] : Double.MAX_VALUE * -1;
+
+        double xres = res;
+        g.writeHeader(filename, extents[2], extents[3], extents[2] + xres * width, extents[3] + xres * height, xres, xres,
+                height, width, min, max, nbytes == 1 ? "INT1U" : (nbytes == 2 ? "INT2S" : "INT4BYTES"), String.valueOf(noData));
+    }
+
+    /**
+     * write an ASCII grid of group numbers 1..n, -1 for missing values.
+     * Values are written as before, e.g. 3.0, from bytes of each group
+     * number formatted once.
+     *
+     * @param extents width, height, xmin, ymin, xmax, ymax
+     * @param res     cell size
+     */
+    void writeAsc(String filename, double[] extents, float res) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("ncols ").append(String.valueOf(width)).append("\n");
+        sb.append("nrows ").append(String.valueOf(height)).append("\n");
+        sb.append("xllcorner ").append(String.valueOf(extents[2])).append("\n");
+        sb.append("yllcorner ").append(String.valueOf(extents[3])).append("\n");
+        sb.append("cellsize ").append(String.valueOf(res)).append("\n");
+        sb.append("NODATA_value ").append(String.valueOf(-1));
+
+        //value of each group, the last is the missing value
+        final byte[][] values = new byte[numberOfGroups + 1][];
+        int longest = 2;
+        for (int i = 0; i < numberOfGroups; i++) {
+            values[i] = String.valueOf((double) (i + 1)).getBytes("US-ASCII");
+            longest = Math.max(longest, values[i].length);
+        }
+        values[numberOfGroups] = "-1".getBytes("US-ASCII");
+        final int rowBytes = 1 + width * (longest + 1);
+
+        FileOutputStream out = new FileOutputStream(filename);
+        try {
+            final FileChannel fc = out.getChannel();
+            write(fc, ByteBuffer.wrap(sb.toString().getBytes("US-ASCII")));
+
+            //rows differ in length, bands are encoded in parallel and
+            //written in order
+            bands(rowBytes, new Band<ByteBuffer>() {
+                @Override
+                ByteBuffer run(int firstRow, int rowCount) throws Exception {
+                    int[] labels = new int[width];
+                    byte[] b = new byte[rowBytes * rowCount];
+                    int p = 0;
+                    for (int r = firstRow; r < firstRow + rowCount; r++) {
+                        row(r, labels);
+                        b[p++] = '\n';
+                        for (int c = 0; c < width; c++) {
+                            if (c > 0) {
+                                b[p++] = ' ';
+                            }
+                            byte[] v = values[labels[c] < 0 ? numberOfGroups : labels[c]];
+                            System.arraycopy(v, 0, b, p, v.length);
+                            p += v.length;
+                        }
+                    }
+                    return ByteBuffer.wrap(b, 0, p);
+                }
+
+                @Override
+                void done(int firstRow, ByteBuffer result) throws IOException {
+                    write(fc, result);
+                }
+            });
+            write(fc, ByteBuffer.wrap(new byte[]{'\n'}));
+        } finally {
+            out.close();
+        }
+    }
+
+    static void write(FileChannel fc, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            fc.write(bb);
+        }
+    }
+}
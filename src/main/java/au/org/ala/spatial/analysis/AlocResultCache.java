@@ -0,0 +1,267 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * outputs of previous classifications, copied to the output path of a job
+ * with the same signature in place of classifying again
+ * <p/>
+ * each entry is a directory of the cache named by a hash of the job
+ * signature, holding the output files of the job. Entries least recently
+ * used are removed when the cache is larger than its size.
+ *
+ * @author adam
+ */
+class AlocResultCache {
+
+    //changes when outputs for the same inputs change
+    static final int VERSION = 1;
+
+    //files of the output path that are not outputs
+    static final String[] EXCLUDED = {"aloc.log", "aloc.checkpoint", "aloc.data", "aloc.distances"};
+
+    String path;
+    long size;
+
+    /**
+     * @param path cache directory
+     * @param size most bytes of entries
+     */
+    AlocResultCache(String path, long size) {
+        this.path = path;
+        this.size = size;
+    }
+
+    /**
+     * @param parts job signature, inputs and settings that change outputs
+     * @return entry name, a hash of the signature
+     */
+    static String key(List<String> parts) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(VERSION);
+        for (String s : parts) {
+            sb.append("\n").append(s);
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(sb.toString().getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < hash.length; i++) {
+                name.append(String.format("%02x", hash[i] & 0xff));
+            }
+            return name.toString();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return signature part for a file, its path, size and modification
+     * time
+     */
+    static String stamp(String filename) {
+        File f = new File(filename);
+        String p;
+        try {
+            p = f.getCanonicalPath();
+        } catch (Exception e) {
+            p = f.getAbsolutePath();
+        }
+        return p + "\t" + f.length() + "\t" + f.lastModified();
+    }
+
+    /**
+     * copy the outputs of an entry to an output path
+     *
+     * @return true when the entry exists and was copied
+     */
+    boolean get(String key, String outputPath) {
+        File entry = new File(path, key);
+        if (!entry.isDirectory()) {
+            return false;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        return copy(entry, new File(outputPath), true);
+    }
+
+    /**
+     * add the outputs of an output path as an entry, then remove entries
+     * least recently used until the cache is no larger than its size
+     *
+     * @return true when added
+     */
+    boolean put(String key, String outputPath) {
+        File entry = new File(path, key);
+        if (entry.isDirectory()) {
+            return true;
+        }
+
+        //copied under another name and renamed so that an entry is never
+        //read incomplete
+        File tmp = new File(path, key + "." + Thread.currentThread().getId() + ".tmp");
+        boolean added = copy(new File(outputPath), tmp, false) && tmp.renameTo(entry);
+        if (!added) {
+            delete(tmp);
+        }
+        evict();
+        return added;
+    }
+
+    /**
+     * remove entries least recently used until the cache is no larger than
+     * its size
+     */
+    void evict() {
+        File[] entries = new File(path).listFiles();
+        if (entries == null) {
+            return;
+        }
+        List<File> list = new ArrayList<File>();
+        long total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].isDirectory() && !entries[i].getName().endsWith(".tmp")) {
+                list.add(entries[i]);
+                total += length(entries[i]);
+            }
+        }
+        File[] sorted = list.toArray(new File[list.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long d = a.lastModified() - b.lastModified();
+                return d < 0 ? -1 : (d > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < sorted.length && total > size; i++) {
+            total -= length(sorted[i]);
+            delete(sorted[i]);
+        }
+    }
+
+    /**
+     * copy output files from one directory to another
+     *
+     * @param title rewrite the title of .grd files for their new location
+     */
+    static boolean copy(File from, File to, boolean title) {
+        File[] files = from.listFiles();
+        if (files == null) {
+            return false;
+        }
+        to.mkdirs();
+        for (int i = 0; i < files.length; i++) {
+            File target = new File(to, files[i].getName());
+            if (Arrays.asList(EXCLUDED).contains(files[i].getName())) {
+                continue;
+            }
+            if (files[i].isDirectory()) {
+                if (!copy(files[i], target, title)) {
+                    return false;
+                }
+            } else if (title && files[i].getName().endsWith(".grd")) {
+                if (!copyGrd(files[i], target)) {
+                    return false;
+                }
+            } else if (!copyFile(files[i], target)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean copyFile(File from, File to) {
+        try {
+            FileChannel in = new FileInputStream(from).getChannel();
+            FileChannel out = new FileOutputStream(to).getChannel();
+            try {
+                long pos = 0;
+                long length = in.size();
+                while (pos < length) {
+                    pos += in.transferTo(pos, length - pos, out);
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * copy a grid header with the title of the new file, the same as when
+     * written by exportOutputs
+     */
+    static boolean copyGrd(File from, File to) {
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(from), "UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (sb.length() > 0) {
+                    sb.append("\r\n");
+                }
+                if (line.startsWith("Title=")) {
+                    String p = to.getPath();
+                    sb.append("Title=").append(p.substring(0, p.length() - 4));
+                } else {
+                    sb.append(line);
+                }
+            }
+            br.close();
+            FileWriter fw = new FileWriter(to);
+            fw.append(sb.toString());
+            fw.close();
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    static long length(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long total = 0;
+        File[] files = file.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            total += length(files[i]);
+        }
+        return total;
+    }
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            delete(files[i]);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,312 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * web map tiles of a classification, 256 x 256 PNG tiles in spherical
+ * mercator (EPSG:3857) as zoom/x/y.png, for serving as static files
+ * <p/>
+ * tiles are rendered from the nearest cell of a level of detail of the
+ * groups, where each level halves the cells of the one before by the most
+ * common group of each 2 x 2 cells. The level for a zoom is the coarsest
+ * with cells no larger than a tile pixel. Tiles without cells are not
+ * written.
+ *
+ * @author adam
+ */
+class AlocTiles {
+
+    static final int TILE_SIZE = 256;
+
+    //latitude limit of spherical mercator
+    static final double MAX_LATITUDE = 85.0511287798;
+
+    AlocRaster raster;
+    int[][] colours;
+
+    //cell size, left and top of the extent
+    double res;
+    double xmin;
+    double ymax;
+
+    //group + 1 of each cell of levels of detail, 0 for missing values, by
+    //level - 1. Level 0 is read from the raster.
+    List<char[]> levels = new ArrayList<char[]>();
+
+    /**
+     * @param extents width, height, xmin, ymin, xmax, ymax
+     * @param res     cell size
+     */
+    AlocTiles(AlocRaster raster, int[][] colours, double[] extents, double res) {
+        this.raster = raster;
+        this.colours = colours;
+        this.res = res;
+        this.xmin = extents[2];
+        this.ymax = extents[3] + res * raster.height;
+    }
+
+    /**
+     * write tiles of zoom levels
+     *
+     * @param path    directory to write zoom/x/y.png to
+     * @param minZoom first zoom level
+     * @param maxZoom last zoom level
+     * @param tms     number tile rows from the bottom (TMS) instead of the
+     *                top (XYZ)
+     * @return number of tiles written
+     */
+    int write(String path, int minZoom, int maxZoom, boolean tms) throws IOException {
+        if (raster.numberOfGroups >= Character.MAX_VALUE) {
+            throw new IOException("too many groups for tiles: " + raster.numberOfGroups);
+        }
+        int count = 0;
+        for (int z = minZoom; z <= maxZoom; z++) {
+            count += writeZoom(path, z, tms);
+        }
+        return count;
+    }
+
+    int writeZoom(final String path, final int z, final boolean tms) throws IOException {
+        //level of detail with cells no larger than a tile pixel
+        double pixel = 360.0 / ((long) TILE_SIZE << z);
+        int l = 0;
+        while ((1L << (l + 1)) * res <= pixel && levelWidth(l) > 1 && levelHeight(l) > 1) {
+            l++;
+        }
+        final int level = l;
+        buildLevels(level);
+
+        //tiles over the extent
+        long n = 1L << z;
+        double xmax = xmin + res * raster.width;
+        double ymin = ymax - res * raster.height;
+        int tx0 = (int) Math.max(0, Math.floor((xmin + 180) / 360 * n));
+        int tx1 = (int) Math.min(n - 1, Math.floor((xmax + 180) / 360 * n));
+        int ty0 = (int) Math.max(0, Math.floor(tileY(Math.min(ymax, MAX_LATITUDE)) * n));
+        int ty1 = (int) Math.min(n - 1, Math.floor(tileY(Math.max(ymin, -MAX_LATITUDE)) * n));
+
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int x = tx0; x <= tx1; x++) {
+            for (int y = ty0; y <= ty1; y++) {
+                final int tx = x;
+                final int ty = y;
+                tasks.add(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return writeTile(path, z, tx, ty, tms, level) ? 1 : 0;
+                    }
+                });
+            }
+        }
+
+        int count = 0;
+        try {
+            if (raster.executor == null) {
+                for (Callable<Integer> task : tasks) {
+                    count += task.call();
+                }
+            } else {
+                for (Future<Integer> f : raster.executor.invokeAll(tasks)) {
+                    count += f.get();
+                }
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        return count;
+    }
+
+    /**
+     * @return y of a latitude in spherical mercator, 0 at the top and 1 at
+     * the bottom
+     */
+    static double tileY(double latitude) {
+        double r = Math.toRadians(latitude);
+        return (1 - Math.log(Math.tan(r) + 1 / Math.cos(r)) / Math.PI) / 2;
+    }
+
+    /**
+     * render a tile
+     *
+     * @return false when the tile has no cells and is not written
+     */
+    boolean writeTile(String path, int z, int tx, int ty, boolean tms, int level) throws IOException {
+        double n = (double) ((long) TILE_SIZE << z);
+        double cellSize = res * (1L << level);
+        int w = levelWidth(level);
+        int h = levelHeight(level);
+
+        //cell column of each pixel column, and cell row of each pixel row
+        int[] columns = new int[TILE_SIZE];
+        int[] rows = new int[TILE_SIZE];
+        for (int i = 0; i < TILE_SIZE; i++) {
+            double lon = ((long) tx * TILE_SIZE + i + 0.5) / n * 360 - 180;
+            double lat = Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * ((long) ty * TILE_SIZE + i + 0.5) / n))));
+            double c = Math.floor((lon - xmin) / cellSize);
+            double r = Math.floor((ymax - lat) / cellSize);
+            columns[i] = c >= 0 && c < w ? (int) c : -1;
+            rows[i] = r >= 0 && r < h ? (int) r : -1;
+        }
+
+        boolean palette = raster.numberOfGroups < 256;
+        byte[][] pixels = AlocRaster.pngPixels(colours, raster.numberOfGroups, palette);
+        int rowBytes = 1 + TILE_SIZE * (palette ? 1 : 4);
+        byte[] b = new byte[rowBytes * TILE_SIZE];
+        char[] cells = level == 0 ? null : levels.get(level - 1);
+        boolean empty = true;
+        int p = 0;
+        for (int py = 0; py < TILE_SIZE; py++) {
+            //filter type 0
+            b[p++] = 0;
+            int r = rows[py];
+            for (int px = 0; px < TILE_SIZE; px++) {
+                int c = columns[px];
+                int g = -1;
+                if (r >= 0 && c >= 0) {
+                    g = level == 0 ? raster.label(r, c) : cells[r * w + c] - 1;
+                }
+                if (g >= 0) {
+                    empty = false;
+                }
+                byte[] v = pixels[g < 0 ? raster.numberOfGroups : g];
+                for (int i = 0; i < v.length; i++) {
+                    b[p++] = v[i];
+                }
+            }
+        }
+        if (empty) {
+            return false;
+        }
+
+        File file = new File(path + File.separator + z + File.separator + tx + File.separator
+                + (tms ? (1L << z) - 1 - ty : ty) + ".png");
+        file.getParentFile().mkdirs();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(b.length / 4 + 1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        AlocRaster.writePngHeader(out, TILE_SIZE, TILE_SIZE, colours, raster.numberOfGroups, palette);
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(b);
+            deflater.finish();
+            byte[] idat = new byte[AlocRaster.BUFFER_BYTES];
+            while (!deflater.finished()) {
+                int len = deflater.deflate(idat);
+                if (len > 0) {
+                    AlocRaster.writeChunk(out, "IDAT", idat, len);
+                }
+            }
+            AlocRaster.writeChunk(out, "IEND", idat, 0);
+        } finally {
+            deflater.end();
+        }
+
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            bytes.writeTo(fos);
+        } finally {
+            fos.close();
+        }
+        return true;
+    }
+
+    int levelWidth(int level) {
+        return (int) ((raster.width + (1L << level) - 1) >> level);
+    }
+
+    int levelHeight(int level) {
+        return (int) ((raster.height + (1L << level) - 1) >> level);
+    }
+
+    /**
+     * build levels of detail up to a level, each from the one before
+     */
+    synchronized void buildLevels(int level) {
+        for (int l = levels.size() + 1; l <= level; l++) {
+            int w = levelWidth(l);
+            int h = levelHeight(l);
+            char[] cells = new char[w * h];
+            if (l == 1) {
+                //from rows of the raster
+                int[] top = new int[raster.width];
+                int[] bottom = new int[raster.width];
+                for (int r = 0; r < h; r++) {
+                    raster.row(r * 2, top);
+                    if (r * 2 + 1 < raster.height) {
+                        raster.row(r * 2 + 1, bottom);
+                    } else {
+                        java.util.Arrays.fill(bottom, -1);
+                    }
+                    for (int c = 0; c < w; c++) {
+                        int c2 = c * 2 + 1 < raster.width ? c * 2 + 1 : c * 2;
+                        cells[r * w + c] = (char) majority(top[c * 2] + 1, c2 > c * 2 ? top[c2] + 1 : 0,
+                                bottom[c * 2] + 1, c2 > c * 2 ? bottom[c2] + 1 : 0);
+                    }
+                }
+            } else {
+                char[] previous = levels.get(l - 2);
+                int pw = levelWidth(l - 1);
+                int ph = levelHeight(l - 1);
+                for (int r = 0; r < h; r++) {
+                    for (int c = 0; c < w; c++) {
+                        int i = r * 2 * pw + c * 2;
+                        boolean right = c * 2 + 1 < pw;
+                        boolean below = r * 2 + 1 < ph;
+                        cells[r * w + c] = (char) majority(previous[i], right ? previous[i + 1] : 0,
+                                below ? previous[i + pw] : 0, right && below ? previous[i + pw + 1] : 0);
+                    }
+                }
+            }
+            levels.add(cells);
+        }
+    }
+
+    /**
+     * @return most common of 4 values that are not 0, the first of those
+     * equally common, or 0 when all are 0
+     */
+    static int majority(int a, int b, int c, int d) {
+        int[] v = {a, b, c, d};
+        int best = 0;
+        int bestCount = 0;
+        for (int i = 0; i < 4; i++) {
+            if (v[i] != 0) {
+                int count = 0;
+                for (int j = i; j < 4; j++) {
+                    if (v[j] == v[i]) {
+                        count++;
+                    }
+                }
+                if (count > bestCount) {
+                    best = v[i];
+                    bestCount = count;
+                }
+            }
+        }
+        return best;
+    }
+}
@@ -14,6 +14,7 @@
 package au.org.ala.spatial.analysis;
 
 import java.io.FileWriter;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 
@@ -23,6 +24,13 @@ public class AnalysisLog {
 
     FileWriter fw;
     String filename;
+    Writer forward;
+
+    /**
+     * log to System.out and System.err only
+     */
+    public AnalysisLog() {
+    }
 
     public AnalysisLog(String filename) {
         this.filename = filename;
@@ -48,7 +56,17 @@ public class AnalysisLog {
         output(s, true);
     }
 
-    void output(String s, boolean error) {
+    /**
+     * also write messages to a writer, e.g. the progress of a job for a
+     * client
+     *
+     * @param w writer, null for none
+     */
+    public void forward(Writer w) {
+        forward = w;
+    }
+
+    synchronized void output(String s, boolean error) {
         if (error) {
             System.err.println(s);
         } else {
@@ -67,6 +85,15 @@ public class AnalysisLog {
                 e.printStackTrace();
             }
         }
+        if (forward != null) {
+            try {
+                forward.write(error ? "ERROR: " + s + "\n" : s + "\n");
+                forward.flush();
+            } catch (Exception e) {
+                //stop forwarding, e.g. the client has gone
+                forward = null;
+            }
+        }
     }
 
     public void close() {
@@ -15,10 +15,16 @@ package au.org.ala.spatial.analysis.aloc;
 
 import au.org.ala.spatial.analysis.AnalysisLog;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * ALOC
@@ -27,7 +33,12 @@ import java.util.concurrent.LinkedBlockingQueue;
  */
 public class Aloc {
 
-    private static final int MAX_ITERATIONS = 250;
+    static final int MAX_ITERATIONS = 250;
+
+    private static final int MIN_PIECE_ROWS = 256;
+
+    //most blocks of pieces with their own adjustments, see AlocBlockData
+    static final int BLOCKS = 64;
 
     /**
      * produces group allocations by ALOC with gower metric measure
@@ -47,11 +58,46 @@ public class Aloc {
      * @return
      */
     public static int[] runGowerMetricThreadedMemory(ArrayList<Object> data_pieces, int nNoOfGroups, int nCols, int pieces, String[] layers, AnalysisLog log, int threadcount, int[] iterationCount) {
+        return runGowerMetricThreadedMemory(data_pieces, nNoOfGroups, nCols, pieces, layers, log, threadcount, iterationCount, null, new AlocOptions());
+    }
+
+    /**
+     * produces group allocations by ALOC with gower metric measure
+     * <p/>
+     * only rows that may change group are evaluated in each iteration. After
+     * a row is evaluated its wake level is the cumulative group movement at
+     * which the gap between its group and the next nearest group could
+     * close. Rows, and whole pieces, below their wake level are skipped.
+     * <p/>
+     * when options.checkpointInterval > 0 the iteration state is written to
+     * options.checkpointFilename every checkpointInterval iterations, in the
+     * background. When options.resume is set a matching checkpoint replaces
+     * seeding and the iterations completed before it was written.
+     * <p/>
+     * when options.async is set groups are allocated by AlocAsync after
+     * seeding, without checkpoints. When options.workers is set pieces are
+     * evaluated by worker processes, see AlocCoordinator, with the same
+     * results.
+     * <p/>
+     * when options.destandardize is false data_pieces are left range
+     * standardized, in which state they can be classified again.
+     *
+     * @param data_pieces
+     * @param nNoOfGroups
+     * @param nCols
+     * @param pieces
+     * @param log
+     * @param rowDistances receives the distance of each row to its group, may
+     *                     be null
+     * @param options
+     * @return
+     */
+    public static int[] runGowerMetricThreadedMemory(ArrayList<Object> data_pieces, int nNoOfGroups, int nCols, int pieces, String[] layers, AnalysisLog log, int threadcount, int[] iterationCount, double[] rowDistances, AlocOptions options) {
 
         int[] rowCounts = new int[pieces];
         int nRowsTotal = 0;
         for (int i = 0; i < pieces; i++) {
-            rowCounts[i] = ((float[]) data_pieces.get(i)).length / nCols;
+            rowCounts[i] = pieceLength(data_pieces, i) / nCols;
             if (i > 0) {
                 rowCounts[i] += rowCounts[i - 1];
             }
@@ -61,7 +107,7 @@ public class Aloc {
 
         int min_movement = -1;
         int[] min_groups = new int[nRowsTotal];
-        double[] min_dists = new double[nRowsTotal];
+        double[] min_dists = AlocArena.doubles(nRowsTotal, true);
 
         //range standardize columns 0-1
         float[] col_min = new float[nCols];
@@ -75,7 +121,7 @@ public class Aloc {
         }
         float[] data;
         for (k = 0; k < pieces; k++) {
-            data = (float[]) data_pieces.get(k);
+            data = piece(data_pieces, k);
             for (i = 0; i < nCols; i++) {
                 nRows = data.length / nCols;
                 for (j = 0; j < nRows; j++) {
@@ -99,14 +145,33 @@ public class Aloc {
                 col_range[i] = 1;
             }
         }
-        for (k = 0; k < pieces; k++) {
-            data = (float[]) data_pieces.get(k);
+        //data already standardized 0-1 is left unchanged, so that it is
+        //not written, e.g. when classified again or owned by an AlocJob caller
+        boolean standardized = true;
+        for (i = 0; i < nCols; i++) {
+            standardized &= col_min[i] == 0 && col_range[i] == 1;
+        }
+        for (k = 0; k < pieces && !standardized; k++) {
+            data = piece(data_pieces, k);
             for (i = 0; i < nCols; i++) {
                 nRows = data.length / nCols;
                 for (j = 0; j < nRows; j++) {
                     data[i + j * nCols] = (float) ((data[i + j * nCols] - col_min[i]) / col_range[i]);
                 }
             }
+            setPiece(data_pieces, k, data);
+        }
+
+        //continue from a checkpoint
+        AlocCheckpoint checkpoint = null;
+        if (options.resume && options.checkpointFilename != null && !options.async) {
+            checkpoint = AlocCheckpoint.read(options.checkpointFilename);
+            if (checkpoint == null) {
+                log.log("no checkpoint to resume from: " + options.checkpointFilename);
+            } else if (!checkpoint.matches(nNoOfGroups, nCols, rowCounts, checkpointKey(options))) {
+                log.log("checkpoint does not match this classification, starting from the beginning");
+                checkpoint = null;
+            }
         }
 
         //1. determine correct # of groups by varying radius
@@ -117,69 +182,41 @@ public class Aloc {
         int count = 0;
         int[] seedidx = new int[nNoOfGroups + 1000];
         double[] seeds = new double[nCols * (1000 + nNoOfGroups)]; //space for an extra 1000 groups during seeding
-        double[] oldSeeds = new double[nCols * (1000 + nNoOfGroups)];
-        int[] oldCount = new int[nCols * (1000 + nNoOfGroups)];
 
         //initial seed as first record
         seedidx[0] = 0;
-        data = (float[]) data_pieces.get(0);
+        data = piece(data_pieces, 0);
         for (i = 0; i < nCols; i++) {
             seeds[i] = data[i];
         }
 
-        int c;
-        while (seedidxsize != nNoOfGroups && count < 25) {
-            seedidxsize = 1;
-
-            int rowPos = 0;
-            for (c = 0; c < pieces; c++) {
-                data = (float[]) data_pieces.get(c);
-                nRows = data.length / nCols;
-                rowPos = rowCounts[c] - nRows + (c == 0 ? 1 : 0);
-                for (i = (c == 0 ? 1 : 0); i < nRows; i++, rowPos++) {
-                    for (j = 0; j < seedidxsize; j++) {
-                        //calc dist between obj(i) & obj(seedidx(j))
-                        double dist = 0;
-                        int missing = 0;
-                        for (k = 0; k < nCols; k++) {
-                            double v1 = data[i * nCols + k];
-                            double v2 = seeds[j * nCols + k];
-
-                            if (Double.isNaN(v1) || Double.isNaN(v2) || col_range[k] == 0) {
-                                missing++;
-                            } else {
-                                dist += Math.abs(v1 - v2);
-                            }
-                        }
-
-                        //add to seedidx if distance > radius
-                        if (nCols == missing) {
-                            //error
-                            missing--;
-                        }
-
-                        dist = dist / (double) (nCols - missing);
-                        if (dist < radius) {
-                            break;
-                        }
-                    }
-                    if (j == seedidxsize) {
-                        seedidx[seedidxsize] = rowPos;
-                        for (k = 0; k < nCols; k++) {
-                            seeds[seedidxsize * nCols + k] = data[i * nCols + k];
-                        }
-                        seedidxsize++;
-                    }
-
-                    if (seedidxsize > nNoOfGroups) {
-                        break;
-                    }
+        //seeds from the means of a previous classification
+        boolean seeded = checkpoint != null;
+        if (!seeded && options.initialMeans != null) {
+            seedidxsize = options.initialMeans.length;
+            seeds = warmStartSeeds(options.initialMeans, options.initialMeansLayers, layers,
+                    (double[]) data_pieces.get(data_pieces.size() - 1), col_min, col_range, log);
+            seeded = true;
+            if (seedidxsize != nNoOfGroups) {
+                log.log("warm start has " + seedidxsize + " groups, " + nNoOfGroups + " requested");
+            }
+        } else if (!seeded && options.initialSeeds != null) {
+            seedidxsize = options.initialSeeds.length / nCols;
+            seeds = new double[options.initialSeeds.length];
+            for (i = 0; i < seedidxsize; i++) {
+                for (j = 0; j < nCols; j++) {
+                    seeds[i * nCols + j] = (options.initialSeeds[i * nCols + j] - col_min[j]) / col_range[j];
                 }
+            }
+            seeded = true;
+            log.log("initial seeds: " + seedidxsize + " groups");
+        }
 
-                //repeat break if necessary
-                if (seedidxsize > nNoOfGroups) {
-                    break;
-                }
+        while (!seeded && seedidxsize != nNoOfGroups && count < 25) {
+            if (options.seedScans != null && options.seedScans.maxGroups >= nNoOfGroups) {
+                seedidxsize = options.seedScans.scan(data_pieces, pieces, nCols, rowCounts, col_range, radius, nNoOfGroups, seedidx, seeds);
+            } else {
+                seedidxsize = seedScan(data_pieces, pieces, nCols, rowCounts, col_range, radius, nNoOfGroups, seedidx, seeds);
             }
             count++; //force a break
 
@@ -206,24 +243,97 @@ public class Aloc {
 
             log.log("seeding (" + count + ") " + seedidxsize + " != " + nNoOfGroups + " radius:" + radius);
         }
-        log.log("seeding (" + count + ") " + seedidxsize + " != " + nNoOfGroups + " radius:" + radius);
+        if (checkpoint != null) {
+            seedidxsize = checkpoint.seedidxsize;
+            log.log("resuming from checkpoint at iteration " + checkpoint.iteration);
+        } else if (!seeded) {
+            log.log("seeding (" + count + ") " + seedidxsize + " != " + nNoOfGroups + " radius:" + radius);
+        }
+        double[] oldSeeds = new double[nCols * seedidxsize];
+        int[] oldCount = new int[nCols * seedidxsize];
+
+        //without an iteration barrier
+        if (options.async) {
+            int[] groups = AlocAsync.run(data_pieces, pieces, nCols, java.util.Arrays.copyOf(seeds, seedidxsize * nCols),
+                    seedidxsize, threadcount, options.executor, iterationCount, rowDistances, log);
+            if (options.destandardize) {
+                destandardize(data_pieces, pieces, nCols, col_min, col_range);
+            }
+            return groups;
+        }
+
+        //the state of rows other than their groups is kept by workers
+        boolean remote = options.workers > 0;
+
+        //distances in a memory-mapped file when out of core, or off the heap
+        ByteBuffer[] distanceBuffers = null;
+        AlocOffHeap offHeap = null;
+        String distancesFilename = options.tempPath + File.separator + "aloc.distances";
+        long[] bytes = new long[pieces];
+        for (i = 0; i < pieces; i++) {
+            bytes[i] = (long) (pieceLength(data_pieces, i) / nCols) * seedidxsize * 8;
+        }
+        if (remote) {
+            log.log("distances are kept by " + options.workers + " workers");
+        } else if (options.outOfCore) {
+            try {
+                distanceBuffers = AlocPieceFile.map(distancesFilename, bytes);
+                log.log("out of core: distances in " + distancesFilename);
+            } catch (IOException e) {
+                log.err("cannot map " + distancesFilename + ", distances are kept in memory");
+                e.printStackTrace();
+            }
+        } else if (options.offHeap) {
+            offHeap = new AlocOffHeap();
+            distanceBuffers = offHeap.allocate(bytes);
+            log.log("off-heap: distances " + (offHeap.bytes() >> 20) + "MB");
+        }
 
         //setup piece data
-        List apdList = java.util.Collections.synchronizedList(new ArrayList());
+        List<AlocPieceData> apdList = java.util.Collections.synchronizedList(new ArrayList<AlocPieceData>());
         for (i = 0; i < pieces; i++) {
-            int rowcount = ((float[]) data_pieces.get(i)).length / nCols;
-            apdList.add(new AlocPieceData(
-                    (float[]) data_pieces.get(i),
-                    new double[rowcount * seedidxsize],
-                    new short[rowcount],
-                    new double[rowcount]));
+            int rowcount = pieceLength(data_pieces, i) / nCols;
+            Object piece = data_pieces.get(i);
+            AlocPieceData apd = new AlocPieceData(
+                    piece instanceof float[] ? (float[]) piece : null,
+                    distanceBuffers == null && !remote ? AlocArena.doubles(rowcount * seedidxsize, true) : null,
+                    AlocArena.shorts(rowcount, false),
+                    remote ? null : AlocArena.doubles(rowcount, true));
+            if (piece instanceof FloatBuffer) {
+                apd.dataBuffer = (FloatBuffer) piece;
+            }
+            if (distanceBuffers != null) {
+                apd.distancesBuffer = distanceBuffers[i].asDoubleBuffer();
+            }
+            apdList.add(apd);
+        }
+        for (i = 0; i < pieces && !remote; i++) {
+            AlocPieceData apd = apdList.get(i);
+            int rowcount = apd.groups.length;
+            apd.evaluated = AlocArena.ints(rowcount, false);
+            apd.wake = AlocArena.doubles(rowcount, false);
+            apd.pieceWake = new double[seedidxsize];
+            java.util.Arrays.fill(apd.evaluated, -1);
+            java.util.Arrays.fill(apd.wake, Double.NEGATIVE_INFINITY);
+            apd.dirty = true;
         }
 
+        //cumulative movement of each group, and of the largest movement, at
+        //each iteration, for the wake levels of rows
+        double[] cumMovement = new double[(MAX_ITERATIONS + 1) * seedidxsize];
+        double[] cumMaxMovement = new double[MAX_ITERATIONS + 1];
+
         //setup shared data
         seeds = java.util.Arrays.copyOf(seeds, seedidxsize * nCols);
         int[] seedgroup_nonmissingvalues = new int[seedidxsize * nCols];
         double[] otherGroupMovement = new double[seedidxsize];
         double[] groupMovement = new double[seedidxsize];
+        if (checkpoint != null) {
+            seeds = checkpoint.seeds;
+            seedgroup_nonmissingvalues = checkpoint.seedgroup_nonmissingvalues;
+            otherGroupMovement = checkpoint.otherGroupMovement;
+            groupMovement = checkpoint.groupMovement;
+        }
 
         AlocSharedData[] asdCopies = new AlocSharedData[threadcount];
         for (i = 0; i < threadcount; i++) {
@@ -235,26 +345,49 @@ public class Aloc {
                     seedidxsize,
                     seeds.clone(),
                     seedgroup_nonmissingvalues.clone());
+            asdCopies[i].cumMovement = cumMovement;
+            asdCopies[i].cumMaxMovement = cumMaxMovement;
         }
 
+        //tiles of rows and centroids that fit in half of the cache
+        int centroidTile = Math.max(1, Math.min(seedidxsize, options.cacheSize / 2 / (nCols * 12)));
+        int rowTile = Math.max(1, options.cacheSize / 2 / (nCols * 4 + centroidTile * 8));
+        for (i = 0; i < threadcount; i++) {
+            asdCopies[i].rowTile = rowTile;
+            asdCopies[i].centroidTile = centroidTile;
+        }
+        log.log("tiles: " + rowTile + " rows, " + centroidTile + " of " + seedidxsize + " groups");
+
         //setup thread data
         AlocThreadData[] atdArray = new AlocThreadData[threadcount];
         for (i = 0; i < threadcount; i++) {
-            atdArray[i] = new AlocThreadData(
-                    new int[seedidxsize], new int[seedidxsize * nCols],
-                    new double[seedidxsize * nCols]);
+            atdArray[i] = new AlocThreadData(rowTile);
+        }
+        long wallTime = 0;
+
+        //adjustments are made by blocks of consecutive pieces and added in a
+        //fixed order so that results do not depend on the number of threads.
+        //Totals are not reset between iterations.
+        AlocBlockData[] blocks = blocks(pieces, seedidxsize, nCols);
+        int[] groupsizeAdjustment = new int[seedidxsize];
+        int[] seedsNmvAdjustment = new int[seedidxsize * nCols];
+        double[] seedsAdjustment = new double[seedidxsize * nCols];
+        if (checkpoint != null) {
+            groupsizeAdjustment = checkpoint.groupsizeAdjustment;
+            seedsNmvAdjustment = checkpoint.seedsNmvAdjustment;
+            seedsAdjustment = checkpoint.seedsAdjustment;
         }
+        long reductionTime = 0;
 
         //2. allocate all objects to a group
         int[] groupsize = new int[seedidxsize];
-        for (i = 0; i < seedidxsize; i++) {
+        for (i = 0; !seeded && i < seedidxsize; i++) {
             groupsize[i] = 0;
             int rowPos = 0;
             for (int n = 0; n < pieces; n++) {
-                data = (float[]) data_pieces.get(n);
-                nRows = data.length / nCols;
-                rowPos = rowCounts[n] - nRows;
+                rowPos = n == 0 ? 0 : rowCounts[n - 1];
                 if (seedidx[i] >= rowPos && seedidx[i] < rowCounts[n]) {
+                    data = piece(data_pieces, n);
                     for (j = 0; j < nCols; j++) {
                         seeds[i * nCols + j] = data[(seedidx[i] - rowPos) * nCols + j];
                         seedgroup_nonmissingvalues[i * nCols + j] = 0;
@@ -263,23 +396,47 @@ public class Aloc {
                 }
             }
         }
+        k = 0;
         for (i = 0; i < pieces; i++) {
-            AlocPieceData apd = (AlocPieceData) apdList.get(i);
-            for (j = 0; j < apd.groups.length; j++) {
-                apd.groups[j] = -1;
+            AlocPieceData apd = apdList.get(i);
+            for (j = 0; j < apd.groups.length; j++, k++) {
+                apd.groups[j] = checkpoint == null ? -1 : checkpoint.groups[k];
             }
         }
+        if (checkpoint != null) {
+            groupsize = checkpoint.groupsize;
+            min_movement = checkpoint.minMovement;
+            min_groups = checkpoint.minGroups;
+            min_dists = checkpoint.minDists;
+        }
+        ExecutorService checkpointWriter = null;
+        Future<?> checkpointWrite = null;
+        if (options.checkpointInterval > 0 && options.checkpointFilename != null) {
+            checkpointWriter = Executors.newSingleThreadExecutor();
+        }
+
+        AlocCoordinator coordinator = null;
+        if (remote) {
+            coordinator = new AlocCoordinator(data_pieces, apdList, blocks, nCols, seedidxsize, col_min, col_range, rowTile,
+                    centroidTile, options, threadcount, log);
+        }
 
-        LinkedBlockingQueue<AlocPieceData> lbq = new LinkedBlockingQueue(new ArrayList<AlocPieceData>());
+        ConcurrentLinkedQueue<AlocBlockData> blockQueue = new ConcurrentLinkedQueue<AlocBlockData>();
+        ExecutorService executor = options.executor != null ? options.executor : Executors.newFixedThreadPool(threadcount);
 
         AlocInnerLoop3[] ail = new AlocInnerLoop3[threadcount];
         for (i = 0; i < threadcount; i++) {
-            ail[i] = new AlocInnerLoop3(lbq, atdArray[i], asdCopies[i]);
+            ail[i] = new AlocInnerLoop3(blockQueue, atdArray[i], asdCopies[i]);
         }
 
         log.log("Started AlocInnerLoops (" + threadcount + " threads): " + System.currentTimeMillis());
 
-        int iteration = 0;
+        int startIteration = checkpoint == null ? 0 : checkpoint.iteration;
+        //seeds of the best snapshot, for the distances of its rows
+        double[] minSeeds = checkpoint == null ? null : checkpoint.minSeeds;
+        int[] minCount = checkpoint == null ? null : checkpoint.minCount;
+        checkpoint = null;
+        int iteration = startIteration;
         int movement = -1;
         while (movement != 0 && iteration < MAX_ITERATIONS) {
 
@@ -293,7 +450,7 @@ public class Aloc {
                 int count_preserved = 0;
                 int pos = 0;
                 for (i = 0; i < pieces && count_preserved < seedidxsize; i++) {
-                    short[] grps = ((AlocPieceData) apdList.get(i)).groups;
+                    short[] grps = apdList.get(i).groups;
                     for (j = 0; j < grps.length; j++, pos++) {
                         if (preserved_members[grps[j]] == -1) {
                             preserved_members[grps[j]] = pos;
@@ -304,7 +461,7 @@ public class Aloc {
             }
 
             //get copies of shared data
-            if (iteration == 0) {
+            if (iteration == startIteration) {
                 for (i = 0; i < threadcount; i++) {
                     asdCopies[i].otherGroupMovement = otherGroupMovement;
                     asdCopies[i].groupMovement = groupMovement;
@@ -312,21 +469,56 @@ public class Aloc {
                     asdCopies[i].seedgroup_nonmissingvalues = seedgroup_nonmissingvalues;
                 }
             }
-            //rebuild spans
-            CountDownLatch cdl = new CountDownLatch(pieces);
+            //cumulative movement to this iteration
+            double max = 0;
+            for (j = 0; j < seedidxsize; j++) {
+                cumMovement[iteration * seedidxsize + j] = groupMovement[j]
+                        + (iteration > 0 ? cumMovement[(iteration - 1) * seedidxsize + j] : 0);
+                if (groupMovement[j] > max) {
+                    max = groupMovement[j];
+                }
+            }
+            cumMaxMovement[iteration] = max + (iteration > 0 ? cumMaxMovement[iteration - 1] : 0);
             for (i = 0; i < threadcount; i++) {
-                ail[i].next(cdl);
+                asdCopies[i].iteration = iteration;
             }
-            for (i = 0; i < pieces; i++) {
-                lbq.add((AlocPieceData) apdList.get(i));
+
+            //pieces with rows at or above their wake level, by block
+            for (AlocBlockData block : blocks) {
+                block.active.clear();
+                for (i = block.firstPiece; i < block.endPiece && !remote; i++) {
+                    AlocPieceData apd = apdList.get(i);
+                    if (awake(apd, iteration, seedidxsize, cumMovement, cumMaxMovement)) {
+                        block.active.add(apd);
+                    }
+                }
+                if (!block.active.isEmpty()) {
+                    block.adjusted = true;
+                    blockQueue.add(block);
+                }
             }
 
-            //wait for pieces to be finished
-            try {
-                cdl.await();
-            } catch (Exception e) {
-                e.printStackTrace();
+            //evaluate blocks and wait for them to be finished
+            long wallStart = System.nanoTime();
+            int[] remoteMovement = null;
+            if (remote) {
+                remoteMovement = coordinator.iterate(iteration, cumMovement, cumMaxMovement, groupMovement,
+                        seeds, seedgroup_nonmissingvalues);
+            } else {
+                List<Future<?>> futures = new ArrayList<Future<?>>();
+                for (i = 0; i < threadcount; i++) {
+                    ail[i].next();
+                    futures.add(executor.submit(ail[i]));
+                }
+                for (Future<?> f : futures) {
+                    try {
+                        f.get();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
             }
+            wallTime += System.nanoTime() - wallStart;
 
             //init (for reducing distance checks)
             for (i = 0; i < seedidxsize * nCols; i++) {
@@ -343,29 +535,46 @@ public class Aloc {
                 }
             }
             movement = 0;
-            for (i = 0; i < threadcount; i++) {
+            int evaluated = 0;
+            for (i = 0; i < threadcount && !remote; i++) {
                 movement += atdArray[i].movement;
-                double[] seed_adj = atdArray[i].seeds_adjustment;
-                int[] seed_nmv_adj = atdArray[i].seeds_nmv_adjustment;
+                evaluated += atdArray[i].evaluated;
+            }
+            if (remote) {
+                movement = remoteMovement[0];
+                evaluated = remoteMovement[1];
+            }
 
+            //add block adjustments
+            long reductionStart = System.nanoTime();
+            AlocBlockData sum = reduce(blocks);
+            if (sum != null) {
                 for (j = 0; j < seedidxsize * nCols; j++) {
-                    if (Double.isNaN(seeds[j])
-                            && seed_adj[j] != 0) {
-                        seeds[j] = seed_adj[j];
-                    } else {
-                        seeds[j] += seed_adj[j];
-                    }
-                    seedgroup_nonmissingvalues[j] += seed_nmv_adj[j];
+                    seedsAdjustment[j] += sum.seeds_adjustment[j];
+                    seedsNmvAdjustment[j] += sum.seeds_nmv_adjustment[j];
                 }
+                for (j = 0; j < seedidxsize; j++) {
+                    groupsizeAdjustment[j] += sum.groupsize[j];
+                }
+            }
+            for (AlocBlockData block : blocks) {
+                block.clear();
+            }
+            for (j = 0; j < seedidxsize * nCols; j++) {
+                if (Double.isNaN(seeds[j])
+                        && seedsAdjustment[j] != 0) {
+                    seeds[j] = seedsAdjustment[j];
+                } else {
+                    seeds[j] += seedsAdjustment[j];
+                }
+                seedgroup_nonmissingvalues[j] += seedsNmvAdjustment[j];
             }
 
             //update group sizes
-            for (i = 0; i < threadcount; i++) {
-                int[] seed_gs_adj = atdArray[i].groupsize;
-                for (j = 0; j < seedidxsize; j++) {
-                    groupsize[j] += seed_gs_adj[j];
-                }
+            for (j = 0; j < seedidxsize; j++) {
+                groupsize[j] += groupsizeAdjustment[j];
             }
+            reductionTime += System.nanoTime() - reductionStart;
 
             //enforce minimum group membership of size 1
             if (iteration > 0) {
@@ -385,9 +594,18 @@ public class Aloc {
                             int pos = 0;
                             int cg = -1;
                             for (j = 0; j < pieces; j++) {
-                                short[] grps = ((AlocPieceData) apdList.get(j)).groups;
+                                AlocPieceData apd = apdList.get(j);
+                                short[] grps = apd.groups;
                                 if (pos + grps.length > row) {
                                     cg = grps[row - pos];
+
+                                    //evaluate the row in the next iteration
+                                    if (remote) {
+                                        coordinator.wake(j, row - pos);
+                                    } else {
+                                        apd.wake[row - pos] = Double.NEGATIVE_INFINITY;
+                                        apd.dirty = true;
+                                    }
                                     break;
                                 }
                                 pos += grps.length;
@@ -401,7 +619,7 @@ public class Aloc {
                             data = null;
                             for (k = 0; k < pieces; k++) {
                                 if (row < rowCounts[k]) {
-                                    data = (float[]) data_pieces.get(k);
+                                    data = piece(data_pieces, k);
                                     row = row - (rowCounts[k] - data.length / nCols);
                                     break;
                                 }
@@ -433,28 +651,22 @@ public class Aloc {
             for (i = 0; i < seedidxsize; i++) {
                 mov = 0;
                 int nmissing = 0;
-                if (iteration == 0) {
-                    for (j = 0; j < nCols; j++) {
-                        k = i * nCols + j;
-                        if (seedgroup_nonmissingvalues[k] > 0) {
-                            mov += Math.abs(seeds[k] / (double) seedgroup_nonmissingvalues[k]);
-                        } else {
-                            nmissing++;
-                        }
-                    }
-                } else {
-                    for (j = 0; j < nCols; j++) {
-                        k = i * nCols + j;
-                        if (oldCount[k] == 0 || seedgroup_nonmissingvalues[k] == 0) {
-                            nmissing++;
-                        } else {
-                            double v1 = oldSeeds[k] / (double) oldCount[k];
-                            double v2 = seeds[k] / (double) seedgroup_nonmissingvalues[k];
-                            mov += Math.abs(v1 - v2);
-                        }
+                //a column that becomes missing, or present, changes the
+                //distance of a row by up to the largest distance, 1
+                boolean changed = false;
+                for (j = 0; j < nCols; j++) {
+                    k = i * nCols + j;
+                    double v1 = oldCount[k] > 0 ? oldSeeds[k] / (double) oldCount[k] : oldSeeds[k];
+                    double v2 = seedgroup_nonmissingvalues[k] > 0 ? seeds[k] / (double) seedgroup_nonmissingvalues[k] : seeds[k];
+                    if (Double.isNaN(v1) && Double.isNaN(v2)) {
+                        nmissing++;
+                    } else if (Double.isNaN(v1) || Double.isNaN(v2)) {
+                        changed = true;
+                    } else {
+                        mov += Math.abs(v1 - v2);
                     }
                 }
-                mov /= (double) (nCols - nmissing);
+                mov = changed ? 1 : mov / (double) (nCols - nmissing);
                 if (mov > maxmov) {
                     maxmov = mov;
                 }
@@ -468,14 +680,16 @@ public class Aloc {
             //backup min_movement
             if (min_movement == -1 || min_movement > movement) {
                 min_movement = movement;
+                minSeeds = oldSeeds.clone();
+                minCount = oldCount.clone();
                 //copy groups to min_groups
                 k = 0;
                 for (i = 0; i < pieces; i++) {
-                    short[] grps = ((AlocPieceData) apdList.get(i)).groups;
-                    double[] dist = ((AlocPieceData) apdList.get(i)).rowDist;
+                    short[] grps = apdList.get(i).groups;
+                    double[] dist = apdList.get(i).rowDist;
                     for (j = 0; j < grps.length; j++, k++) {
                         min_groups[k] = grps[j];
-                        min_dists[k] = dist[j];
+                        min_dists[k] = dist == null ? 0 : dist[j];
                     }
                 }
             }
@@ -485,286 +699,400 @@ public class Aloc {
             iteration++;
 
             //job progress is non-linear, use something else so estimates are better
-            log.log("moving (" + iteration + ") > moved " + movement);
+            log.log("moving (" + iteration + ") > moved " + movement + ", evaluated " + evaluated);
+
+            //checkpoint, skipped while the previous checkpoint is still being written
+            if (checkpointWriter != null && movement != 0 && iteration % options.checkpointInterval == 0
+                    && (checkpointWrite == null || checkpointWrite.isDone())) {
+                AlocCheckpoint cp = new AlocCheckpoint();
+                cp.nNoOfGroups = nNoOfGroups;
+                cp.nCols = nCols;
+                cp.rowCounts = rowCounts;
+                cp.key = checkpointKey(options);
+                cp.iteration = iteration;
+                cp.seedidxsize = seedidxsize;
+                cp.seeds = seeds.clone();
+                cp.seedgroup_nonmissingvalues = seedgroup_nonmissingvalues.clone();
+                cp.groupsize = groupsize.clone();
+                cp.groupMovement = groupMovement.clone();
+                cp.otherGroupMovement = otherGroupMovement.clone();
+                cp.groupsizeAdjustment = groupsizeAdjustment.clone();
+                cp.seedsNmvAdjustment = seedsNmvAdjustment.clone();
+                cp.seedsAdjustment = seedsAdjustment.clone();
+                cp.groups = new short[nRowsTotal];
+                k = 0;
+                for (i = 0; i < pieces; i++) {
+                    short[] grps = apdList.get(i).groups;
+                    System.arraycopy(grps, 0, cp.groups, k, grps.length);
+                    k += grps.length;
+                }
+                cp.minMovement = min_movement;
+                cp.minGroups = min_groups.clone();
+                cp.minDists = min_dists.clone();
+                cp.minSeeds = minSeeds;
+                cp.minCount = minCount;
+                cp.setFilename(options.checkpointFilename);
+                checkpointWrite = checkpointWriter.submit(cp);
+            }
         }
 
+        if (executor != options.executor) {
+            executor.shutdown();
+        }
+        if (coordinator != null) {
+            coordinator.stop();
+        }
+        if (offHeap != null) {
+            offHeap.free();
+        } else if (distanceBuffers != null) {
+            new File(distancesFilename).delete();
+        }
+        log.log("adding block adjustments: " + (reductionTime / 1000000) + "ms");
+
+        //share of the time waiting for pieces that each thread was busy
+        StringBuilder utilization = new StringBuilder();
+        long busy = 0;
         for (i = 0; i < threadcount; i++) {
-            ail[i].kill();
+            busy += atdArray[i].busy;
+            utilization.append(i == 0 ? "" : ", ").append(wallTime > 0 ? atdArray[i].busy * 100 / wallTime : 0).append("%");
+        }
+        if (!remote) {
+            log.log("thread utilization: " + (wallTime > 0 ? busy * 100 / (wallTime * threadcount) : 0) + "% (" + utilization + ")");
         }
 
-        //reverse column range standardization
-        for (k = 0; k < pieces; k++) {
-            data = (float[]) data_pieces.get(k);
-            for (i = 0; i < nCols; i++) {
-                nRows = data.length / nCols;
-                for (j = 0; j < nRows; j++) {
-                    data[i + j * nCols] = (float) ((data[i + j * nCols] * col_range[i]) + col_min[i]);
+        //finished, a checkpoint is no longer required
+        if (checkpointWriter != null) {
+            checkpointWriter.shutdown();
+            try {
+                if (checkpointWrite != null) {
+                    checkpointWrite.get();
                 }
+            } catch (Exception e) {
+                e.printStackTrace();
             }
+            new File(options.checkpointFilename).delete();
+            new File(options.checkpointFilename + ".tmp").delete();
         }
-        //reverse row range standardization
-        double[] extents = (double[]) data_pieces.get(data_pieces.size() - 1);
-        for (k = 0; k < pieces; k++) {
-            data = (float[]) data_pieces.get(k);
-            for (i = 0; i < nCols; i++) {
+
+        //distances of skipped rows are not kept, calculate distances to the
+        //seeds of the iteration with the least movement
+        if (rowDistances != null && minSeeds != null) {
+            k = 0;
+            for (int n = 0; n < pieces; n++) {
+                data = piece(data_pieces, n);
                 nRows = data.length / nCols;
-                for (j = 0; j < nRows; j++) {
-                    data[i + j * nCols] = (float) ((data[i + j * nCols] * (extents[6 + i * 2 + 1] - extents[6 + i * 2])) + extents[6 + i * 2]);
+                for (i = 0; i < nRows; i++, k++) {
+                    int g = min_groups[k];
+                    double dist = 0;
+                    int missing = 0;
+                    for (j = 0; j < nCols; j++) {
+                        double v1 = data[i * nCols + j];
+                        double v2 = minSeeds[g * nCols + j];
+                        if (Double.isNaN(v1) || Double.isNaN(v2) || col_range[j] == 0) {
+                            missing++;
+                        } else {
+                            if (minCount[g * nCols + j] > 0) {
+                                v2 = v2 / minCount[g * nCols + j];
+                            }
+                            dist += Math.abs(v1 - v2);
+                        }
+                    }
+                    min_dists[k] = dist / (double) (nCols - missing);
                 }
             }
         }
 
+        if (options.destandardize) {
+            destandardize(data_pieces, pieces, nCols, col_min, col_range);
+        }
+
         iterationCount[0] = iteration;
+        if (rowDistances != null) {
+            System.arraycopy(min_dists, 0, rowDistances, 0, nRowsTotal);
+        }
+
+        //arrays of rows for the next classification
+        for (i = 0; i < pieces; i++) {
+            AlocPieceData apd = apdList.get(i);
+            AlocArena.release(apd.distances);
+            AlocArena.release(apd.groups);
+            AlocArena.release(apd.rowDist);
+            AlocArena.release(apd.evaluated);
+            AlocArena.release(apd.wake);
+        }
+        AlocArena.release(min_dists);
 
         //write-back row groups
         return min_groups;
 
     }
-}
-
-/**
- * for data_pieces + larger memory usage (#cells * #groups)
- *
- * @author Adam
- */
-class AlocInnerLoop3 extends Thread {
-
-    LinkedBlockingQueue<AlocPieceData> lbq;
-    AlocThreadData alocThreadData;
-    AlocSharedData alocSharedData;
-    CountDownLatch countDownLatch;
-
-    public AlocInnerLoop3(LinkedBlockingQueue<AlocPieceData> lbq_, AlocThreadData alocThreadData_, AlocSharedData alocSharedData_) {
-        lbq = lbq_;
-        alocThreadData = alocThreadData_;
-        alocSharedData = alocSharedData_;
-
-        setPriority(Thread.MIN_PRIORITY);
-    }
 
-    @Override
-    public void run() {
-        try {
-            while (true) {
-                // run on next batch
-                AlocPieceData next = lbq.take();
-                alocInnerLoop(next);
-                countDownLatch.countDown();
-            }
-        } catch (InterruptedException ex) {
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * @return true when a piece may have rows at or above their wake level
+     * in an iteration
+     */
+    static boolean awake(AlocPieceData apd, int iteration, int seedidxsize, double[] cumMovement, double[] cumMaxMovement) {
+        boolean wake = apd.dirty || iteration <= 1;
+        for (int j = 0; j < seedidxsize && !wake; j++) {
+            wake = !(cumMaxMovement[iteration] + cumMovement[iteration * seedidxsize + j] < apd.pieceWake[j]);
         }
+        return wake;
     }
 
-    public void next(CountDownLatch newCountDownLatch) {
-        //reset movement
-        alocThreadData.movement = 0;
-        countDownLatch = newCountDownLatch;
-
-        if (!isAlive()) {
-            this.start();
+    /**
+     * blocks of consecutive pieces, at most BLOCKS whatever the number of
+     * threads
+     */
+    static AlocBlockData[] blocks(int pieces, int seedidxsize, int nCols) {
+        AlocBlockData[] blocks = new AlocBlockData[Math.max(1, Math.min(BLOCKS, pieces))];
+        for (int b = 0; b < blocks.length; b++) {
+            blocks[b] = new AlocBlockData((int) ((long) b * pieces / blocks.length),
+                    (int) ((long) (b + 1) * pieces / blocks.length), seedidxsize, nCols);
         }
+        return blocks;
     }
 
-    private void alocInnerLoop(AlocPieceData apd) {
-        float[] data = apd.data;
-        double[] distances = apd.distances;
-        short[] groups = apd.groups;
-
-        final double[] groupMovement = alocSharedData.groupMovement;
-        final int nCols = alocSharedData.nCols;
-        final double[] col_range = alocSharedData.col_range;
-        final int seedidxsize = alocSharedData.seedidxsize;
-        final double[] seeds = alocSharedData.seeds;
-        final int[] seedgroup_nonmissingvalues = alocSharedData.seedgroup_nonmissingvalues;
-
-        int i, j, k;
-        double min_dist_value = 0.00001f;
-        int min_idx = 0;
-        double dist;
-        int missing;
-        double v2;
-        double v1;
-
-        double min_dist;
-
-        int nRows = data.length / nCols;
-        int rws;
-        double gm;
-        int grp;
-        //int skips = 0;
-
-        for (i = 0; i < nRows; i++) {
-            rws = i * seedidxsize;
-            grp = groups[i];
-
-            if (grp >= 0) {
-                distances[rws + grp] += groupMovement[grp] + min_dist_value;
-                gm = distances[rws + grp];
-                min_idx = groups[i];
-                if (Double.isNaN(gm)) {
-                    gm = Float.MAX_VALUE;
-                }
-            } else {
-                gm = 0;
+    /**
+     * adds the adjustments of blocks pairwise, in the same order for any
+     * number of threads. Blocks without active pieces are skipped.
+     *
+     * @return block holding the sum, or null when no block had active pieces
+     */
+    static AlocBlockData reduce(AlocBlockData[] blocks) {
+        for (int width = 1; width < blocks.length; width *= 2) {
+            for (int b = 0; b + width < blocks.length; b += width * 2) {
+                blocks[b].add(blocks[b + width]);
             }
+        }
+        return blocks[0].adjusted ? blocks[0] : null;
+    }
 
-            min_dist = Float.MAX_VALUE;
-
-            for (j = 0; j < seedidxsize; j++) {
-                distances[rws + j] -= groupMovement[j];
-                if (j == grp || !(distances[rws + j] > gm)) {
-                    //calc dist between obj(i) & obj(seeds(j))
-                    dist = 0;
-                    missing = 0;
+    /**
+     * one seeding scan, each row further than radius from all seeds so far
+     * is added as a seed. The first row is the first seed.
+     *
+     * @param rowCounts   rows up to the end of each piece
+     * @param radius      least distance of a new seed to the other seeds
+     * @param nNoOfGroups the scan stops at one more seed than this
+     * @param seedidx     receives the row of each seed
+     * @param seeds       receives the seeds as [seed * nCols + column]
+     * @return number of seeds
+     */
+    static int seedScan(ArrayList<Object> data_pieces, int pieces, int nCols, int[] rowCounts, double[] col_range,
+                        double radius, int nNoOfGroups, int[] seedidx, double[] seeds) {
+        int i, j, k, c, nRows;
+        float[] data = piece(data_pieces, 0);
+        seedidx[0] = 0;
+        for (i = 0; i < nCols; i++) {
+            seeds[i] = data[i];
+        }
+        int seedidxsize = 1;
+
+        int rowPos = 0;
+        for (c = 0; c < pieces; c++) {
+            data = piece(data_pieces, c);
+            nRows = data.length / nCols;
+            rowPos = rowCounts[c] - nRows + (c == 0 ? 1 : 0);
+            for (i = (c == 0 ? 1 : 0); i < nRows; i++, rowPos++) {
+                for (j = 0; j < seedidxsize; j++) {
+                    //calc dist between obj(i) & obj(seedidx(j))
+                    double dist = 0;
+                    int missing = 0;
                     for (k = 0; k < nCols; k++) {
-                        v1 = data[i * nCols + k];
-                        v2 = seeds[j * nCols + k];
+                        double v1 = data[i * nCols + k];
+                        double v2 = seeds[j * nCols + k];
+
                         if (Double.isNaN(v1) || Double.isNaN(v2) || col_range[k] == 0) {
                             missing++;
                         } else {
-                            if (seedgroup_nonmissingvalues[j * nCols + k] > 0) {
-                                v2 = v2 / seedgroup_nonmissingvalues[j * nCols + k];
-                            }
-                            dist += Math.abs(v1 - v2);//range == 1 (standardized 0-1); / (float) col_range[k];
+                            dist += Math.abs(v1 - v2);
                         }
                     }
+
+                    //add to seedidx if distance > radius
+                    if (nCols == missing) {
+                        //error
+                        missing--;
+                    }
+
                     dist = dist / (double) (nCols - missing);
-                    if (min_dist > dist) {
-                        min_dist = dist;
-                        min_idx = j;
+                    if (dist < radius) {
+                        break;
                     }
-                    distances[rws + j] = dist;
                 }
-                //else{
-                //   skips++;
-                //}
-            }
+                if (j == seedidxsize) {
+                    seedidx[seedidxsize] = rowPos;
+                    for (k = 0; k < nCols; k++) {
+                        seeds[seedidxsize * nCols + k] = data[i * nCols + k];
+                    }
+                    seedidxsize++;
+                }
 
-            //loop for checking
-            /*
-            for (j = 0; j < seedidxsize; j++) {
-            if( j != grp && !(distances[rws + j] <= gm)){
-            //calc dist between obj(i) & obj(seeds(j))
-            dist = 0;
-            missing = 0;
-            for (k = 0; k < nCols; k++) {
-            v1 = data[i * nCols + k];
-            v2 = seeds[j * nCols + k];
-            if (Float.isNaN(v1) || Float.isNaN(v2) || col_range[k] == 0) {
-            missing++;
-            } else {
-            if (seedgroup_nonmissingvalues[j * nCols + k] > 0) {
-            v2 = v2 / seedgroup_nonmissingvalues[j * nCols + k];
-            }
-            dist += java.lang.Math.abs(v1 - v2);//range == 1 (standardized 0-1); / (float) col_range[k];
-            }
-            }
-            dist = dist / (float) (nCols - missing);
-            if (min_dist >= dist && j != grp) {
-            //should NEVER get here
-            min_dist = dist;
-            min_idx = j;
-            }
-            //do not store distance in test; distances[rws + j] = dist;
+                if (seedidxsize > nNoOfGroups) {
+                    break;
+                }
             }
-            }*/
-
-            //add this group to group min_idx;
-            if (grp != (short) min_idx) {
-                alocThreadData.movement++;
 
-                //remove from previous group
-                if (grp >= 0) {
-                    alocThreadData.groupsize[grp]--;
-                    for (j = 0; j < nCols; j++) {
-                        if (!Float.isNaN(data[i * nCols + j])) {
-                            alocThreadData.seeds_adjustment[grp * nCols + j] -= data[i * nCols + j];
-                            alocThreadData.seeds_nmv_adjustment[grp * nCols + j]--;
-                        }
-                    }
-                }
+            //repeat break if necessary
+            if (seedidxsize > nNoOfGroups) {
+                break;
+            }
+        }
+        return seedidxsize;
+    }
 
-                //reassign group
-                groups[i] = (short) min_idx;
+    /**
+     * @return identifies the input data and the settings of a
+     * classification for its checkpoints, with the seeds it starts from
+     */
+    static String checkpointKey(AlocOptions options) {
+        return options.inputKey + "\t" + java.util.Arrays.deepHashCode(options.initialMeans)
+                + "\t" + java.util.Arrays.hashCode(options.initialSeeds)
+                + "\t" + java.util.Arrays.hashCode(options.initialMeansLayers);
+    }
 
-                //add to new group
-                alocThreadData.groupsize[min_idx]++;
+    /**
+     * number of rows in a data piece so that the state of its rows fits in
+     * cache
+     *
+     * @param nCols     number of columns
+     * @param nGroups   number of groups
+     * @param cacheSize cache size in bytes
+     * @return rows in each piece
+     */
+    public static int rowsPerPiece(int nCols, int nGroups, int cacheSize) {
+        //data, distances, group, row distance, last evaluated and wake level
+        int rowBytes = nCols * 4 + nGroups * 8 + 2 + 8 + 4 + 8;
+        return Math.max(MIN_PIECE_ROWS, cacheSize / rowBytes);
+    }
 
-                for (j = 0; j < nCols; j++) {
-                    if (!Float.isNaN(data[i * nCols + j])) {
-                        alocThreadData.seeds_adjustment[min_idx * nCols + j] += data[i * nCols + j];
-                        alocThreadData.seeds_nmv_adjustment[min_idx * nCols + j]++;
-                    }
+    /**
+     * reverses the column and row range standardization of data pieces
+     *
+     * @param data_pieces
+     * @param pieces
+     * @param nCols
+     * @param col_min   column minimum of the row standardized data
+     * @param col_range column range of the row standardized data
+     */
+    static void destandardize(ArrayList<Object> data_pieces, int pieces, int nCols, float[] col_min, double[] col_range) {
+        int i, j, k, nRows;
+        float[] data;
+        double[] extents = (double[]) data_pieces.get(data_pieces.size() - 1);
+        for (k = 0; k < pieces; k++) {
+            data = piece(data_pieces, k);
+            //reverse column range standardization
+            for (i = 0; i < nCols; i++) {
+                nRows = data.length / nCols;
+                for (j = 0; j < nRows; j++) {
+                    data[i + j * nCols] = (float) ((data[i + j * nCols] * col_range[i]) + col_min[i]);
+                }
+            }
+            //reverse row range standardization
+            for (i = 0; i < nCols; i++) {
+                nRows = data.length / nCols;
+                for (j = 0; j < nRows; j++) {
+                    data[i + j * nCols] = (float) ((data[i + j * nCols] * (extents[6 + i * 2 + 1] - extents[6 + i * 2])) + extents[6 + i * 2]);
                 }
             }
+            setPiece(data_pieces, k, data);
         }
     }
 
-    void kill() {
-        this.interrupt();
+    /**
+     * rows of a data piece
+     *
+     * @param data_pieces data pieces as float[], or FloatBuffer when memory
+     *                    mapped
+     * @param i           piece number
+     * @return the piece, or a copy of a mapped piece
+     */
+    public static float[] piece(ArrayList<Object> data_pieces, int i) {
+        Object o = data_pieces.get(i);
+        if (o instanceof FloatBuffer) {
+            FloatBuffer fb = ((FloatBuffer) o).duplicate();
+            fb.rewind();
+            float[] data = new float[fb.remaining()];
+            fb.get(data);
+            return data;
+        }
+        return (float[]) o;
     }
-}
 
-class AlocPieceData {
-
-    public float[] data;
-    public double[] distances;
-    public short[] groups;
-    public double[] rowDist;
-
-    public AlocPieceData(float[] data_,
-                         double[] distances_,
-                         short[] groups_,
-                         double[] rowDist_) {
-        data = data_;
-        distances = distances_;
-        groups = groups_;
-        rowDist = rowDist_;
+    /**
+     * writes back a copy of a memory mapped piece from piece()
+     *
+     * @param data_pieces
+     * @param i           piece number
+     * @param data        rows of the piece
+     */
+    public static void setPiece(ArrayList<Object> data_pieces, int i, float[] data) {
+        Object o = data_pieces.get(i);
+        if (o instanceof FloatBuffer) {
+            FloatBuffer fb = ((FloatBuffer) o).duplicate();
+            fb.rewind();
+            fb.put(data);
+        }
     }
-}
-
-class AlocThreadData {
 
-    public int[] groupsize;
-    public int[] seeds_nmv_adjustment;
-    public double[] seeds_adjustment;
-    public int movement;
-
-    public AlocThreadData(int[] groupsize_, int[] seeds_nvm_adjustment_,
-                          double[] seeds_adjustment_) {
-        groupsize = groupsize_;
-        seeds_nmv_adjustment = seeds_nvm_adjustment_;
-        seeds_adjustment = seeds_adjustment_;
-        movement = 0;
+    /**
+     * @return number of values in a data piece
+     */
+    public static int pieceLength(ArrayList<Object> data_pieces, int i) {
+        Object o = data_pieces.get(i);
+        if (o instanceof FloatBuffer) {
+            return ((FloatBuffer) o).capacity();
+        }
+        return ((float[]) o).length;
     }
-}
 
-class AlocSharedData {
-
-    public double[] otherGroupMovement;
-    public double[] groupMovement;
-    public int nCols;
-    public double[] col_range;
-    public int seedidxsize;
-    public double[] seeds;
-    public int[] seedgroup_nonmissingvalues;
-
-    public AlocSharedData(
-            double[] otherGroupMovement_,
-            double[] groupMovement_,
-            int nCols_,
-            double[] col_range_,
-            int seedidxsize_,
-            double[] seeds_,
-            int[] seedgroup_nonmissingvalues_) {
-        otherGroupMovement = otherGroupMovement_;
-        groupMovement = groupMovement_;
-        nCols = nCols_;
-        col_range = col_range_;
-        seedidxsize = seedidxsize_;
-        seeds = seeds_;
-        seedgroup_nonmissingvalues = seedgroup_nonmissingvalues_;
+    /**
+     * standardizes the means of a previous classification to use as seeds
+     * <p/>
+     * layers are matched by name, layers without a mean are missing values
+     * in the seeds
+     *
+     * @param means       group means as [group][mean layer] in layer units
+     * @param meansLayers layer names of the means
+     * @param layers      layer names of data columns
+     * @param extents     extents from the data pieces, with the range of each
+     *                    layer used to standardize the data
+     * @param col_min     column minimum of the standardized data
+     * @param col_range   column range of the standardized data
+     * @param log
+     * @return seeds as [group * nCols + column]
+     */
+    static double[] warmStartSeeds(double[][] means, String[] meansLayers, String[] layers, double[] extents, float[] col_min, double[] col_range, AnalysisLog log) {
+        int nCols = layers.length;
+        double[] seeds = new double[means.length * nCols];
+        int matched = 0;
+        for (int i = 0; i < nCols; i++) {
+            int m = -1;
+            for (int j = 0; j < meansLayers.length; j++) {
+                if (meansLayers[j].equals(layers[i])) {
+                    m = j;
+                    break;
+                }
+            }
+            if (m < 0) {
+                log.log("warm start has no mean for layer '" + layers[i] + "'");
+                for (int j = 0; j < means.length; j++) {
+                    seeds[j * nCols + i] = Double.NaN;
+                }
+                continue;
+            }
+            matched++;
+
+            //the same row and column range standardization as the data
+            double min = extents[6 + i * 2];
+            double range = extents[6 + i * 2 + 1] - min;
+            for (int j = 0; j < means.length; j++) {
+                double v = range > 0 ? (means[j][m] - min) / range : 0;
+                seeds[j * nCols + i] = (v - col_min[i]) / col_range[i];
+            }
+        }
+        log.log("warm start: " + means.length + " groups, " + matched + " of " + nCols + " layers matched");
+
+        return seeds;
     }
 }
@@ -0,0 +1,212 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * process wide pool of the large arrays of a classification, data pieces,
+ * distances, groups and row distances, so that a long-lived process reuses
+ * the arrays of one job for the next instead of allocating them again
+ * <p/>
+ * arrays are reused when the same length is requested, as jobs of the same
+ * layers and area have the same pieces. Released arrays are held up to the
+ * limit, the oldest are dropped first, and are held softly so that the
+ * garbage collector removes them when the heap is short. Released arrays
+ * are zeroed only when taken by a caller that needs zeros.
+ * <p/>
+ * the pool is disabled until a limit is set, arrays are then allocated and
+ * dropped as before.
+ *
+ * @author adam
+ */
+public class AlocArena {
+
+    private static long limit = 0;
+    private static long held = 0;
+    private static long allocated = 0;
+    private static long reused = 0;
+
+    //released arrays by type and length, oldest first
+    private static final HashMap<String, LinkedList<SoftReference<Object>>> pool = new HashMap<String, LinkedList<SoftReference<Object>>>();
+    private static final LinkedHashMap<SoftReference<Object>, String> released = new LinkedHashMap<SoftReference<Object>, String>();
+    private static final HashMap<SoftReference<Object>, Long> sizes = new HashMap<SoftReference<Object>, Long>();
+
+    /**
+     * @param bytes most bytes of released arrays to hold, 0 to disable and
+     *              drop all
+     */
+    public static synchronized void setLimit(long bytes) {
+        limit = Math.max(0, bytes);
+        trim(0);
+    }
+
+    public static synchronized long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return bytes of arrays allocated by the pool
+     */
+    public static synchronized long allocated() {
+        return allocated;
+    }
+
+    /**
+     * @return bytes of arrays reused by the pool
+     */
+    public static synchronized long reused() {
+        return reused;
+    }
+
+    public static float[] floats(int length, boolean zero) {
+        float[] a = (float[]) take("F", length, length * 4L);
+        if (a == null) {
+            return new float[length];
+        } else if (zero) {
+            java.util.Arrays.fill(a, 0);
+        }
+        return a;
+    }
+
+    public static double[] doubles(int length, boolean zero) {
+        double[] a = (double[]) take("D", length, length * 8L);
+        if (a == null) {
+            return new double[length];
+        } else if (zero) {
+            java.util.Arrays.fill(a, 0);
+        }
+        return a;
+    }
+
+    public static int[] ints(int length, boolean zero) {
+        int[] a = (int[]) take("I", length, length * 4L);
+        if (a == null) {
+            return new int[length];
+        } else if (zero) {
+            java.util.Arrays.fill(a, 0);
+        }
+        return a;
+    }
+
+    public static short[] shorts(int length, boolean zero) {
+        short[] a = (short[]) take("S", length, length * 2L);
+        if (a == null) {
+            return new short[length];
+        } else if (zero) {
+            java.util.Arrays.fill(a, (short) 0);
+        }
+        return a;
+    }
+
+    /**
+     * return an array to the pool. It must not be used after.
+     *
+     * @param array float[], double[], int[] or short[], others are ignored
+     */
+    public static void release(Object array) {
+        String type;
+        long bytes;
+        int length;
+        if (array instanceof float[]) {
+            type = "F";
+            length = ((float[]) array).length;
+            bytes = length * 4L;
+        } else if (array instanceof double[]) {
+            type = "D";
+            length = ((double[]) array).length;
+            bytes = length * 8L;
+        } else if (array instanceof int[]) {
+            type = "I";
+            length = ((int[]) array).length;
+            bytes = length * 4L;
+        } else if (array instanceof short[]) {
+            type = "S";
+            length = ((short[]) array).length;
+            bytes = length * 2L;
+        } else {
+            return;
+        }
+
+        synchronized (AlocArena.class) {
+            if (bytes > limit || length == 0) {
+                return;
+            }
+            trim(bytes);
+            String key = type + length;
+            LinkedList<SoftReference<Object>> list = pool.get(key);
+            if (list == null) {
+                list = new LinkedList<SoftReference<Object>>();
+                pool.put(key, list);
+            }
+            SoftReference<Object> ref = new SoftReference<Object>(array);
+            list.add(ref);
+            released.put(ref, key);
+            sizes.put(ref, bytes);
+            held += bytes;
+        }
+    }
+
+    private static synchronized Object take(String type, int length, long bytes) {
+        LinkedList<SoftReference<Object>> list = pool.get(type + length);
+        while (list != null && !list.isEmpty()) {
+            SoftReference<Object> ref = list.removeLast();
+            released.remove(ref);
+            held -= sizes.remove(ref);
+            Object a = ref.get();
+            if (a != null) {
+                reused += bytes;
+                return a;
+            }
+        }
+        allocated += bytes;
+        return null;
+    }
+
+    /**
+     * drop the oldest released arrays, and those removed by the garbage
+     * collector, until there is space for another
+     */
+    private static void trim(long bytes) {
+        Iterator<Map.Entry<SoftReference<Object>, String>> it = released.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<SoftReference<Object>, String> e = it.next();
+            if (held + bytes > limit || e.getKey().get() == null) {
+                pool.get(e.getValue()).remove(e.getKey());
+                held -= sizes.remove(e.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return collections and milliseconds of garbage collection since the
+     * JVM started
+     */
+    public static long[] gcTime() {
+        long[] t = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            t[0] += Math.max(0, gc.getCollectionCount());
+            t[1] += Math.max(0, gc.getCollectionTime());
+        }
+        return t;
+    }
+}
@@ -0,0 +1,333 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import au.org.ala.spatial.analysis.AnalysisLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ALOC allocation without an iteration barrier
+ * <p/>
+ * workers take pieces in turn and allocate rows to the nearest centroid of
+ * their own copy of the centroids. Changes of group membership are added to
+ * shared sums, locked by group, and the copy of the centroids is refreshed
+ * before the next piece.
+ * <p/>
+ * finishes when no row moved in the last window of evaluations, one
+ * evaluation for each piece, or after MAX_PASSES evaluations of each piece.
+ * <p/>
+ * centroids are the mean of current group members. Results are not
+ * repeatable between runs.
+ *
+ * @author adam
+ */
+class AlocAsync {
+
+    private static final int MAX_PASSES = 250;
+
+    ArrayList<Object> data_pieces;
+    int pieces;
+    int nCols;
+    int nGroups;
+    AnalysisLog log;
+
+    //shared sums of group members, locked by group
+    double[] sums;
+    int[] counts;
+    Object[] locks;
+
+    //centroid of a group without members
+    double[] initial;
+
+    short[][] groups;
+    AtomicBoolean[] busy;
+    AtomicLong next = new AtomicLong();
+
+    //rows moved in each of the last evaluations
+    int[] window;
+    int windowSum;
+    long completed;
+    long maxCompleted;
+    volatile boolean finished;
+
+    /**
+     * allocate rows to groups
+     *
+     * @param data_pieces  range standardized data pieces
+     * @param pieces       number of data pieces
+     * @param nCols        number of columns
+     * @param seeds        initial centroids as [group * nCols + column]
+     * @param nGroups      number of groups
+     * @param threadcount  number of threads
+     * @param executor     threads of the process to run on, see
+     *                     AlocOptions.executor, null to start threads
+     * @param passes       receives the number of evaluations of each piece
+     * @param rowDistances receives the distance of each row to its group, may
+     *                     be null
+     * @param log
+     * @return group of each row
+     */
+    static int[] run(ArrayList<Object> data_pieces, int pieces, int nCols, double[] seeds, int nGroups, int threadcount, ExecutorService executor, int[] passes, double[] rowDistances, AnalysisLog log) {
+        AlocAsync a = new AlocAsync();
+        a.data_pieces = data_pieces;
+        a.pieces = pieces;
+        a.nCols = nCols;
+        a.nGroups = nGroups;
+        a.log = log;
+        a.initial = seeds;
+        a.sums = new double[nGroups * nCols];
+        a.counts = new int[nGroups * nCols];
+        a.locks = new Object[nGroups];
+        for (int i = 0; i < nGroups; i++) {
+            a.locks[i] = new Object();
+        }
+        a.groups = new short[pieces][];
+        a.busy = new AtomicBoolean[pieces];
+        for (int i = 0; i < pieces; i++) {
+            a.groups[i] = new short[Aloc.pieceLength(data_pieces, i) / nCols];
+            java.util.Arrays.fill(a.groups[i], (short) -1);
+            a.busy[i] = new AtomicBoolean();
+        }
+        a.window = new int[pieces];
+        a.maxCompleted = (long) MAX_PASSES * pieces;
+
+        //a piece is evaluated by one worker at a time
+        int nThreads = Math.max(1, Math.min(threadcount, pieces));
+        log.log("Started asynchronous AlocInnerLoops (" + nThreads + " threads): " + System.currentTimeMillis());
+        ExecutorService workers = executor != null ? executor : Executors.newFixedThreadPool(nThreads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < nThreads; i++) {
+            futures.add(workers.submit(new AlocAsyncWorker(a)));
+        }
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        if (workers != executor) {
+            workers.shutdown();
+        }
+
+        passes[0] = (int) ((a.completed + pieces - 1) / pieces);
+        log.log("asynchronous: " + a.completed + " piece evaluations, " + passes[0] + " passes");
+
+        int nRows = 0;
+        for (int i = 0; i < pieces; i++) {
+            nRows += a.groups[i].length;
+        }
+        int[] result = new int[nRows];
+        double[] centroids = new double[nGroups * nCols];
+        a.refresh(centroids);
+        int k = 0;
+        for (int i = 0; i < pieces; i++) {
+            float[] data = Aloc.piece(data_pieces, i);
+            for (int j = 0; j < a.groups[i].length; j++, k++) {
+                result[k] = a.groups[i][j];
+                if (rowDistances != null) {
+                    rowDistances[k] = a.distance(data, j, centroids, result[k]);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * copy current centroids
+     *
+     * @param centroids receives centroids as [group * nCols + column]
+     */
+    void refresh(double[] centroids) {
+        for (int i = 0; i < nGroups; i++) {
+            synchronized (locks[i]) {
+                for (int j = 0; j < nCols; j++) {
+                    int k = i * nCols + j;
+                    centroids[k] = counts[k] > 0 ? sums[k] / counts[k] : initial[k];
+                }
+            }
+        }
+    }
+
+    /**
+     * add changes of group membership to the shared sums
+     */
+    void publish(double[] dSums, int[] dCounts, boolean[] changed) {
+        for (int i = 0; i < nGroups; i++) {
+            if (changed[i]) {
+                synchronized (locks[i]) {
+                    for (int j = 0; j < nCols; j++) {
+                        int k = i * nCols + j;
+                        sums[k] += dSums[k];
+                        counts[k] += dCounts[k];
+                        dSums[k] = 0;
+                        dCounts[k] = 0;
+                    }
+                }
+                changed[i] = false;
+            }
+        }
+    }
+
+    /**
+     * record the rows moved by one piece evaluation and test for convergence
+     */
+    synchronized void complete(int moved) {
+        int w = (int) (completed % pieces);
+        windowSum += moved - window[w];
+        window[w] = moved;
+        completed++;
+
+        if (completed % pieces == 0) {
+            log.log("moving (" + (completed / pieces) + ") > moved " + windowSum);
+        }
+        if ((completed >= pieces && windowSum == 0) || completed >= maxCompleted) {
+            finished = true;
+        }
+    }
+
+    /**
+     * gower distance of a row to a centroid
+     */
+    double distance(float[] data, int row, double[] centroids, int group) {
+        double dist = 0;
+        int missing = 0;
+        for (int k = 0; k < nCols; k++) {
+            double v1 = data[row * nCols + k];
+            double v2 = centroids[group * nCols + k];
+            if (Double.isNaN(v1) || Double.isNaN(v2)) {
+                missing++;
+            } else {
+                dist += Math.abs(v1 - v2);
+            }
+        }
+        return dist / (double) (nCols - missing);
+    }
+
+    /**
+     * allocate the rows of a piece
+     *
+     * @return number of rows that changed group
+     */
+    int allocate(int piece, double[] centroids, double[] dSums, int[] dCounts, boolean[] changed) {
+        float[] data = Aloc.piece(data_pieces, piece);
+        short[] grps = groups[piece];
+        int moved = 0;
+        for (int i = 0; i < grps.length; i++) {
+            //current group first, so that other groups can stop early
+            int min_idx = grps[i] < 0 ? 0 : grps[i];
+            double min_dist = distance(data, i, centroids, min_idx);
+            if (Double.isNaN(min_dist)) {
+                min_dist = Float.MAX_VALUE;
+            }
+            for (int j = 0; j < nGroups; j++) {
+                if (j == min_idx) {
+                    continue;
+                }
+                double bound = min_dist * nCols;
+                double dist = 0;
+                int missing = 0;
+                int k;
+                for (k = 0; k < nCols && dist <= bound; k++) {
+                    double v1 = data[i * nCols + k];
+                    double v2 = centroids[j * nCols + k];
+                    if (Double.isNaN(v1) || Double.isNaN(v2)) {
+                        missing++;
+                    } else {
+                        dist += Math.abs(v1 - v2);
+                    }
+                }
+                if (k == nCols) {
+                    dist = dist / (double) (nCols - missing);
+                    if (min_dist > dist) {
+                        min_dist = dist;
+                        min_idx = j;
+                    }
+                }
+            }
+
+            int grp = grps[i];
+            if (grp != min_idx) {
+                moved++;
+                if (grp >= 0) {
+                    changed[grp] = true;
+                    for (int k = 0; k < nCols; k++) {
+                        if (!Float.isNaN(data[i * nCols + k])) {
+                            dSums[grp * nCols + k] -= data[i * nCols + k];
+                            dCounts[grp * nCols + k]--;
+                        }
+                    }
+                }
+                grps[i] = (short) min_idx;
+                changed[min_idx] = true;
+                for (int k = 0; k < nCols; k++) {
+                    if (!Float.isNaN(data[i * nCols + k])) {
+                        dSums[min_idx * nCols + k] += data[i * nCols + k];
+                        dCounts[min_idx * nCols + k]++;
+                    }
+                }
+            }
+        }
+        return moved;
+    }
+}
+
+/**
+ * takes pieces in turn until AlocAsync is finished
+ *
+ * @author Adam
+ */
+class AlocAsyncWorker implements Runnable {
+
+    AlocAsync alocAsync;
+
+    public AlocAsyncWorker(AlocAsync alocAsync_) {
+        alocAsync = alocAsync_;
+    }
+
+    @Override
+    public void run() {
+        try {
+            AlocAsync a = alocAsync;
+            double[] centroids = new double[a.nGroups * a.nCols];
+            double[] dSums = new double[a.nGroups * a.nCols];
+            int[] dCounts = new int[a.nGroups * a.nCols];
+            boolean[] changed = new boolean[a.nGroups];
+
+            a.refresh(centroids);
+            while (!a.finished) {
+                int piece = (int) (a.next.getAndIncrement() % a.pieces);
+                if (!a.busy[piece].compareAndSet(false, true)) {
+                    continue;
+                }
+                int moved = a.allocate(piece, centroids, dSums, dCounts, changed);
+                a.busy[piece].set(false);
+
+                a.publish(dSums, dCounts, changed);
+                a.complete(moved);
+                a.refresh(centroids);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
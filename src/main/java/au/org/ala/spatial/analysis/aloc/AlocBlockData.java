@@ -0,0 +1,87 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * consecutive pieces evaluated by one thread, in order, with the adjustments
+ * of their rows. The number of blocks does not depend on the number of
+ * threads and their adjustments are added pairwise in a fixed order, see
+ * Aloc.reduce, so that results do not depend on the number of threads.
+ */
+class AlocBlockData {
+
+    public int firstPiece;
+    public int endPiece;
+    //pieces to evaluate in the current iteration
+    public List<AlocPieceData> active = new ArrayList<AlocPieceData>();
+    //adjustments from the pieces of this block in the current iteration
+    public boolean adjusted;
+    public int[] groupsize;
+    public int[] seeds_nmv_adjustment;
+    public double[] seeds_adjustment;
+
+    public AlocBlockData(int firstPiece_, int endPiece_, int seedidxsize, int nCols) {
+        firstPiece = firstPiece_;
+        endPiece = endPiece_;
+        groupsize = new int[seedidxsize];
+        seeds_nmv_adjustment = new int[seedidxsize * nCols];
+        seeds_adjustment = new double[seedidxsize * nCols];
+    }
+
+    /**
+     * add the adjustments of another block to this block
+     */
+    public void add(AlocBlockData other) {
+        if (!other.adjusted) {
+            return;
+        }
+        if (!adjusted) {
+            //exchange with the zero adjustments of this block
+            int[] gs = groupsize;
+            int[] nmv = seeds_nmv_adjustment;
+            double[] sa = seeds_adjustment;
+            groupsize = other.groupsize;
+            seeds_nmv_adjustment = other.seeds_nmv_adjustment;
+            seeds_adjustment = other.seeds_adjustment;
+            other.groupsize = gs;
+            other.seeds_nmv_adjustment = nmv;
+            other.seeds_adjustment = sa;
+            adjusted = true;
+            other.adjusted = false;
+            return;
+        }
+        for (int j = 0; j < groupsize.length; j++) {
+            groupsize[j] += other.groupsize[j];
+        }
+        for (int j = 0; j < seeds_adjustment.length; j++) {
+            seeds_adjustment[j] += other.seeds_adjustment[j];
+            seeds_nmv_adjustment[j] += other.seeds_nmv_adjustment[j];
+        }
+    }
+
+    /**
+     * zero the adjustments
+     */
+    public void clear() {
+        if (adjusted) {
+            java.util.Arrays.fill(groupsize, 0);
+            java.util.Arrays.fill(seeds_nmv_adjustment, 0);
+            java.util.Arrays.fill(seeds_adjustment, 0);
+            adjusted = false;
+        }
+    }
+}
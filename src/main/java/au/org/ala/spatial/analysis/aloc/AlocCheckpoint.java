@@ -0,0 +1,236 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import java.io.*;
+
+/**
+ * iteration state of runGowerMetricThreadedMemory, written between
+ * iterations so that a failed run can be resumed
+ * <p/>
+ * distances are not stored, a resumed run starts with zero distances so
+ * that every group is tested in its first iteration.
+ *
+ * @author adam
+ */
+class AlocCheckpoint implements Runnable {
+
+    private static final int MAGIC = 0x414c4f43; //ALOC
+    private static final int VERSION = 2;
+
+    //identifies the data and request this checkpoint belongs to
+    int nNoOfGroups;
+    int nCols;
+    int[] rowCounts;
+    String key;
+
+    //iteration state
+    int iteration;
+    int seedidxsize;
+    double[] seeds;
+    int[] seedgroup_nonmissingvalues;
+    int[] groupsize;
+    double[] groupMovement;
+    double[] otherGroupMovement;
+
+    //thread adjustments are never reset, so their sum is part of the state
+    int[] groupsizeAdjustment;
+    int[] seedsNmvAdjustment;
+    double[] seedsAdjustment;
+
+    //group allocation for each row
+    short[] groups;
+
+    //best snapshot
+    int minMovement;
+    int[] minGroups;
+    double[] minDists;
+    double[] minSeeds;
+    int[] minCount;
+
+    String filename;
+
+    /**
+     * write to filename in the background, see run()
+     */
+    void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    @Override
+    public void run() {
+        try {
+            write(filename);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * writes this checkpoint to a temporary file that then replaces filename,
+     * so an interrupted write does not corrupt the previous checkpoint.
+     *
+     * @param filename checkpoint file
+     * @throws IOException
+     */
+    void write(String filename) throws IOException {
+        File tmp = new File(filename + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1024 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nNoOfGroups);
+            out.writeInt(nCols);
+            writeInts(out, rowCounts);
+            out.writeUTF(String.valueOf(key));
+
+            out.writeInt(iteration);
+            out.writeInt(seedidxsize);
+            writeDoubles(out, seeds);
+            writeInts(out, seedgroup_nonmissingvalues);
+            writeInts(out, groupsize);
+            writeDoubles(out, groupMovement);
+            writeDoubles(out, otherGroupMovement);
+
+            writeInts(out, groupsizeAdjustment);
+            writeInts(out, seedsNmvAdjustment);
+            writeDoubles(out, seedsAdjustment);
+
+            out.writeInt(groups.length);
+            for (int i = 0; i < groups.length; i++) {
+                out.writeShort(groups[i]);
+            }
+
+            out.writeInt(minMovement);
+            out.writeInt(minGroups.length);
+            for (int i = 0; i < minGroups.length; i++) {
+                out.writeShort(minGroups[i]);
+            }
+            writeDoubles(out, minDists);
+            writeDoubles(out, minSeeds);
+            writeInts(out, minCount);
+        } finally {
+            out.close();
+        }
+
+        File f = new File(filename);
+        if (f.exists() && !f.delete() || !tmp.renameTo(f)) {
+            throw new IOException("failed to replace checkpoint: " + filename);
+        }
+    }
+
+    /**
+     * @param filename checkpoint file
+     * @return checkpoint or null when it does not exist or cannot be read
+     */
+    static AlocCheckpoint read(String filename) {
+        File f = new File(filename);
+        if (!f.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1024 * 1024));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            AlocCheckpoint cp = new AlocCheckpoint();
+            cp.nNoOfGroups = in.readInt();
+            cp.nCols = in.readInt();
+            cp.rowCounts = readInts(in);
+            cp.key = in.readUTF();
+
+            cp.iteration = in.readInt();
+            cp.seedidxsize = in.readInt();
+            cp.seeds = readDoubles(in);
+            cp.seedgroup_nonmissingvalues = readInts(in);
+            cp.groupsize = readInts(in);
+            cp.groupMovement = readDoubles(in);
+            cp.otherGroupMovement = readDoubles(in);
+
+            cp.groupsizeAdjustment = readInts(in);
+            cp.seedsNmvAdjustment = readInts(in);
+            cp.seedsAdjustment = readDoubles(in);
+
+            cp.groups = new short[in.readInt()];
+            for (int i = 0; i < cp.groups.length; i++) {
+                cp.groups[i] = in.readShort();
+            }
+
+            cp.minMovement = in.readInt();
+            cp.minGroups = new int[in.readInt()];
+            for (int i = 0; i < cp.minGroups.length; i++) {
+                cp.minGroups[i] = in.readShort();
+            }
+            cp.minDists = readDoubles(in);
+            cp.minSeeds = readDoubles(in);
+            cp.minCount = readInts(in);
+
+            return cp;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param key see Aloc.checkpointKey
+     * @return true when this checkpoint was made for the same request, the
+     * same input data and settings, and the same row layout
+     */
+    boolean matches(int nNoOfGroups, int nCols, int[] rowCounts, String key) {
+        return this.nNoOfGroups == nNoOfGroups
+                && String.valueOf(key).equals(this.key)
+                && this.nCols == nCols
+                && java.util.Arrays.equals(this.rowCounts, rowCounts);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] a) throws IOException {
+        out.writeInt(a.length);
+        for (int i = 0; i < a.length; i++) {
+            out.writeInt(a[i]);
+        }
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] a) throws IOException {
+        out.writeInt(a.length);
+        for (int i = 0; i < a.length; i++) {
+            out.writeDouble(a[i]);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] a = new int[in.readInt()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = in.readInt();
+        }
+        return a;
+    }
+
+    private static double[] readDoubles(DataInputStream in) throws IOException {
+        double[] a = new double[in.readInt()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = in.readDouble();
+        }
+        return a;
+    }
+}
@@ -0,0 +1,591 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import au.org.ala.spatial.analysis.AnalysisLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * blocks of data pieces evaluated by worker processes, for Aloc
+ * <p/>
+ * the coordinator assigns contiguous ranges of blocks to workers over
+ * sockets. Each iteration Aloc sends the seeds and group movement to all
+ * workers, which evaluate the active pieces of their blocks the same as
+ * Aloc, and adds the adjustments of each block in the same fixed order, so
+ * that results are the same as without workers. Seeds, group sizes, the
+ * groups of all rows and the minimum group membership are kept by Aloc.
+ * <p/>
+ * workers on this machine map their pieces from options.dataFilename when
+ * it holds the same values, before or after range standardization,
+ * otherwise the pieces are sent in chunks.
+ * <p/>
+ * when a worker fails, or sends no reply or heartbeat for READ_TIMEOUT ms,
+ * its blocks are assigned to the next live worker, with the current groups
+ * of their rows, and evaluated again for the same seeds. When no workers
+ * remain the blocks are evaluated by a worker in this process.
+ *
+ * @author adam
+ */
+class AlocCoordinator {
+
+    //ms to wait for workers to connect, for a reply or heartbeat, and for
+    //local worker processes to exit
+    private static final int ACCEPT_TIMEOUT = 60000;
+    private static final int READ_TIMEOUT = AlocWorker.HEARTBEAT_INTERVAL * 6;
+    private static final int STOP_TIMEOUT = 10000;
+
+    ArrayList<Object> data_pieces;
+    List<AlocPieceData> apdList;
+    AlocBlockData[] blocks;
+    int nCols;
+    int seedidxsize;
+    float[] col_min;
+    double[] col_range;
+    int rowTile;
+    int centroidTile;
+    int threadcount;
+    AnalysisLog log;
+
+    //position of each piece in options.dataFilename
+    String dataFilename;
+    long[] pieceOffsets;
+
+    //block of each piece, and the worker of each block
+    int[] pieceBlock;
+    AlocWorkerConnection[] owners;
+    //blocks with the reply of the current iteration applied, these are not
+    //evaluated again when their worker fails after
+    boolean[] evaluatedBlocks;
+
+    List<AlocWorkerConnection> connections = new ArrayList<AlocWorkerConnection>();
+    //blocks of failed workers
+    List<Integer> orphans = new ArrayList<Integer>();
+    List<Process> processes = new ArrayList<Process>();
+
+    //the iteration being evaluated
+    int iteration;
+    double cumMaxMovement;
+    double[] cumMovement;
+    double[] groupMovement;
+    double[] seeds;
+    int[] seedgroup_nonmissingvalues;
+    int movement;
+    int evaluated;
+
+    /**
+     * @param data_pieces range standardized data pieces
+     * @param apdList     AlocPieceData of each piece with the groups of its
+     *                    rows
+     * @param blocks      blocks of Aloc, that receive the adjustments of each
+     *                    iteration
+     * @param col_min     column minimum of the range standardization
+     * @param col_range   column range of the range standardization
+     */
+    AlocCoordinator(ArrayList<Object> data_pieces, List<AlocPieceData> apdList, AlocBlockData[] blocks, int nCols, int seedidxsize,
+                    float[] col_min, double[] col_range, int rowTile, int centroidTile, AlocOptions options, int threadcount,
+                    AnalysisLog log) {
+        this.data_pieces = data_pieces;
+        this.apdList = apdList;
+        this.blocks = blocks;
+        this.nCols = nCols;
+        this.seedidxsize = seedidxsize;
+        this.col_min = col_min;
+        this.col_range = col_range;
+        this.rowTile = rowTile;
+        this.centroidTile = centroidTile;
+        this.threadcount = threadcount;
+        this.log = log;
+
+        int pieces = apdList.size();
+        dataFilename = options.dataFilename;
+        pieceOffsets = new long[pieces];
+        pieceBlock = new int[pieces];
+        for (int i = 0; i < pieces; i++) {
+            pieceOffsets[i] = i == 0 ? options.dataOffset
+                    : pieceOffsets[i - 1] + (long) Aloc.pieceLength(data_pieces, i - 1) * 4;
+        }
+        for (int b = 0; b < blocks.length; b++) {
+            for (int i = blocks[b].firstPiece; i < blocks[b].endPiece; i++) {
+                pieceBlock[i] = b;
+            }
+        }
+        owners = new AlocWorkerConnection[blocks.length];
+        evaluatedBlocks = new boolean[blocks.length];
+
+        connect(options.workers, options.workerPort, Math.max(1, threadcount / options.workers));
+
+        //contiguous ranges of blocks
+        int n = connections.size();
+        for (int w = 0; w < n; w++) {
+            AlocWorkerConnection c = connections.get(w);
+            int first = blocks.length * w / n;
+            int end = blocks.length * (w + 1) / n;
+            long bytes = 0;
+            for (int b = first; b < end; b++) {
+                if (!c.alive) {
+                    orphans.add(b);
+                    continue;
+                }
+                try {
+                    bytes += assign(c, b);
+                } catch (IOException e) {
+                    fail(c, e);
+                }
+            }
+            if (c.alive && first < end) {
+                log.log("assigned blocks " + first + " to " + (end - 1) + " to " + c.name
+                        + (bytes == 0 ? ", mapped from " + dataFilename : ", sent " + (bytes >> 10) + "KB"));
+            }
+        }
+        if (n == 0) {
+            for (int b = 0; b < blocks.length; b++) {
+                orphans.add(b);
+            }
+        }
+        adopt(false);
+    }
+
+    /**
+     * accept connections from workers, launching local worker processes
+     * when port is 0
+     */
+    void connect(int workers, int port, int workerThreads) {
+        ServerSocket server = null;
+        try {
+            if (port == 0) {
+                server = new ServerSocket(0, 50, InetAddress.getByName(null));
+                String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+                for (int i = 0; i < workers; i++) {
+                    ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                            AlocWorker.class.getName(), "localhost", String.valueOf(server.getLocalPort()),
+                            String.valueOf(workerThreads));
+                    pb.redirectErrorStream(true);
+                    processes.add(start(pb, "worker " + (i + 1)));
+                }
+                log.log("started " + workers + " local workers on port " + server.getLocalPort());
+            } else {
+                server = new ServerSocket(port);
+                log.log("waiting for " + workers + " workers on port " + port);
+            }
+            server.setSoTimeout(ACCEPT_TIMEOUT);
+            for (int i = 0; i < workers; i++) {
+                connections.add(accept(server, "worker " + (i + 1)));
+            }
+        } catch (Exception e) {
+            log.err("connected " + connections.size() + " of " + workers + " workers");
+            e.printStackTrace();
+        } finally {
+            close(server);
+        }
+    }
+
+    AlocWorkerConnection accept(ServerSocket server, String name) throws IOException {
+        Socket socket = server.accept();
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(READ_TIMEOUT);
+        AlocWorkerConnection c = new AlocWorkerConnection();
+        c.name = name + " " + socket.getRemoteSocketAddress();
+        c.socket = socket;
+        c.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        c.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        log.log("connected " + c.name);
+        return c;
+    }
+
+    /**
+     * start a process and copy its output to System.out
+     */
+    Process start(ProcessBuilder pb, final String name) throws IOException {
+        final Process p = pb.start();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()));
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        System.out.println(name + ": " + line);
+                    }
+                } catch (Exception e) {
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return p;
+    }
+
+    /**
+     * a worker in this process, for blocks when no workers remain
+     */
+    AlocWorkerConnection local() {
+        ServerSocket server = null;
+        try {
+            server = new ServerSocket(0, 1, InetAddress.getByName(null));
+            server.setSoTimeout(ACCEPT_TIMEOUT);
+            final int port = server.getLocalPort();
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    AlocWorker.serve("localhost", port, threadcount);
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+            AlocWorkerConnection c = accept(server, "coordinator");
+            connections.add(c);
+            log.log("no workers remain, blocks are evaluated by the coordinator");
+            return c;
+        } catch (IOException e) {
+            throw new RuntimeException("cannot evaluate blocks in the coordinator", e);
+        } finally {
+            close(server);
+        }
+    }
+
+    /**
+     * evaluate the blocks of an iteration. Each block with active pieces
+     * receives its adjustments and the groups of rows that changed are
+     * updated in apdList.
+     *
+     * @return rows that changed group, and rows evaluated
+     */
+    int[] iterate(int iteration, double[] cumMovement, double[] cumMaxMovement, double[] groupMovement,
+                  double[] seeds, int[] seedgroup_nonmissingvalues) {
+        this.iteration = iteration;
+        this.cumMaxMovement = cumMaxMovement[iteration];
+        this.cumMovement = java.util.Arrays.copyOfRange(cumMovement, iteration * seedidxsize, (iteration + 1) * seedidxsize);
+        this.groupMovement = groupMovement;
+        this.seeds = seeds;
+        this.seedgroup_nonmissingvalues = seedgroup_nonmissingvalues;
+        movement = 0;
+        evaluated = 0;
+        java.util.Arrays.fill(evaluatedBlocks, false);
+
+        for (AlocWorkerConnection c : connections) {
+            if (c.alive) {
+                try {
+                    send(c, c.blocks);
+                } catch (IOException e) {
+                    fail(c, e);
+                }
+            }
+        }
+        for (AlocWorkerConnection c : connections) {
+            if (c.alive) {
+                try {
+                    receive(c, c.blocks);
+                } catch (IOException e) {
+                    fail(c, e);
+                }
+            }
+        }
+        adopt(true);
+
+        return new int[]{movement, evaluated};
+    }
+
+    /**
+     * evaluate a row in the next iteration
+     *
+     * @param piece piece of the row
+     * @param row   row in the piece
+     */
+    void wake(int piece, int row) {
+        AlocWorkerConnection c = owners[pieceBlock[piece]];
+        if (c != null) {
+            c.wakes.add(new int[]{piece, row});
+        }
+    }
+
+    /**
+     * assign orphaned blocks to the next live worker, or to a worker in this
+     * process
+     *
+     * @param evaluate evaluate the blocks for the current iteration
+     */
+    void adopt(boolean evaluate) {
+        int next = 0;
+        while (!orphans.isEmpty()) {
+            AlocWorkerConnection c = null;
+            for (int i = 0; i < connections.size() && c == null; i++) {
+                AlocWorkerConnection candidate = connections.get((next + i) % connections.size());
+                if (candidate.alive) {
+                    c = candidate;
+                }
+            }
+            if (c == null) {
+                c = local();
+            }
+            next = connections.indexOf(c) + 1;
+
+            int b = orphans.remove(0);
+            try {
+                long bytes = assign(c, b);
+                log.log("assigned block " + b + " to " + c.name
+                        + (bytes == 0 ? ", mapped from " + dataFilename : ", sent " + (bytes >> 10) + "KB"));
+                if (evaluate && !evaluatedBlocks[b]) {
+                    List<Integer> ids = new ArrayList<Integer>();
+                    ids.add(b);
+                    send(c, ids);
+                    receive(c, ids);
+                }
+            } catch (IOException e) {
+                fail(c, e);
+            }
+        }
+    }
+
+    /**
+     * send a block, the groups of its rows and, when the worker cannot map
+     * them, its pieces
+     *
+     * @return bytes of pieces sent, 0 when they were mapped
+     */
+    long assign(AlocWorkerConnection c, int b) throws IOException {
+        c.blocks.add(b);
+        owners[b] = c;
+        AlocBlockData block = blocks[b];
+        DataOutputStream out = c.out;
+        out.writeInt(AlocWorker.ASSIGN);
+        out.writeInt(nCols);
+        out.writeInt(seedidxsize);
+        out.writeInt(rowTile);
+        out.writeInt(centroidTile);
+        AlocWorker.writeDoubles(out, col_range, nCols);
+        AlocWorker.writeFloats(out, col_min, nCols);
+        out.writeInt(b);
+        out.writeInt(block.firstPiece);
+        out.writeInt(block.endPiece);
+        for (int i = block.firstPiece; i < block.endPiece; i++) {
+            short[] groups = apdList.get(i).groups;
+            out.writeInt(groups.length);
+            AlocWorker.writeShorts(out, groups, groups.length);
+        }
+        out.writeUTF(dataFilename == null ? "" : dataFilename);
+        if (dataFilename != null) {
+            int hash = 1;
+            for (int i = block.firstPiece; i < block.endPiece; i++) {
+                hash = AlocWorker.hash(hash, FloatBuffer.wrap(Aloc.piece(data_pieces, i)));
+            }
+            out.writeLong(pieceOffsets[block.firstPiece]);
+            out.writeInt(hash);
+        }
+        out.flush();
+
+        boolean mapped = reply(c, AlocWorker.ASSIGN) == 1;
+        long bytes = 0;
+        for (int i = block.firstPiece; i < block.endPiece && !mapped; i++) {
+            float[] data = Aloc.piece(data_pieces, i);
+            AlocWorker.writeFloats(out, data, data.length);
+            bytes += (long) data.length * 4;
+        }
+        out.flush();
+        return bytes;
+    }
+
+    /**
+     * send the seeds of the iteration and the blocks to evaluate
+     */
+    void send(AlocWorkerConnection c, List<Integer> ids) throws IOException {
+        DataOutputStream out = c.out;
+        out.writeInt(AlocWorker.ITERATE);
+        out.writeInt(iteration);
+        out.writeDouble(cumMaxMovement);
+        AlocWorker.writeDoubles(out, cumMovement, seedidxsize);
+        AlocWorker.writeDoubles(out, groupMovement, seedidxsize);
+        AlocWorker.writeDoubles(out, seeds, seedidxsize * nCols);
+        AlocWorker.writeInts(out, seedgroup_nonmissingvalues, seedidxsize * nCols);
+        out.writeInt(c.wakes.size());
+        for (int[] w : c.wakes) {
+            out.writeInt(w[0]);
+            out.writeInt(w[1]);
+        }
+        c.wakes.clear();
+        out.writeInt(ids.size());
+        for (int b : ids) {
+            out.writeInt(b);
+        }
+        out.flush();
+    }
+
+    /**
+     * read the reply to ITERATE and apply it
+     *
+     * @param sent blocks sent to evaluate
+     */
+    void receive(AlocWorkerConnection c, List<Integer> sent) throws IOException {
+        DataInputStream in = c.in;
+        reply(c, AlocWorker.ITERATE);
+
+        //read all of the reply before applying it
+        int moved = in.readInt();
+        int rows = in.readInt();
+        int n = in.readInt();
+        int[] ids = new int[n];
+        AlocBlockData[] adjustments = new AlocBlockData[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = in.readInt();
+            adjustments[i] = new AlocBlockData(0, 0, seedidxsize, nCols);
+            AlocWorker.readInts(in, adjustments[i].groupsize, seedidxsize);
+            AlocWorker.readInts(in, adjustments[i].seeds_nmv_adjustment, seedidxsize * nCols);
+            AlocWorker.readDoubles(in, adjustments[i].seeds_adjustment, seedidxsize * nCols);
+        }
+        n = in.readInt();
+        int[] changed = new int[n];
+        short[][] groups = new short[n][];
+        for (int i = 0; i < n; i++) {
+            changed[i] = in.readInt();
+            groups[i] = new short[apdList.get(changed[i]).groups.length];
+            AlocWorker.readShorts(in, groups[i], groups[i].length);
+        }
+
+        movement += moved;
+        evaluated += rows;
+        for (int i = 0; i < ids.length; i++) {
+            AlocBlockData block = blocks[ids[i]];
+            System.arraycopy(adjustments[i].groupsize, 0, block.groupsize, 0, seedidxsize);
+            System.arraycopy(adjustments[i].seeds_nmv_adjustment, 0, block.seeds_nmv_adjustment, 0, seedidxsize * nCols);
+            System.arraycopy(adjustments[i].seeds_adjustment, 0, block.seeds_adjustment, 0, seedidxsize * nCols);
+            block.adjusted = true;
+        }
+        for (int i = 0; i < changed.length; i++) {
+            short[] g = apdList.get(changed[i]).groups;
+            System.arraycopy(groups[i], 0, g, 0, g.length);
+        }
+        for (int b : sent) {
+            evaluatedBlocks[b] = true;
+        }
+    }
+
+    /**
+     * read a reply, after any heartbeats
+     *
+     * @return value after the reply message
+     */
+    int reply(AlocWorkerConnection c, int message) throws IOException {
+        int m;
+        while ((m = c.in.readInt()) == AlocWorker.HEARTBEAT) {
+        }
+        if (m != message) {
+            throw new IOException("expected message " + message + ", received " + m);
+        }
+        return message == AlocWorker.ASSIGN ? c.in.readInt() : m;
+    }
+
+    /**
+     * mark a worker as failed, its blocks are assigned again
+     */
+    void fail(AlocWorkerConnection c, Exception e) {
+        log.err(c.name + " failed: " + e + ", reassigning " + c.blocks.size() + " blocks");
+        c.alive = false;
+        for (int b : c.blocks) {
+            owners[b] = null;
+            if (!evaluatedBlocks[b]) {
+                blocks[b].clear();
+            }
+        }
+        orphans.addAll(c.blocks);
+        c.blocks.clear();
+        c.wakes.clear();
+        try {
+            c.socket.close();
+        } catch (Exception ex) {
+        }
+    }
+
+    /**
+     * stop workers, and local worker processes that have not exited after
+     * STOP_TIMEOUT ms
+     */
+    void stop() {
+        for (AlocWorkerConnection c : connections) {
+            if (c.alive) {
+                try {
+                    c.out.writeInt(AlocWorker.STOP);
+                    c.out.flush();
+                    c.socket.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        long end = System.currentTimeMillis() + STOP_TIMEOUT;
+        for (Process p : processes) {
+            try {
+                while (!exited(p) && System.currentTimeMillis() < end) {
+                    Thread.sleep(100);
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            if (!exited(p)) {
+                log.err("worker process did not stop, destroying it");
+                p.destroy();
+            }
+        }
+    }
+
+    static boolean exited(Process p) {
+        try {
+            p.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
+        }
+    }
+
+    static void close(ServerSocket server) {
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/**
+ * a worker process, or a worker in the coordinator
+ *
+ * @author Adam
+ */
+class AlocWorkerConnection {
+
+    String name;
+    Socket socket;
+    DataInputStream in;
+    DataOutputStream out;
+    boolean alive = true;
+
+    //blocks assigned
+    List<Integer> blocks = new ArrayList<Integer>();
+    //rows to evaluate in the next iteration, as {piece, row}
+    List<int[]> wakes = new ArrayList<int[]>();
+}
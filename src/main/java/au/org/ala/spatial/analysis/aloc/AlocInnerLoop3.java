@@ -0,0 +1,327 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * for data_pieces + larger memory usage (#cells * #groups)
+ *
+ * @author Adam
+ */
+class AlocInnerLoop3 implements Runnable {
+
+    ConcurrentLinkedQueue<AlocBlockData> blockQueue;
+    AlocThreadData alocThreadData;
+    AlocSharedData alocSharedData;
+
+    public AlocInnerLoop3(ConcurrentLinkedQueue<AlocBlockData> blockQueue_, AlocThreadData alocThreadData_, AlocSharedData alocSharedData_) {
+        blockQueue = blockQueue_;
+        alocThreadData = alocThreadData_;
+        alocSharedData = alocSharedData_;
+    }
+
+    /**
+     * evaluate blocks until there are none left. The active pieces of a
+     * block are evaluated in order.
+     */
+    @Override
+    public void run() {
+        try {
+            AlocBlockData block;
+            while ((block = blockQueue.poll()) != null) {
+                long start = System.nanoTime();
+                for (AlocPieceData next : block.active) {
+                    load(next);
+                    alocInnerLoop(next, block);
+                    store(next);
+                }
+                alocThreadData.busy += System.nanoTime() - start;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void next() {
+        //reset movement
+        alocThreadData.movement = 0;
+        alocThreadData.evaluated = 0;
+    }
+
+    /**
+     * copy a memory-mapped piece into the buffers of this thread
+     */
+    private void load(AlocPieceData apd) {
+        if (apd.dataBuffer != null) {
+            FloatBuffer fb = apd.dataBuffer.duplicate();
+            fb.rewind();
+            if (alocThreadData.data == null || alocThreadData.data.length != fb.remaining()) {
+                alocThreadData.data = new float[fb.remaining()];
+            }
+            fb.get(alocThreadData.data);
+            apd.data = alocThreadData.data;
+        }
+        if (apd.distancesBuffer != null) {
+            DoubleBuffer db = apd.distancesBuffer.duplicate();
+            db.rewind();
+            if (alocThreadData.distances == null || alocThreadData.distances.length != db.remaining()) {
+                alocThreadData.distances = new double[db.remaining()];
+            }
+            db.get(alocThreadData.distances);
+            apd.distances = alocThreadData.distances;
+        }
+    }
+
+    /**
+     * write back the distances of a memory-mapped piece
+     */
+    private void store(AlocPieceData apd) {
+        if (apd.dataBuffer != null) {
+            apd.data = null;
+        }
+        if (apd.distancesBuffer != null) {
+            DoubleBuffer db = apd.distancesBuffer.duplicate();
+            db.rewind();
+            db.put(apd.distances);
+            apd.distances = null;
+        }
+    }
+
+    private void alocInnerLoop(AlocPieceData apd, AlocBlockData block) {
+        float[] data = apd.data;
+        double[] distances = apd.distances;
+        short[] groups = apd.groups;
+        double[] rowDist = apd.rowDist;
+        int[] evaluated = apd.evaluated;
+        double[] wake = apd.wake;
+        double[] pieceWake = apd.pieceWake;
+
+        final double[] groupMovement = alocSharedData.groupMovement;
+        final int iteration = alocSharedData.iteration;
+        final double[] cumMovement = alocSharedData.cumMovement;
+        final double level = alocSharedData.cumMaxMovement[iteration];
+        final int cumRow = iteration * alocSharedData.seedidxsize;
+        final int nCols = alocSharedData.nCols;
+        final double[] col_range = alocSharedData.col_range;
+        final int seedidxsize = alocSharedData.seedidxsize;
+        final double[] seeds = alocSharedData.seeds;
+        final int[] seedgroup_nonmissingvalues = alocSharedData.seedgroup_nonmissingvalues;
+
+        final int rowTile = alocSharedData.rowTile;
+        final int centroidTile = alocSharedData.centroidTile;
+        final int[] tRow = alocThreadData.tRow;
+        final int[] tGrp = alocThreadData.tGrp;
+        final int[] tPrevRow = alocThreadData.tPrevRow;
+        final int[] tMinIdx = alocThreadData.tMinIdx;
+        final int[] tFirstIdx = alocThreadData.tFirstIdx;
+        final double[] tGm = alocThreadData.tGm;
+        final double[] tMinDist = alocThreadData.tMinDist;
+        final double[] tFirst = alocThreadData.tFirst;
+        final double[] tSecond = alocThreadData.tSecond;
+        final boolean[] tComplete = alocThreadData.tComplete;
+
+        int i, j, k, t, n;
+        double min_dist_value = 0.00001f;
+        int min_idx = 0;
+        double dist;
+        int missing;
+        double v2;
+        double v1;
+
+        double min_dist;
+
+        int nRows = data.length / nCols;
+        int rws;
+        double gm;
+        int grp;
+        //int skips = 0;
+        int prevRow;
+        boolean consecutive;
+        double first, second;
+        int firstIdx;
+        boolean complete;
+
+        //a tile of rows is compared with a tile of centroids at a time, so
+        //that both stay in cache
+        for (int r0 = 0; r0 < nRows; r0 += rowTile) {
+            int r1 = Math.min(nRows, r0 + rowTile);
+
+            //rows to evaluate
+            n = 0;
+            for (i = r0; i < r1; i++) {
+                rws = i * seedidxsize;
+                grp = groups[i];
+
+                //skip rows below their wake level, their group cannot change
+                if (grp >= 0 && iteration > 1 && level + cumMovement[cumRow + grp] < wake[i]) {
+                    continue;
+                }
+                alocThreadData.evaluated++;
+
+                //movement since the row was last evaluated, -1 when it is the
+                //movement of the last iteration
+                consecutive = evaluated[i] == iteration - 1;
+                prevRow = consecutive ? -1 : (evaluated[i] < 0 ? -2 : evaluated[i] * seedidxsize);
+                evaluated[i] = iteration;
+
+                //the movement of a group bounds the change in distance of
+                //rows without missing values only, other rows are compared
+                //with every group
+                complete = true;
+                for (k = 0; k < nCols && complete; k++) {
+                    complete = !Float.isNaN(data[i * nCols + k]);
+                }
+
+                if (grp >= 0) {
+                    distances[rws + grp] += (consecutive ? groupMovement[grp] : cumMovement[cumRow + grp] - (prevRow < 0 ? 0 : cumMovement[prevRow + grp])) + min_dist_value;
+                    gm = distances[rws + grp];
+                    if (Double.isNaN(gm) || !complete) {
+                        gm = Float.MAX_VALUE;
+                    }
+                } else {
+                    gm = 0;
+                }
+
+                tRow[n] = i;
+                tGrp[n] = grp;
+                tPrevRow[n] = prevRow;
+                tGm[n] = gm;
+                tComplete[n] = complete;
+                tMinIdx[n] = grp >= 0 ? grp : 0;
+                tMinDist[n] = Float.MAX_VALUE;
+                tFirst[n] = Double.MAX_VALUE;
+                tSecond[n] = Double.MAX_VALUE;
+                tFirstIdx[n] = -1;
+                n++;
+            }
+
+            for (int c0 = 0; c0 < seedidxsize; c0 += centroidTile) {
+                int c1 = Math.min(seedidxsize, c0 + centroidTile);
+                for (t = 0; t < n; t++) {
+                    i = tRow[t];
+                    rws = i * seedidxsize;
+                    grp = tGrp[t];
+                    prevRow = tPrevRow[t];
+                    consecutive = prevRow == -1;
+                    gm = tGm[t];
+                    min_idx = tMinIdx[t];
+                    min_dist = tMinDist[t];
+                    first = tFirst[t];
+                    second = tSecond[t];
+                    firstIdx = tFirstIdx[t];
+
+                    for (j = c0; j < c1; j++) {
+                        distances[rws + j] -= consecutive ? groupMovement[j] : cumMovement[cumRow + j] - (prevRow < 0 ? 0 : cumMovement[prevRow + j]);
+                        if (j == grp || !(distances[rws + j] > gm)) {
+                            //calc dist between obj(i) & obj(seeds(j))
+                            dist = 0;
+                            missing = 0;
+                            for (k = 0; k < nCols; k++) {
+                                v1 = data[i * nCols + k];
+                                v2 = seeds[j * nCols + k];
+                                if (Double.isNaN(v1) || Double.isNaN(v2) || col_range[k] == 0) {
+                                    missing++;
+                                } else {
+                                    if (seedgroup_nonmissingvalues[j * nCols + k] > 0) {
+                                        v2 = v2 / seedgroup_nonmissingvalues[j * nCols + k];
+                                    }
+                                    dist += Math.abs(v1 - v2);//range == 1 (standardized 0-1); / (float) col_range[k];
+                                }
+                            }
+                            dist = dist / (double) (nCols - missing);
+                            if (min_dist > dist) {
+                                min_dist = dist;
+                                min_idx = j;
+                            }
+                            distances[rws + j] = dist;
+                        }
+
+                        //nearest two distances, for the wake level
+                        if (distances[rws + j] < first) {
+                            second = first;
+                            first = distances[rws + j];
+                            firstIdx = j;
+                        } else if (distances[rws + j] < second) {
+                            second = distances[rws + j];
+                        }
+                    }
+
+                    tMinIdx[t] = min_idx;
+                    tMinDist[t] = min_dist;
+                    tFirst[t] = first;
+                    tSecond[t] = second;
+                    tFirstIdx[t] = firstIdx;
+                }
+            }
+
+            for (t = 0; t < n; t++) {
+                i = tRow[t];
+                grp = tGrp[t];
+                min_idx = tMinIdx[t];
+                min_dist = tMinDist[t];
+
+                rowDist[i] = min_dist;
+
+                //wake when the group moves away, or the next nearest group moves
+                //closer, by the gap between them
+                wake[i] = (tFirstIdx[t] == min_idx ? tSecond[t] : tFirst[t]) - min_dist - min_dist_value
+                        + level + cumMovement[cumRow + min_idx];
+                if (Double.isNaN(wake[i]) || !tComplete[t]) {
+                    wake[i] = Double.NEGATIVE_INFINITY;
+                }
+
+                //add this group to group min_idx;
+                if (grp != (short) min_idx) {
+                    alocThreadData.movement++;
+
+                    //remove from previous group
+                    if (grp >= 0) {
+                        block.groupsize[grp]--;
+                        for (j = 0; j < nCols; j++) {
+                            if (!Float.isNaN(data[i * nCols + j])) {
+                                block.seeds_adjustment[grp * nCols + j] -= data[i * nCols + j];
+                                block.seeds_nmv_adjustment[grp * nCols + j]--;
+                            }
+                        }
+                    }
+
+                    //reassign group
+                    groups[i] = (short) min_idx;
+
+                    //add to new group
+                    block.groupsize[min_idx]++;
+
+                    for (j = 0; j < nCols; j++) {
+                        if (!Float.isNaN(data[i * nCols + j])) {
+                            block.seeds_adjustment[min_idx * nCols + j] += data[i * nCols + j];
+                            block.seeds_nmv_adjustment[min_idx * nCols + j]++;
+                        }
+                    }
+                }
+            }
+        }
+
+        //lowest wake level of each group in this piece
+        java.util.Arrays.fill(pieceWake, Double.MAX_VALUE);
+        for (i = 0; i < nRows; i++) {
+            if (groups[i] >= 0 && wake[i] < pieceWake[groups[i]]) {
+                pieceWake[groups[i]] = wake[i];
+            }
+        }
+        apd.dirty = false;
+    }
+}
@@ -0,0 +1,290 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import au.org.ala.spatial.analysis.AnalysisLog;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ALOC classification of rows held in memory, without files
+ * <p/>
+ * rows are added as blocks of float[] or FloatBuffer, each row nCols values
+ * with NaN for missing values. Rows are not removed, AlocResult.groups has
+ * one group for each row added.
+ * <p/>
+ * blocks are copied into data pieces, range standardized by column. With
+ * zeroCopy blocks that are already range standardized, each column with
+ * minimum 0 and maximum 1, are classified in place, as views of pieces of
+ * the same size as copies. Blocks are never changed.
+ * <p/>
+ * e.g.
+ * <p/>
+ * AlocJob job = new AlocJob(nCols, 20);
+ * job.addBlock(rows);
+ * AlocResult result = job.run();
+ *
+ * @author adam
+ */
+public class AlocJob {
+
+    //least number of data pieces when copying, the same as loading grids
+    private static final int MIN_PIECES = 64;
+
+    /**
+     * number of columns of each row
+     */
+    public int nCols;
+
+    /**
+     * number of groups requested
+     */
+    public int nGroups;
+
+    /**
+     * column names, for warm start means and log messages. Default
+     * "column 1" .. "column n"
+     */
+    public String[] layers;
+
+    /**
+     * number of threads
+     */
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * options, checkpointFilename is null unless set so that no files are
+     * written. options.destandardize is ignored.
+     */
+    public AlocOptions options = new AlocOptions();
+
+    /**
+     * classify range standardized blocks in place
+     */
+    public boolean zeroCopy = false;
+
+    public AnalysisLog log = new AnalysisLog();
+
+    List<Object> blocks = new ArrayList<Object>();
+
+    public AlocJob(int nCols, int nGroups) {
+        this.nCols = nCols;
+        this.nGroups = nGroups;
+    }
+
+    /**
+     * add rows
+     *
+     * @param rows rows of nCols values
+     */
+    public void addBlock(float[] rows) {
+        blocks.add(rows);
+    }
+
+    /**
+     * add rows
+     *
+     * @param rows rows of nCols values, from position 0 to the limit
+     */
+    public void addBlock(FloatBuffer rows) {
+        FloatBuffer fb = rows.duplicate();
+        fb.rewind();
+        blocks.add(fb.slice());
+    }
+
+    /**
+     * classify the rows
+     *
+     * @return result, null when there are no rows
+     */
+    public AlocResult run() {
+        ArrayList<Object> blockPieces = new ArrayList<Object>(blocks);
+        int nBlocks = blockPieces.size();
+        int nRows = 0;
+        for (int i = 0; i < nBlocks; i++) {
+            nRows += Aloc.pieceLength(blockPieces, i) / nCols;
+        }
+        if (nRows == 0) {
+            return null;
+        }
+        String[] names = layers;
+        if (names == null) {
+            names = new String[nCols];
+            for (int j = 0; j < nCols; j++) {
+                names[j] = "column " + (j + 1);
+            }
+        }
+
+        //range of each column
+        float[] min = new float[nCols];
+        float[] max = new float[nCols];
+        java.util.Arrays.fill(min, Float.MAX_VALUE);
+        java.util.Arrays.fill(max, Float.MAX_VALUE * -1);
+        for (int k = 0; k < nBlocks; k++) {
+            float[] d = Aloc.piece(blockPieces, k);
+            for (int i = 0; i < d.length; i += nCols) {
+                for (int j = 0; j < nCols; j++) {
+                    if (d[i + j] < min[j]) {
+                        min[j] = d[i + j];
+                    }
+                    if (d[i + j] > max[j]) {
+                        max[j] = d[i + j];
+                    }
+                }
+            }
+        }
+        boolean standardized = true;
+        for (int j = 0; j < nCols; j++) {
+            standardized &= min[j] == 0 && (max[j] == 1 || max[j] == 0);
+        }
+
+        ArrayList<Object> data_pieces;
+        boolean inPlace = zeroCopy && standardized;
+        if (inPlace) {
+            data_pieces = split(blockPieces, nRows);
+        } else {
+            if (zeroCopy) {
+                log.log("blocks are not range standardized, copying");
+            }
+            data_pieces = standardize(blockPieces, nRows, min, max);
+        }
+        int pieces = data_pieces.size();
+
+        //no cells, extents with the range of each column
+        double[] extents = new double[6 + nCols * 2];
+        for (int j = 0; j < nCols; j++) {
+            extents[6 + j * 2] = inPlace ? 0 : min[j];
+            extents[6 + j * 2 + 1] = inPlace ? 1 : max[j];
+        }
+        data_pieces.add(new int[0]);
+        data_pieces.add(extents);
+
+        AlocResult result = new AlocResult();
+        result.rowDistances = new double[nRows];
+        int[] iterationCount = new int[1];
+        //options of this run, so that options can be shared by jobs
+        AlocOptions runOptions = options.copy();
+        runOptions.destandardize = false;
+        result.groups = Aloc.runGowerMetricThreadedMemory(data_pieces, nGroups, nCols, pieces, names, log,
+                threads, iterationCount, result.rowDistances, runOptions);
+        result.iterations = iterationCount[0];
+
+        //group means in the units of the rows
+        int groupCount = 0;
+        for (int i = 0; i < result.groups.length; i++) {
+            groupCount = Math.max(groupCount, result.groups[i] + 1);
+        }
+        result.means = new double[groupCount][nCols];
+        int[][] counts = new int[groupCount][nCols];
+        int row = 0;
+        for (int k = 0; k < pieces; k++) {
+            float[] d = Aloc.piece(data_pieces, k);
+            for (int i = 0; i < d.length; i += nCols, row++) {
+                int g = result.groups[row];
+                for (int j = 0; j < nCols; j++) {
+                    if (!Float.isNaN(d[i + j])) {
+                        result.means[g][j] += d[i + j];
+                        counts[g][j]++;
+                    }
+                }
+            }
+        }
+        for (int g = 0; g < groupCount; g++) {
+            for (int j = 0; j < nCols; j++) {
+                result.means[g][j] = counts[g][j] > 0
+                        ? result.means[g][j] / counts[g][j] * (extents[6 + j * 2 + 1] - extents[6 + j * 2]) + extents[6 + j * 2]
+                        : Double.NaN;
+            }
+        }
+
+        if (options.metricsSampleSize >= 0) {
+            double[] unitMin = new double[nCols];
+            double[] unitRange = new double[nCols];
+            java.util.Arrays.fill(unitRange, 1);
+            result.metrics = AlocMetrics.calculate(data_pieces, pieces, nCols, unitMin, unitRange, result.groups,
+                    result.rowDistances, options.metricsSampleSize, threads, options.executor);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return rows of each data piece
+     */
+    int rowsPerPiece(int nRows) {
+        return Math.max(1, Math.min(Aloc.rowsPerPiece(nCols, nGroups, options.cacheSize), (nRows + MIN_PIECES - 1) / MIN_PIECES));
+    }
+
+    /**
+     * split blocks into data pieces without copying, as views of the rows of
+     * each block. A block is not joined to the next, so the last piece of a
+     * block may be smaller.
+     */
+    ArrayList<Object> split(ArrayList<Object> blockPieces, int nRows) {
+        int length = rowsPerPiece(nRows) * nCols;
+        ArrayList<Object> data = new ArrayList<Object>();
+        for (int k = 0; k < blockPieces.size(); k++) {
+            Object block = blockPieces.get(k);
+            int blockLength = Aloc.pieceLength(blockPieces, k);
+            if (blockLength <= length) {
+                data.add(block);
+                continue;
+            }
+            for (int pos = 0; pos < blockLength; pos += length) {
+                int n = Math.min(length, blockLength - pos);
+                if (block instanceof float[]) {
+                    data.add(FloatBuffer.wrap((float[]) block, pos, n).slice());
+                } else {
+                    FloatBuffer fb = ((FloatBuffer) block).duplicate();
+                    fb.limit(pos + n);
+                    fb.position(pos);
+                    data.add(fb.slice());
+                }
+            }
+        }
+        return data;
+    }
+
+    /**
+     * copy blocks into data pieces, range standardized by column
+     */
+    ArrayList<Object> standardize(ArrayList<Object> blockPieces, int nRows, float[] min, float[] max) {
+        int rows = rowsPerPiece(nRows);
+        ArrayList<Object> data = new ArrayList<Object>();
+        float[] current = null;
+        int pos = 0;
+        int remainingRows = nRows;
+        for (int k = 0; k < blockPieces.size(); k++) {
+            float[] d = Aloc.piece(blockPieces, k);
+            for (int i = 0; i < d.length; i += nCols) {
+                if (current == null) {
+                    current = new float[Math.min(rows, remainingRows) * nCols];
+                    remainingRows -= current.length / nCols;
+                    pos = 0;
+                }
+                for (int j = 0; j < nCols; j++) {
+                    float range = max[j] - min[j];
+                    current[pos++] = range > 0 ? (d[i + j] - min[j]) / range : (Float.isNaN(d[i + j]) ? Float.NaN : 0);
+                }
+                if (pos == current.length) {
+                    data.add(current);
+                    current = null;
+                }
+            }
+        }
+        return data;
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+
+/**
+ * prepared data of a classification, the range standardized data pieces,
+ * cells and extents, kept in a file named by the inputs it was prepared
+ * from
+ * <p/>
+ * a job with the same layers, layer files and bounds maps the file in place
+ * of reading the layers, whatever the number of groups or other settings.
+ * <p/>
+ * file layout, in native byte order: int version, int byte order (1 for
+ * little endian), int nCols, int nRows, int cells length, int extents
+ * length, extents as double, cells as int, then rows of nCols float.
+ *
+ * @author adam
+ */
+public class AlocMatrixFile {
+
+    //changes when the layout, or how data is prepared, changes
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 24;
+
+    private static final long SEGMENT_BYTES = 1L << 30;
+
+    /**
+     * @param gridFilenames grid files of each column, in column order
+     * @param bounds        xmin, ymin, xmax, ymax, xres, yres of the data
+     * @return file name for the prepared data, a hash of the inputs
+     */
+    public static String key(String[] gridFilenames, double[] bounds) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(VERSION);
+        for (int i = 0; i < gridFilenames.length; i++) {
+            File grd = new File(gridFilenames[i] + ".grd");
+            if (!grd.exists()) {
+                grd = new File(gridFilenames[i] + ".GRD");
+            }
+            File gri = new File(gridFilenames[i] + ".gri");
+            if (!gri.exists()) {
+                gri = new File(gridFilenames[i] + ".GRI");
+            }
+            String path;
+            try {
+                path = gri.getCanonicalPath();
+            } catch (IOException e) {
+                path = gri.getAbsolutePath();
+            }
+            sb.append("\n").append(path).append("\t").append(gri.length()).append("\t").append(gri.lastModified())
+                    .append("\t").append(grd.lastModified());
+        }
+        for (int i = 0; i < bounds.length; i++) {
+            sb.append("\n").append(bounds[i]);
+        }
+
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(sb.toString().getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < hash.length; i++) {
+                name.append(String.format("%02x", hash[i] & 0xff));
+            }
+            return name.append(".aloc").toString();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * write prepared data. The file is written under another name and
+     * renamed, so that it is never read incomplete.
+     *
+     * @param filename    file to write
+     * @param data_pieces data pieces, cells and extents
+     * @param nCols       number of columns
+     * @return true when written
+     */
+    public static boolean write(String filename, ArrayList<Object> data_pieces, int nCols) {
+        int pieces = data_pieces.size() - 2;
+        int[] cells = (int[]) data_pieces.get(pieces);
+        double[] extents = (double[]) data_pieces.get(pieces + 1);
+        int nRows = 0;
+        for (int i = 0; i < pieces; i++) {
+            nRows += Aloc.pieceLength(data_pieces, i) / nCols;
+        }
+
+        File file = new File(filename);
+        File tmp = new File(filename + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            file.getParentFile().mkdirs();
+            boolean lsb = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+            try {
+                ByteBuffer bb = ByteBuffer.allocate(HEADER_BYTES + extents.length * 8).order(ByteOrder.nativeOrder());
+                bb.putInt(VERSION).putInt(lsb ? 1 : 0).putInt(nCols).putInt(nRows).putInt(cells.length).putInt(extents.length);
+                bb.asDoubleBuffer().put(extents);
+                out.write(bb.array());
+
+                bb = ByteBuffer.allocate(cells.length * 4).order(ByteOrder.nativeOrder());
+                bb.asIntBuffer().put(cells);
+                out.write(bb.array());
+
+                for (int i = 0; i < pieces; i++) {
+                    float[] d = Aloc.piece(data_pieces, i);
+                    bb = ByteBuffer.allocate(d.length * 4).order(ByteOrder.nativeOrder());
+                    bb.asFloatBuffer().put(d);
+                    out.write(bb.array());
+                }
+            } finally {
+                out.close();
+            }
+            file.delete();
+            if (tmp.renameTo(file)) {
+                return true;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        tmp.delete();
+        return false;
+    }
+
+    /**
+     * @param nCells   number of cells of the prepared data
+     * @param nExtents number of extents of the prepared data
+     * @return position of the first row in the file
+     */
+    public static long dataOffset(int nCells, int nExtents) {
+        return HEADER_BYTES + nExtents * 8L + nCells * 4L;
+    }
+
+    /**
+     * map prepared data, split into data pieces the same as when loading
+     * layers. Pieces are mapped copy on write, changes to them are not
+     * written to the file.
+     *
+     * @param filename     file to map
+     * @param nCols        expected number of columns
+     * @param pieces       least number of pieces
+     * @param rowsPerPiece most rows in a piece, unless there are fewer than
+     *                     pieces
+     * @return data pieces as FloatBuffer, cells and extents, or null when the
+     * file does not exist or cannot be read
+     */
+    public static ArrayList<Object> map(String filename, int nCols, int pieces, int rowsPerPiece) {
+        File file = new File(filename);
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            //copy on write needs a writable channel, the file is not changed
+            raf = new RandomAccessFile(file, "rw");
+            FileChannel fc = raf.getChannel();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+            fc.read(header, 0);
+            header.flip();
+            boolean lsb = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+            if (header.remaining() < HEADER_BYTES || header.getInt() != VERSION || header.getInt() != (lsb ? 1 : 0)
+                    || header.getInt() != nCols) {
+                return null;
+            }
+            int nRows = header.getInt();
+            int nCells = header.getInt();
+            int nExtents = header.getInt();
+
+            long pos = HEADER_BYTES;
+            ByteBuffer bb = ByteBuffer.allocate(nExtents * 8 + nCells * 4).order(ByteOrder.nativeOrder());
+            while (bb.hasRemaining() && fc.read(bb, pos + bb.position()) > 0) {
+            }
+            if (bb.hasRemaining() || fc.size() != pos + bb.capacity() + (long) nRows * nCols * 4) {
+                return null;
+            }
+            bb.flip();
+            double[] extents = new double[nExtents];
+            bb.asDoubleBuffer().get(extents);
+            bb.position(nExtents * 8);
+            int[] cells = new int[nCells];
+            bb.slice().order(ByteOrder.nativeOrder()).asIntBuffer().get(cells);
+            pos += bb.capacity();
+
+            //pieces of the same rows as loading layers, in segments of up to
+            //1GB that no piece crosses
+            int rows = Math.max(1, Math.min(rowsPerPiece, (nRows + pieces - 1) / pieces));
+            long pieceBytes = (long) rows * nCols * 4;
+            ArrayList<Object> data = new ArrayList<Object>();
+            for (int first = 0; first < nRows; ) {
+                int segmentRows = (int) Math.min(nRows - first, Math.max(1, SEGMENT_BYTES / pieceBytes) * rows);
+                MappedByteBuffer segment = fc.map(FileChannel.MapMode.PRIVATE, pos + (long) first * nCols * 4, (long) segmentRows * nCols * 4);
+                for (int r = 0; r < segmentRows; r += rows) {
+                    int n = Math.min(rows, segmentRows - r);
+                    segment.limit((r + n) * nCols * 4);
+                    segment.position(r * nCols * 4);
+                    data.add(segment.slice().order(ByteOrder.nativeOrder()).asFloatBuffer());
+                }
+                first += segmentRows;
+            }
+            data.add(cells);
+            data.add(extents);
+            return data;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * quality of a classification, to compare classifications into different
+ * numbers of groups
+ * <p/>
+ * - dispersion, the mean gower distance of cells to their group, from the
+ * row distances of the classification
+ * <p/>
+ * - silhouette and Calinski-Harabasz index estimated from a random sample of
+ * cells
+ *
+ * @author adam
+ */
+public class AlocMetrics {
+
+    /**
+     * number of cells in each group
+     */
+    public int[] groupSize;
+
+    /**
+     * mean distance of cells to their group, for each group
+     */
+    public double[] groupDispersion;
+
+    /**
+     * mean distance of cells to their group
+     */
+    public double dispersion;
+
+    /**
+     * number of sampled cells in each group
+     */
+    public int[] groupSampleSize;
+
+    /**
+     * mean silhouette of sampled cells in each group
+     */
+    public double[] groupSilhouette;
+
+    /**
+     * mean silhouette of sampled cells
+     */
+    public double silhouette = Double.NaN;
+
+    /**
+     * Calinski-Harabasz index of sampled cells
+     */
+    public double calinskiHarabasz = Double.NaN;
+
+    /**
+     * number of sampled cells
+     */
+    public int sampleSize;
+
+    /**
+     * calculate metrics
+     *
+     * @param data_pieces  data pieces as float[], or FloatBuffer, rows of nCols
+     * @param pieces       number of data pieces
+     * @param nCols        number of columns
+     * @param colMin       minimum of each column, to range standardize data
+     * @param colRange     range of each column
+     * @param groups       group number (0..n-1) of each row
+     * @param rowDistances distance of each row to its group
+     * @param sampleSize   number of rows sampled for silhouette and
+     *                     Calinski-Harabasz, 0 for dispersion only
+     * @param threadcount  number of threads
+     * @return metrics
+     */
+    public static AlocMetrics calculate(ArrayList<Object> data_pieces, int pieces, int nCols, double[] colMin, double[] colRange,
+                                        int[] groups, double[] rowDistances, int sampleSize, int threadcount) {
+        return calculate(data_pieces, pieces, nCols, colMin, colRange, groups, rowDistances, sampleSize, threadcount, null);
+    }
+
+    /**
+     * see calculate
+     *
+     * @param executor threads of the process to run on, see
+     *                 AlocOptions.executor, null to start threads
+     */
+    public static AlocMetrics calculate(ArrayList<Object> data_pieces, int pieces, int nCols, double[] colMin, double[] colRange,
+                                        int[] groups, double[] rowDistances, int sampleSize, int threadcount, ExecutorService shared) {
+        AlocMetrics m = new AlocMetrics();
+        int nRows = groups.length;
+        int nGroups = 0;
+        int i, j;
+        for (i = 0; i < nRows; i++) {
+            if (groups[i] >= nGroups) {
+                nGroups = groups[i] + 1;
+            }
+        }
+
+        //dispersion
+        m.groupSize = new int[nGroups];
+        m.groupDispersion = new double[nGroups];
+        for (i = 0; i < nRows; i++) {
+            m.groupSize[groups[i]]++;
+            m.groupDispersion[groups[i]] += rowDistances[i];
+            m.dispersion += rowDistances[i];
+        }
+        for (i = 0; i < nGroups; i++) {
+            if (m.groupSize[i] > 0) {
+                m.groupDispersion[i] /= m.groupSize[i];
+            }
+        }
+        m.dispersion /= nRows;
+
+        m.groupSampleSize = new int[nGroups];
+        m.groupSilhouette = new double[nGroups];
+        if (sampleSize <= 0 || nGroups < 2) {
+            return m;
+        }
+
+        //sample rows, in row order
+        int[] sample = sample(nRows, sampleSize);
+        final int n = sample.length;
+        final float[] values = new float[n * nCols];
+        final int[] sampleGroups = new int[n];
+        int row = 0;
+        int s = 0;
+        for (int k = 0; k < pieces && s < n; k++) {
+            float[] d = Aloc.piece(data_pieces, k);
+            int rows = d.length / nCols;
+            while (s < n && sample[s] < row + rows) {
+                int r = sample[s] - row;
+                for (j = 0; j < nCols; j++) {
+                    values[s * nCols + j] = (float) ((d[r * nCols + j] - colMin[j]) / (colRange[j] > 0 ? colRange[j] : 1));
+                }
+                sampleGroups[s] = groups[sample[s]];
+                s++;
+            }
+            row += rows;
+        }
+        m.sampleSize = n;
+        final int fnGroups = nGroups;
+        final int fnCols = nCols;
+        final double[] fColRange = colRange;
+
+        //silhouette from all pairs of sampled rows, with the gower distance
+        //of the classification, over the columns present in both rows
+        final double[] silhouettes = new double[n];
+        final int[] sampleGroupSize = new int[nGroups];
+        for (i = 0; i < n; i++) {
+            sampleGroupSize[sampleGroups[i]]++;
+        }
+        ExecutorService executor = shared != null ? shared : Executors.newFixedThreadPool(threadcount);
+        List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+        for (int t = 0; t < threadcount; t++) {
+            final int first = t;
+            final int stride = threadcount;
+            tasks.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    double[] sum = new double[fnGroups];
+                    int[] count = new int[fnGroups];
+                    for (int a = first; a < n; a += stride) {
+                        java.util.Arrays.fill(sum, 0);
+                        java.util.Arrays.fill(count, 0);
+                        for (int b = 0; b < n; b++) {
+                            if (a != b) {
+                                double dist = 0;
+                                int present = 0;
+                                for (int k = 0; k < fnCols; k++) {
+                                    float va = values[a * fnCols + k];
+                                    float vb = values[b * fnCols + k];
+                                    if (!Float.isNaN(va) && !Float.isNaN(vb) && fColRange[k] != 0) {
+                                        dist += Math.abs(va - vb);
+                                        present++;
+                                    }
+                                }
+                                //rows without a column in common are not
+                                //compared
+                                if (present > 0) {
+                                    sum[sampleGroups[b]] += dist / present;
+                                    count[sampleGroups[b]]++;
+                                }
+                            }
+                        }
+                        int g = sampleGroups[a];
+                        if (count[g] == 0) {
+                            silhouettes[a] = 0;
+                            continue;
+                        }
+                        double inner = sum[g] / count[g];
+                        double outer = Double.MAX_VALUE;
+                        for (int k = 0; k < fnGroups; k++) {
+                            if (k != g && count[k] > 0 && sum[k] / count[k] < outer) {
+                                outer = sum[k] / count[k];
+                            }
+                        }
+                        if (outer == Double.MAX_VALUE || Math.max(inner, outer) == 0) {
+                            silhouettes[a] = 0;
+                        } else {
+                            silhouettes[a] = (outer - inner) / Math.max(inner, outer);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Object> f : tasks) {
+                f.get();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (executor != shared) {
+                executor.shutdown();
+            }
+        }
+        m.silhouette = 0;
+        for (i = 0; i < n; i++) {
+            m.groupSampleSize[sampleGroups[i]]++;
+            m.groupSilhouette[sampleGroups[i]] += silhouettes[i];
+            m.silhouette += silhouettes[i];
+        }
+        for (i = 0; i < nGroups; i++) {
+            if (m.groupSampleSize[i] > 0) {
+                m.groupSilhouette[i] /= m.groupSampleSize[i];
+            }
+        }
+        m.silhouette /= n;
+
+        //Calinski-Harabasz of sampled rows, means and sums of squares of
+        //the values present in each column
+        double[] mean = new double[nCols];
+        int[] count = new int[nCols];
+        double[] groupMean = new double[nGroups * nCols];
+        int[] groupCount = new int[nGroups * nCols];
+        for (i = 0; i < n; i++) {
+            for (j = 0; j < nCols; j++) {
+                float v = values[i * nCols + j];
+                if (!Float.isNaN(v)) {
+                    mean[j] += v;
+                    count[j]++;
+                    groupMean[sampleGroups[i] * nCols + j] += v;
+                    groupCount[sampleGroups[i] * nCols + j]++;
+                }
+            }
+        }
+        int sampledGroups = 0;
+        for (i = 0; i < nGroups; i++) {
+            if (sampleGroupSize[i] > 0) {
+                sampledGroups++;
+            }
+            for (j = 0; j < nCols; j++) {
+                if (groupCount[i * nCols + j] > 0) {
+                    groupMean[i * nCols + j] /= groupCount[i * nCols + j];
+                }
+            }
+        }
+        for (j = 0; j < nCols; j++) {
+            if (count[j] > 0) {
+                mean[j] /= count[j];
+            }
+        }
+        double between = 0;
+        double within = 0;
+        for (i = 0; i < nGroups; i++) {
+            for (j = 0; j < nCols; j++) {
+                if (groupCount[i * nCols + j] > 0) {
+                    double d = groupMean[i * nCols + j] - mean[j];
+                    between += groupCount[i * nCols + j] * d * d;
+                }
+            }
+        }
+        for (i = 0; i < n; i++) {
+            for (j = 0; j < nCols; j++) {
+                float v = values[i * nCols + j];
+                if (!Float.isNaN(v)) {
+                    double d = v - groupMean[sampleGroups[i] * nCols + j];
+                    within += d * d;
+                }
+            }
+        }
+        if (sampledGroups > 1 && n > sampledGroups && within > 0) {
+            m.calinskiHarabasz = (between / (sampledGroups - 1)) / (within / (n - sampledGroups));
+        }
+
+        return m;
+    }
+
+    /**
+     * @return sorted distinct random row numbers, all rows when there are no
+     * more than sampleSize
+     */
+    static int[] sample(int nRows, int sampleSize) {
+        int[] sample;
+        if (sampleSize >= nRows) {
+            sample = new int[nRows];
+            for (int i = 0; i < nRows; i++) {
+                sample[i] = i;
+            }
+            return sample;
+        }
+
+        //fixed seed so that metrics are repeatable
+        Random r = new Random(nRows);
+        HashSet<Integer> set = new HashSet<Integer>();
+        for (int i = nRows - sampleSize; i < nRows; i++) {
+            int v = r.nextInt(i + 1);
+            if (!set.add(v)) {
+                set.add(i);
+            }
+        }
+        sample = new int[set.size()];
+        int i = 0;
+        for (Integer v : set) {
+            sample[i++] = v;
+        }
+        java.util.Arrays.sort(sample);
+        return sample;
+    }
+
+    /**
+     * exports metrics into a csv, one record for each group and one for all
+     * groups
+     *
+     * @param filename csv filename to export into
+     * @return true when written
+     */
+    public boolean export(String filename) {
+        try {
+            FileWriter fw = new FileWriter(filename);
+            fw.append("group number,cells,dispersion,sampled cells,silhouette,calinski-harabasz\r\n");
+            for (int i = 0; i < groupSize.length; i++) {
+                fw.append(String.valueOf(i + 1));
+                fw.append(",").append(String.valueOf(groupSize[i]));
+                fw.append(",").append(String.valueOf(groupDispersion[i]));
+                fw.append(",").append(String.valueOf(groupSampleSize[i]));
+                fw.append(",").append(sampleSize > 0 ? String.valueOf(groupSilhouette[i]) : "");
+                fw.append(",\r\n");
+            }
+            int cells = 0;
+            for (int i = 0; i < groupSize.length; i++) {
+                cells += groupSize[i];
+            }
+            fw.append("all");
+            fw.append(",").append(String.valueOf(cells));
+            fw.append(",").append(String.valueOf(dispersion));
+            fw.append(",").append(String.valueOf(sampleSize));
+            fw.append(",").append(sampleSize > 0 ? String.valueOf(silhouette) : "");
+            fw.append(",").append(Double.isNaN(calinskiHarabasz) ? "" : String.valueOf(calinskiHarabasz));
+            fw.append("\r\n");
+            fw.close();
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * direct buffers for the data pieces and distances of one job, outside of the
+ * heap, freed together by free()
+ * <p/>
+ * off-heap memory is limited by -XX:MaxDirectMemorySize and is counted
+ * separately from the heap, see allocated() and peak().
+ *
+ * @author adam
+ */
+public class AlocOffHeap {
+
+    private static final AtomicLong allocated = new AtomicLong();
+    private static final AtomicLong peak = new AtomicLong();
+
+    private List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    private long bytes;
+
+    /**
+     * allocate a direct buffer for each piece
+     *
+     * @param pieceBytes size of each piece in bytes
+     * @return buffer for each piece in native byte order, initially zero
+     */
+    public synchronized ByteBuffer[] allocate(long[] pieceBytes) {
+        ByteBuffer[] pieces = new ByteBuffer[pieceBytes.length];
+        for (int i = 0; i < pieceBytes.length; i++) {
+            pieces[i] = ByteBuffer.allocateDirect((int) pieceBytes[i]).order(ByteOrder.nativeOrder());
+            buffers.add(pieces[i]);
+            bytes += pieceBytes[i];
+
+            long total = allocated.addAndGet(pieceBytes[i]);
+            long p = peak.get();
+            while (total > p && !peak.compareAndSet(p, total)) {
+                p = peak.get();
+            }
+        }
+        return pieces;
+    }
+
+    /**
+     * @return bytes allocated by this job and not freed
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * release all buffers of this job. Buffers must not be used afterwards.
+     */
+    public synchronized void free() {
+        for (ByteBuffer b : buffers) {
+            release(b);
+        }
+        allocated.addAndGet(-bytes);
+        buffers.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return bytes allocated by all jobs and not freed
+     */
+    public static long allocated() {
+        return allocated.get();
+    }
+
+    /**
+     * @return largest number of bytes allocated at one time
+     */
+    public static long peak() {
+        return peak.get();
+    }
+
+    /**
+     * release the memory of a direct buffer now, when the JVM allows it,
+     * otherwise when the buffer is garbage collected
+     */
+    private static void release(ByteBuffer b) {
+        try {
+            //java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), b);
+            return;
+        } catch (Exception e) {
+        }
+        try {
+            Method cleanerMethod = b.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(b);
+            if (cleaner != null) {
+                Class<?> cleanerClass = cleaner.getClass();
+                Method clean = cleanerClass.getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (Exception e) {
+        }
+    }
+}
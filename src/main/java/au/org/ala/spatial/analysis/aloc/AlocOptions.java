@@ -0,0 +1,329 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * optional settings for an ALOC run
+ * <p/>
+ * set from the command line as name=value pairs after the required arguments,
+ * e.g. "checkpoint=10 resume=true"
+ *
+ * @author adam
+ */
+public class AlocOptions implements Cloneable {
+
+    /**
+     * checkpoint file, null when checkpoints are not written or read
+     */
+    public String checkpointFilename = null;
+
+    /**
+     * number of iterations between checkpoints, 0 to disable
+     */
+    public int checkpointInterval = 0;
+
+    /**
+     * continue from checkpointFilename when it exists and matches the data
+     */
+    public boolean resume = false;
+
+    /**
+     * group means of a previous classification used as initial seeds in
+     * place of seeding, as [group][layer] in layer units. null to seed.
+     */
+    public double[][] initialMeans = null;
+
+    /**
+     * layer names of initialMeans columns
+     */
+    public String[] initialMeansLayers = null;
+
+    /**
+     * classification_means.csv of a previous classification to read
+     * initialMeans from
+     */
+    public String warmStartFilename = null;
+
+    /**
+     * initial seeds in the units of the data pieces, as
+     * [group * nCols + column]. Used in place of seeding when initialMeans
+     * is not set.
+     */
+    public double[] initialSeeds = null;
+
+    /**
+     * reverse the range standardization of the data pieces after
+     * classifying. When false the data pieces are left standardized.
+     */
+    public boolean destandardize = true;
+
+    /**
+     * numbers of groups for a sweep, each classified from the same data
+     */
+    public int[] sweep = null;
+
+    /**
+     * classification_model.csv, or classification_means.csv, of a previous
+     * classification. When set cells are allocated to its groups without
+     * running a classification.
+     */
+    public String predictFilename = null;
+
+    /**
+     * number of cells sampled for silhouette and Calinski-Harabasz metrics,
+     * 0 for dispersion only, -1 to not write classification_metrics.csv
+     */
+    public int metricsSampleSize = -1;
+
+    /**
+     * allocate groups without an iteration barrier, see AlocAsync
+     */
+    public boolean async = false;
+
+    /**
+     * classify both with and without an iteration barrier and log the
+     * dispersion of each. Outputs are from the classification with an
+     * iteration barrier.
+     */
+    public boolean asyncCompare = false;
+
+    /**
+     * cache size per core in bytes, for the size of data pieces and of the
+     * tiles of rows and groups compared at a time
+     */
+    public int cacheSize = 256 * 1024;
+
+    /**
+     * number of worker processes to evaluate data pieces, see
+     * AlocCoordinator. 0 to evaluate them in this process.
+     */
+    public int workers = 0;
+
+    /**
+     * port to wait for workers on, 0 to start local worker processes
+     */
+    public int workerPort = 0;
+
+    /**
+     * file the data pieces are memory-mapped from, one after another from
+     * dataOffset, for workers on the same machine to map their pieces
+     * instead of receiving them. Set by analysis.Aloc.run, null when the
+     * data pieces are not in a file.
+     */
+    public String dataFilename = null;
+
+    public long dataOffset = 0;
+
+    /**
+     * threads shared by the classifications of a long-lived process, see
+     * AlocDaemon. When set classifications, metrics and outputs run their
+     * work on it instead of starting threads, the number of threads of a
+     * classification is then the number of its tasks at a time. null to
+     * start threads for each classification.
+     */
+    public ExecutorService executor = null;
+
+    /**
+     * seeding scans shared by classifications of the same data, see
+     * AlocSeedScans. null to scan for each classification.
+     */
+    public AlocSeedScans seedScans = null;
+
+    /**
+     * grid file names to classify, with or without .grd, null for all grid
+     * files
+     */
+    public String[] layers = null;
+
+    /**
+     * xmin, ymin, xmax, ymax to restrict the extent of layers to, null for
+     * the extent of all layers
+     */
+    public double[] area = null;
+
+    /**
+     * keep data pieces and distances in memory-mapped files in tempPath, for
+     * classifications larger than the heap
+     */
+    public boolean outOfCore = false;
+
+    /**
+     * keep data pieces and distances in direct buffers outside of the heap,
+     * see AlocOffHeap. Ignored when outOfCore is set.
+     */
+    public boolean offHeap = false;
+
+    /**
+     * identifies the layer files, area and settings of a classification, so
+     * that a checkpoint is only resumed by the classification it was
+     * written for. Set by analysis.Aloc.run.
+     */
+    public String inputKey = null;
+
+    /**
+     * directory of prepared data files, see AlocMatrixFile. null to always
+     * read the layers.
+     */
+    public String matrixCachePath = null;
+
+    /**
+     * directory of outputs of previous jobs, copied in place of classifying
+     * again. null to always classify.
+     */
+    public String resultCachePath = null;
+
+    /**
+     * most bytes of outputs kept in resultCachePath
+     */
+    public long resultCacheSize = 1024L << 20;
+
+    /**
+     * estimate the memory and work of a classification without running it
+     */
+    public boolean preflight = false;
+
+    /**
+     * first and last zoom levels of web map tiles written to the output
+     * path, null for no tiles
+     */
+    public int[] tileZoom = null;
+
+    /**
+     * number tile rows from the bottom (TMS) instead of the top (XYZ)
+     */
+    public boolean tms = false;
+
+    /**
+     * directory of memory-mapped files, the output path
+     */
+    public String tempPath = ".";
+
+    /**
+     * @param gridFilename grid file name, e.g. layer.grd
+     * @return true when the grid is in layers, or layers is not set
+     */
+    public boolean includes(String gridFilename) {
+        if (layers == null) {
+            return true;
+        }
+        String name = gridFilename.substring(0, gridFilename.length() - 4);
+        for (int i = 0; i < layers.length; i++) {
+            if (layers[i].equals(gridFilename) || layers[i].equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return copy of these options to change for one run, arrays are shared
+     */
+    public AlocOptions copy() {
+        try {
+            return (AlocOptions) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * parse name=value pairs
+     *
+     * @param args   command line arguments
+     * @param offset index of the first name=value pair in args
+     * @return options, defaults where not provided
+     */
+    public static AlocOptions parse(String[] args, int offset) {
+        AlocOptions options = new AlocOptions();
+        for (int i = offset; i < args.length; i++) {
+            int p = args[i].indexOf('=');
+            if (p <= 0 || !options.set(args[i].substring(0, p), args[i].substring(p + 1))) {
+                System.out.println("unknown option: " + args[i]);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * set one option
+     *
+     * @param name  option name
+     * @param value option value
+     * @return false when the name is not recognised
+     */
+    public boolean set(String name, String value) {
+        if (name.equals("checkpoint")) {
+            checkpointInterval = Integer.parseInt(value);
+        } else if (name.equals("resume")) {
+            resume = Boolean.parseBoolean(value);
+        } else if (name.equals("warmstart")) {
+            warmStartFilename = value;
+        } else if (name.equals("sweep")) {
+            String[] ks = value.split(",");
+            sweep = new int[ks.length];
+            for (int i = 0; i < ks.length; i++) {
+                sweep[i] = Integer.parseInt(ks[i].trim());
+            }
+            java.util.Arrays.sort(sweep);
+        } else if (name.equals("predict")) {
+            predictFilename = value;
+        } else if (name.equals("async")) {
+            asyncCompare = value.equals("compare");
+            async = asyncCompare || Boolean.parseBoolean(value);
+        } else if (name.equals("cache")) {
+            cacheSize = Integer.parseInt(value) * 1024;
+        } else if (name.equals("outofcore")) {
+            outOfCore = Boolean.parseBoolean(value);
+        } else if (name.equals("workers")) {
+            workers = Integer.parseInt(value);
+        } else if (name.equals("workerport")) {
+            workerPort = Integer.parseInt(value);
+        } else if (name.equals("layers")) {
+            layers = value.split(",");
+            for (int i = 0; i < layers.length; i++) {
+                layers[i] = layers[i].trim();
+            }
+        } else if (name.equals("area")) {
+            String[] bounds = value.split(",");
+            area = new double[4];
+            for (int i = 0; i < 4; i++) {
+                area[i] = Double.parseDouble(bounds[i].trim());
+            }
+        } else if (name.equals("offheap")) {
+            offHeap = Boolean.parseBoolean(value);
+        } else if (name.equals("matrixcache")) {
+            matrixCachePath = value;
+        } else if (name.equals("resultcache")) {
+            resultCachePath = value;
+        } else if (name.equals("resultcachesize")) {
+            resultCacheSize = Long.parseLong(value) << 20;
+        } else if (name.equals("preflight")) {
+            preflight = Boolean.parseBoolean(value);
+        } else if (name.equals("tiles")) {
+            String[] zooms = value.split("-");
+            tileZoom = new int[2];
+            tileZoom[0] = Integer.parseInt(zooms[0].trim());
+            tileZoom[1] = Integer.parseInt(zooms[zooms.length - 1].trim());
+        } else if (name.equals("tms")) {
+            tms = Boolean.parseBoolean(value);
+        } else if (name.equals("metrics")) {
+            metricsSampleSize = Integer.parseInt(value);
+        } else {
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+class AlocPieceData {
+
+    public float[] data;
+    public double[] distances;
+    //memory-mapped data and distances, copied to data and distances while
+    //the piece is evaluated
+    public FloatBuffer dataBuffer;
+    public DoubleBuffer distancesBuffer;
+    public short[] groups;
+    public double[] rowDist;
+    //iteration each row was last evaluated
+    public int[] evaluated;
+    //cumulative movement at which each row is evaluated again
+    public double[] wake;
+    //lowest wake level of rows in each group
+    public double[] pieceWake;
+    //evaluate in the next iteration
+    public boolean dirty;
+
+    public AlocPieceData(float[] data_,
+                         double[] distances_,
+                         short[] groups_,
+                         double[] rowDist_) {
+        data = data_;
+        distances = distances_;
+        groups = groups_;
+        rowDist = rowDist_;
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * memory-mapped temporary file holding one buffer for each data piece, for
+ * classifications larger than the heap
+ * <p/>
+ * the file is mapped in segments of up to 1GB, no piece crosses a segment.
+ * Buffers remain valid after the file is deleted.
+ *
+ * @author adam
+ */
+public class AlocPieceFile {
+
+    private static final long SEGMENT_BYTES = 1L << 30;
+
+    /**
+     * create and map a temporary file
+     *
+     * @param filename   file to create, deleted when the JVM exits
+     * @param pieceBytes size of each piece in bytes
+     * @return buffer for each piece in native byte order, initially zero
+     * @throws IOException
+     */
+    public static ByteBuffer[] map(String filename, long[] pieceBytes) throws IOException {
+        long total = 0;
+        for (int i = 0; i < pieceBytes.length; i++) {
+            total += pieceBytes[i];
+        }
+
+        File file = new File(filename);
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        ByteBuffer[] pieces = new ByteBuffer[pieceBytes.length];
+        try {
+            raf.setLength(0);
+            raf.setLength(total);
+            FileChannel fc = raf.getChannel();
+
+            long segmentStart = 0;
+            long segmentLength = 0;
+            int first = 0;
+            for (int i = 0; i <= pieceBytes.length; i++) {
+                if (segmentLength > 0 && (i == pieceBytes.length || segmentLength + pieceBytes[i] > SEGMENT_BYTES)) {
+                    MappedByteBuffer segment = fc.map(FileChannel.MapMode.READ_WRITE, segmentStart, segmentLength);
+                    int pos = 0;
+                    for (int j = first; j < i; j++) {
+                        segment.limit(pos + (int) pieceBytes[j]);
+                        segment.position(pos);
+                        pieces[j] = segment.slice().order(ByteOrder.nativeOrder());
+                        pos += (int) pieceBytes[j];
+                    }
+                    segmentStart += segmentLength;
+                    segmentLength = 0;
+                    first = i;
+                }
+                if (i < pieceBytes.length) {
+                    if (segmentLength == 0) {
+                        first = i;
+                    }
+                    segmentLength += pieceBytes[i];
+                }
+            }
+
+            //empty pieces
+            for (int i = 0; i < pieces.length; i++) {
+                if (pieces[i] == null) {
+                    pieces[i] = ByteBuffer.allocate(0).order(ByteOrder.nativeOrder());
+                }
+            }
+        } finally {
+            //mappings remain valid after closing
+            raf.close();
+        }
+
+        return pieces;
+    }
+}
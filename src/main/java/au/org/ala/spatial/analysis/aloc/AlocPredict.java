@@ -0,0 +1,108 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+/**
+ * allocates cells to the nearest group of an existing classification by
+ * gower metric, without iterating
+ *
+ * @author adam
+ */
+public class AlocPredict {
+
+    /**
+     * range standardize group means
+     *
+     * @param means group means as [group][column] in layer units
+     * @param min   minimum of each column
+     * @param range range of each column
+     * @return standardized means as [group * nCols + column]
+     */
+    public static double[] standardize(double[][] means, double[] min, double[] range) {
+        int nCols = min.length;
+        double[] centroids = new double[means.length * nCols];
+        for (int i = 0; i < means.length; i++) {
+            for (int j = 0; j < nCols; j++) {
+                centroids[i * nCols + j] = range[j] > 0 ? (means[i][j] - min[j]) / range[j] : 0;
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * allocate cells to the nearest centroid
+     * <p/>
+     * cells with a missing value are not allocated, the same as cells
+     * removed from a classification.
+     *
+     * @param values    values as [column][cell] in layer units, NaN when
+     *                  missing
+     * @param min       minimum of each column
+     * @param range     range of each column
+     * @param centroids standardized centroids as [group * nCols + column]
+     * @param groups    receives the group number of each cell, -1 when a value
+     *                  is missing
+     * @return number of cells allocated to a group
+     */
+    public static int predict(float[][] values, double[] min, double[] range, double[] centroids, int[] groups) {
+        int nCols = values.length;
+        int nGroups = centroids.length / nCols;
+        int nCells = groups.length;
+        double[] row = new double[nCols];
+        int count = 0;
+
+        int i, j, k;
+        for (i = 0; i < nCells; i++) {
+            boolean missing = false;
+            for (k = 0; k < nCols; k++) {
+                float v = values[k][i];
+                if (Float.isNaN(v)) {
+                    missing = true;
+                    break;
+                }
+                row[k] = range[k] > 0 ? (v - min[k]) / range[k] : 0;
+            }
+            if (missing) {
+                groups[i] = -1;
+                continue;
+            }
+
+            double min_dist = Double.MAX_VALUE;
+            int min_idx = 0;
+            for (j = 0; j < nGroups; j++) {
+                double dist = 0;
+                int nmissing = 0;
+                for (k = 0; k < nCols; k++) {
+                    double v2 = centroids[j * nCols + k];
+                    if (Double.isNaN(v2)) {
+                        nmissing++;
+                    } else {
+                        dist += Math.abs(row[k] - v2);
+                    }
+                }
+                if (nmissing < nCols) {
+                    dist = dist / (double) (nCols - nmissing);
+                    if (min_dist > dist) {
+                        min_dist = dist;
+                        min_idx = j;
+                    }
+                }
+            }
+            groups[i] = min_idx;
+            count++;
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+/**
+ * result of an AlocJob
+ *
+ * @author adam
+ */
+public class AlocResult {
+
+    /**
+     * group number (0..n-1) of each row, in the order rows were added to the
+     * job
+     */
+    public int[] groups;
+
+    /**
+     * mean of each column for each group as [group][column], in the units of
+     * the rows
+     */
+    public double[][] means;
+
+    /**
+     * distance of each row to its group, range standardized
+     */
+    public double[] rowDistances;
+
+    /**
+     * number of iterations
+     */
+    public int iterations;
+
+    /**
+     * dispersion, and silhouette and Calinski-Harabasz when
+     * options.metricsSampleSize > 0. null when options.metricsSampleSize < 0.
+     */
+    public AlocMetrics metrics;
+}
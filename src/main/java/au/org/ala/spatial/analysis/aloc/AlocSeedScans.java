@@ -0,0 +1,95 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * seeding scans shared by classifications of the same data into different
+ * numbers of groups, e.g. a sweep
+ * <p/>
+ * a scan stops at one more seed than the number of groups. A scan of a
+ * radius for maxGroups is the same as the scan of that radius for fewer
+ * groups up to where the latter stops, so each radius is scanned once for
+ * maxGroups and each classification seeds the same as when scanning on its
+ * own.
+ *
+ * @author adam
+ */
+public class AlocSeedScans {
+
+    int maxGroups;
+
+    //row of each seed and seeds of each radius scanned
+    Map<Double, int[]> seedidx = new HashMap<Double, int[]>();
+    Map<Double, double[]> seeds = new HashMap<Double, double[]>();
+
+    int hits;
+    int misses;
+
+    /**
+     * @param maxGroups largest number of groups of the classifications
+     */
+    public AlocSeedScans(int maxGroups) {
+        this.maxGroups = maxGroups;
+    }
+
+    /**
+     * seeding scan of a radius for a number of groups up to maxGroups, see
+     * Aloc.seedScan
+     *
+     * @return number of seeds
+     */
+    synchronized int scan(ArrayList<Object> data_pieces, int pieces, int nCols, int[] rowCounts, double[] col_range,
+                          double radius, int nNoOfGroups, int[] seedidx, double[] seeds) {
+        int[] idx = this.seedidx.get(radius);
+        double[] s = this.seeds.get(radius);
+        int size;
+        if (idx == null) {
+            idx = new int[maxGroups + 1];
+            s = new double[(maxGroups + 1) * nCols];
+            size = Aloc.seedScan(data_pieces, pieces, nCols, rowCounts, col_range, radius, maxGroups, idx, s);
+            if (size < idx.length) {
+                idx = java.util.Arrays.copyOf(idx, size);
+                s = java.util.Arrays.copyOf(s, size * nCols);
+            }
+            this.seedidx.put(radius, idx);
+            this.seeds.put(radius, s);
+            misses++;
+        } else {
+            hits++;
+        }
+
+        size = Math.min(idx.length, nNoOfGroups + 1);
+        System.arraycopy(idx, 0, seedidx, 0, size);
+        System.arraycopy(s, 0, seeds, 0, size * nCols);
+        return size;
+    }
+
+    /**
+     * @return number of scans that were shared
+     */
+    public int hits() {
+        return hits;
+    }
+
+    /**
+     * @return number of scans
+     */
+    public int misses() {
+        return misses;
+    }
+}
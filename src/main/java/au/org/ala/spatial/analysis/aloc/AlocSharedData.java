@@ -0,0 +1,47 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+class AlocSharedData {
+
+    public double[] otherGroupMovement;
+    public double[] groupMovement;
+    public int nCols;
+    public double[] col_range;
+    public int seedidxsize;
+    public double[] seeds;
+    public int[] seedgroup_nonmissingvalues;
+    public int iteration;
+    public double[] cumMovement;
+    public double[] cumMaxMovement;
+    public int rowTile;
+    public int centroidTile;
+
+    public AlocSharedData(
+            double[] otherGroupMovement_,
+            double[] groupMovement_,
+            int nCols_,
+            double[] col_range_,
+            int seedidxsize_,
+            double[] seeds_,
+            int[] seedgroup_nonmissingvalues_) {
+        otherGroupMovement = otherGroupMovement_;
+        groupMovement = groupMovement_;
+        nCols = nCols_;
+        col_range = col_range_;
+        seedidxsize = seedidxsize_;
+        seeds = seeds_;
+        seedgroup_nonmissingvalues = seedgroup_nonmissingvalues_;
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+class AlocThreadData {
+
+    public int movement;
+    public int evaluated;
+    //nanoseconds spent on pieces
+    public long busy;
+    //copies of memory-mapped pieces
+    public float[] data;
+    public double[] distances;
+
+    //state of each row in a tile of rows
+    public int[] tRow;
+    public int[] tGrp;
+    public int[] tPrevRow;
+    public int[] tMinIdx;
+    public int[] tFirstIdx;
+    public double[] tGm;
+    public double[] tMinDist;
+    public double[] tFirst;
+    public double[] tSecond;
+    public boolean[] tComplete;
+
+    public AlocThreadData(int rowTile) {
+        movement = 0;
+        tRow = new int[rowTile];
+        tGrp = new int[rowTile];
+        tPrevRow = new int[rowTile];
+        tMinIdx = new int[rowTile];
+        tFirstIdx = new int[rowTile];
+        tGm = new double[rowTile];
+        tMinDist = new double[rowTile];
+        tFirst = new double[rowTile];
+        tSecond = new double[rowTile];
+        tComplete = new boolean[rowTile];
+    }
+}
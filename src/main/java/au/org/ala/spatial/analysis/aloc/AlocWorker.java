@@ -0,0 +1,494 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * blocks of data pieces of a classification evaluated by a worker process,
+ * see AlocCoordinator
+ * <p/>
+ * a worker holds the pieces of the blocks assigned to it with the state of
+ * their rows. Each iteration it receives the seeds and group movement,
+ * evaluates the active pieces of its blocks the same as Aloc and returns the
+ * adjustments of each block and the groups of pieces with rows that changed
+ * group.
+ * <p/>
+ * pieces are mapped from the data file when it is on this machine and
+ * holds the same values, otherwise they are received. While busy the
+ * worker sends a heartbeat every HEARTBEAT_INTERVAL ms.
+ * <p/>
+ * run as a process with
+ * <p/>
+ * java -cp aloc.jar au.org.ala.spatial.analysis.aloc.AlocWorker host port [threads]
+ *
+ * @author adam
+ */
+public class AlocWorker {
+
+    //messages from the coordinator, ASSIGN and ITERATE are also replies
+    static final int ASSIGN = 1;
+    static final int ITERATE = 2;
+    static final int STOP = 4;
+    static final int HEARTBEAT = 5;
+
+    static final int HEARTBEAT_INTERVAL = 10000;
+
+    //values sent or received at a time
+    static final int CHUNK = 8192;
+
+    private static final long SEGMENT_BYTES = 1L << 30;
+
+    int threadcount;
+    ExecutorService executor;
+
+    int nCols;
+    int seedidxsize;
+    AlocSharedData asd;
+    AlocThreadData[] atdArray;
+    AlocInnerLoop3[] ail;
+    ConcurrentLinkedQueue<AlocBlockData> blockQueue = new ConcurrentLinkedQueue<AlocBlockData>();
+
+    //assigned blocks and their pieces, by number
+    Map<Integer, AlocBlockData> blocks = new HashMap<Integer, AlocBlockData>();
+    Map<Integer, AlocPieceData> pieces = new HashMap<Integer, AlocPieceData>();
+
+    AlocWorker(int threadcount) {
+        this.threadcount = Math.max(1, threadcount);
+        executor = Executors.newFixedThreadPool(this.threadcount);
+    }
+
+    /**
+     * receive a block, its pieces and the groups of their rows. Rows are
+     * evaluated in full in the next iteration, the same as after resuming
+     * from a checkpoint.
+     */
+    void assign(DataInputStream in, DataOutputStream out) throws IOException {
+        int nCols = in.readInt();
+        int seedidxsize = in.readInt();
+        int rowTile = in.readInt();
+        int centroidTile = in.readInt();
+        double[] col_range = new double[nCols];
+        readDoubles(in, col_range, nCols);
+        final float[] col_min = new float[nCols];
+        readFloats(in, col_min, nCols);
+        if (asd == null) {
+            this.nCols = nCols;
+            this.seedidxsize = seedidxsize;
+            asd = new AlocSharedData(new double[seedidxsize], new double[seedidxsize], nCols, col_range, seedidxsize,
+                    new double[seedidxsize * nCols], new int[seedidxsize * nCols]);
+            asd.cumMovement = new double[(Aloc.MAX_ITERATIONS + 1) * seedidxsize];
+            asd.cumMaxMovement = new double[Aloc.MAX_ITERATIONS + 1];
+            asd.rowTile = rowTile;
+            asd.centroidTile = centroidTile;
+            atdArray = new AlocThreadData[threadcount];
+            ail = new AlocInnerLoop3[threadcount];
+            for (int i = 0; i < threadcount; i++) {
+                atdArray[i] = new AlocThreadData(rowTile);
+                ail[i] = new AlocInnerLoop3(blockQueue, atdArray[i], asd);
+            }
+        }
+
+        int b = in.readInt();
+        AlocBlockData block = new AlocBlockData(in.readInt(), in.readInt(), seedidxsize, nCols);
+        List<AlocPieceData> apds = new ArrayList<AlocPieceData>();
+        for (int i = block.firstPiece; i < block.endPiece; i++) {
+            int rows = in.readInt();
+            short[] groups = new short[rows];
+            readShorts(in, groups, rows);
+            AlocPieceData apd = new AlocPieceData(null, new double[rows * seedidxsize], groups, new double[rows]);
+            apd.evaluated = new int[rows];
+            apd.wake = new double[rows];
+            apd.pieceWake = new double[seedidxsize];
+            java.util.Arrays.fill(apd.evaluated, -1);
+            java.util.Arrays.fill(apd.wake, Double.NEGATIVE_INFINITY);
+            apd.dirty = true;
+            apds.add(apd);
+        }
+
+        //map the pieces from the data file when it holds the same values
+        boolean mapped = false;
+        final String filename = in.readUTF();
+        if (filename.length() > 0) {
+            final long offset = in.readLong();
+            final int hash = in.readInt();
+            final List<AlocPieceData> list = apds;
+            Boolean result = await(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return map(filename, offset, list, hash, col_min);
+                }
+            }), out);
+            mapped = result != null && result;
+        }
+        out.writeInt(ASSIGN);
+        out.writeInt(mapped ? 1 : 0);
+        out.flush();
+        for (int i = 0; i < apds.size(); i++) {
+            AlocPieceData apd = apds.get(i);
+            if (!mapped) {
+                apd.dataBuffer = null;
+                apd.data = new float[apd.groups.length * nCols];
+                readFloats(in, apd.data, apd.data.length);
+            }
+            pieces.put(block.firstPiece + i, apd);
+        }
+        blocks.put(b, block);
+    }
+
+    /**
+     * map pieces that are consecutive in a file, in segments of up to 1GB
+     * that no piece crosses. Pieces are mapped copy on write, when the file
+     * holds the values before range standardization they are standardized
+     * the same as by Aloc.
+     *
+     * @param offset  position of the first piece in the file
+     * @param hash    hash of the values of the pieces, see hash
+     * @param col_min column minimum for range standardization, with
+     *                asd.col_range
+     * @return true when the mapped pieces have the same hash
+     */
+    boolean map(String filename, long offset, List<AlocPieceData> apds, int hash, float[] col_min) {
+        File file = new File(filename);
+        if (!file.exists()) {
+            return false;
+        }
+        RandomAccessFile raf = null;
+        try {
+            //copy on write needs a writable channel, the file is not changed
+            raf = new RandomAccessFile(file, "rw");
+            FileChannel fc = raf.getChannel();
+            int h = 1;
+            long pos = offset;
+            for (int i = 0; i < apds.size(); ) {
+                long segmentLength = 0;
+                int j = i;
+                while (j < apds.size() && (j == i || segmentLength + bytes(apds.get(j)) <= SEGMENT_BYTES)) {
+                    segmentLength += bytes(apds.get(j));
+                    j++;
+                }
+                if (pos + segmentLength > fc.size()) {
+                    return false;
+                }
+                MappedByteBuffer segment = fc.map(FileChannel.MapMode.PRIVATE, pos, segmentLength);
+                int p = 0;
+                for (int k = i; k < j; k++) {
+                    AlocPieceData apd = apds.get(k);
+                    segment.limit(p + (int) bytes(apd));
+                    segment.position(p);
+                    apd.dataBuffer = segment.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+                    h = hash(h, apd.dataBuffer);
+                    p += (int) bytes(apd);
+                }
+                pos += segmentLength;
+                i = j;
+            }
+            if (h == hash) {
+                return true;
+            }
+
+            h = 1;
+            for (AlocPieceData apd : apds) {
+                FloatBuffer fb = apd.dataBuffer;
+                for (int k = 0; k < fb.limit(); k++) {
+                    int c = k % nCols;
+                    fb.put(k, (float) ((fb.get(k) - col_min[c]) / asd.col_range[c]));
+                }
+                h = hash(h, fb);
+            }
+            return h == hash;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            try {
+                if (raf != null) {
+                    raf.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    long bytes(AlocPieceData apd) {
+        return (long) apd.groups.length * nCols * 4;
+    }
+
+    /**
+     * evaluate the active pieces of blocks for the seeds of an iteration and
+     * reply with the adjustments of each block and the groups of pieces
+     * that changed
+     */
+    void iterate(DataInputStream in, DataOutputStream out) throws IOException {
+        int iteration = in.readInt();
+        asd.iteration = iteration;
+        asd.cumMaxMovement[iteration] = in.readDouble();
+        double[] cumMovement = new double[seedidxsize];
+        readDoubles(in, cumMovement, seedidxsize);
+        System.arraycopy(cumMovement, 0, asd.cumMovement, iteration * seedidxsize, seedidxsize);
+        readDoubles(in, asd.groupMovement, seedidxsize);
+        readDoubles(in, asd.seeds, seedidxsize * nCols);
+        readInts(in, asd.seedgroup_nonmissingvalues, seedidxsize * nCols);
+
+        //rows moved to empty groups by the coordinator
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            AlocPieceData apd = pieces.get(in.readInt());
+            apd.wake[in.readInt()] = Double.NEGATIVE_INFINITY;
+            apd.dirty = true;
+        }
+
+        //active pieces of the blocks to evaluate, and their groups before
+        int[] ids = new int[in.readInt()];
+        readInts(in, ids, ids.length);
+        Map<Integer, short[]> before = new HashMap<Integer, short[]>();
+        for (int b : ids) {
+            AlocBlockData block = blocks.get(b);
+            block.active.clear();
+            for (int i = block.firstPiece; i < block.endPiece; i++) {
+                AlocPieceData apd = pieces.get(i);
+                if (Aloc.awake(apd, iteration, seedidxsize, asd.cumMovement, asd.cumMaxMovement)) {
+                    block.active.add(apd);
+                    before.put(i, apd.groups.clone());
+                }
+            }
+            if (!block.active.isEmpty()) {
+                block.adjusted = true;
+                blockQueue.add(block);
+            }
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < threadcount; i++) {
+            ail[i].next();
+            futures.add(executor.submit(ail[i]));
+        }
+        for (Future<?> f : futures) {
+            await(f, out);
+        }
+
+        int movement = 0;
+        int evaluated = 0;
+        for (int i = 0; i < threadcount; i++) {
+            movement += atdArray[i].movement;
+            evaluated += atdArray[i].evaluated;
+        }
+        out.writeInt(ITERATE);
+        out.writeInt(movement);
+        out.writeInt(evaluated);
+        n = 0;
+        for (int b : ids) {
+            n += blocks.get(b).adjusted ? 1 : 0;
+        }
+        out.writeInt(n);
+        for (int b : ids) {
+            AlocBlockData block = blocks.get(b);
+            if (block.adjusted) {
+                out.writeInt(b);
+                writeInts(out, block.groupsize, seedidxsize);
+                writeInts(out, block.seeds_nmv_adjustment, seedidxsize * nCols);
+                writeDoubles(out, block.seeds_adjustment, seedidxsize * nCols);
+                block.clear();
+            }
+        }
+        List<Integer> changed = new ArrayList<Integer>();
+        for (Map.Entry<Integer, short[]> e : before.entrySet()) {
+            if (!java.util.Arrays.equals(e.getValue(), pieces.get(e.getKey()).groups)) {
+                changed.add(e.getKey());
+            }
+        }
+        out.writeInt(changed.size());
+        for (int p : changed) {
+            short[] groups = pieces.get(p).groups;
+            out.writeInt(p);
+            writeShorts(out, groups, groups.length);
+        }
+        out.flush();
+    }
+
+    /**
+     * wait for a task, sending heartbeats
+     *
+     * @return result of the task, or null when it failed
+     */
+    static <T> T await(Future<T> f, DataOutputStream out) throws IOException {
+        while (true) {
+            try {
+                return f.get(HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                out.writeInt(HEARTBEAT);
+                out.flush();
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    }
+
+    void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * connect to a coordinator and serve it until STOP
+     *
+     * @param args host, port and optional number of threads
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("args[0] = coordinator host\n"
+                    + "args[1] = coordinator port\n"
+                    + "args[2] = number of threads, optional");
+            return;
+        }
+        int threadcount = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        serve(args[0], Integer.parseInt(args[1]), threadcount);
+    }
+
+    static void serve(String host, int port, int threadcount) {
+        AlocWorker worker = new AlocWorker(threadcount);
+        try {
+            Socket socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+
+            while (true) {
+                int message = in.readInt();
+                if (message == ASSIGN) {
+                    worker.assign(in, out);
+                } else if (message == ITERATE) {
+                    worker.iterate(in, out);
+                } else {
+                    break;
+                }
+            }
+            socket.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            worker.close();
+        }
+    }
+
+    /**
+     * @return hash continued over the values of a buffer, from 1 for the
+     * first
+     */
+    static int hash(int hash, FloatBuffer values) {
+        for (int i = 0; i < values.limit(); i++) {
+            hash = 31 * hash + Float.floatToIntBits(values.get(i));
+        }
+        return hash;
+    }
+
+    static void writeFloats(DataOutputStream out, float[] values, int n) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(CHUNK * 4);
+        for (int i = 0; i < n; i += CHUNK) {
+            int len = Math.min(CHUNK, n - i);
+            bb.clear();
+            bb.asFloatBuffer().put(values, i, len);
+            out.write(bb.array(), 0, len * 4);
+        }
+    }
+
+    static void readFloats(DataInputStream in, float[] values, int n) throws IOException {
+        byte[] b = new byte[CHUNK * 4];
+        for (int i = 0; i < n; i += CHUNK) {
+            int len = Math.min(CHUNK, n - i);
+            in.readFully(b, 0, len * 4);
+            ByteBuffer.wrap(b).asFloatBuffer().get(values, i, len);
+        }
+    }
+
+    static void writeDoubles(DataOutputStream out, double[] values, int n) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(CHUNK * 8);
+        for (int i = 0; i < n; i += CHUNK) {
+            int len = Math.min(CHUNK, n - i);
+            bb.clear();
+            bb.asDoubleBuffer().put(values, i, len);
+            out.write(bb.array(), 0, len * 8);
+        }
+    }
+
+    static void readDoubles(DataInputStream in, double[] values, int n) throws IOException {
+        byte[] b = new byte[CHUNK * 8];
+        for (int i = 0; i < n; i += CHUNK) {
+            int len = Math.min(CHUNK, n - i);
+            in.readFully(b, 0, len * 8);
+            ByteBuffer.wrap(b).asDoubleBuffer().get(values, i, len);
+        }
+    }
+
+    static void writeInts(DataOutputStream out, int[] values, int n) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(CHUNK * 4);
+        for (int i = 0; i < n; i += CHUNK) {
+            int len = Math.min(CHUNK, n - i);
+            bb.clear();
+            bb.asIntBuffer().put(values, i, len);
+            out.write(bb.array(), 0, len * 4);
+        }
+    }
+
+    static void readInts(DataInputStream in, int[] values, int n) throws IOException {
+        byte[] b = new byte[CHUNK * 4];
+        for (int i = 0; i < n; i += CHUNK) {
+            int len = Math.min(CHUNK, n - i);
+            in.readFully(b, 0, len * 4);
+            ByteBuffer.wrap(b).asIntBuffer().get(values, i, len);
+        }
+    }
+
+    static void writeShorts(DataOutputStream out, short[] values, int n) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(CHUNK * 2);
+        for (int i = 0; i < n; i += CHUNK) {
+            int len = Math.min(CHUNK, n - i);
+            bb.clear();
+            bb.asShortBuffer().put(values, i, len);
+            out.write(bb.array(), 0, len * 2);
+        }
+    }
+
+    static void readShorts(DataInputStream in, short[] values, int n) throws IOException {
+        byte[] b = new byte[CHUNK * 2];
+        for (int i = 0; i < n; i += CHUNK) {
+            int len = Math.min(CHUNK, n - i);
+            in.readFully(b, 0, len * 2);
+            ByteBuffer.wrap(b).asShortBuffer().get(values, i, len);
+        }
+    }
+}
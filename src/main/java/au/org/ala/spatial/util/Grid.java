@@ -160,7 +160,7 @@ public class Grid { //  implements Serializable
             nbytes = 4;
         } else if (datatype.equals("LONG")) {
             nbytes = 8;
-        } else if (datatype.equals("SINGLE")) {
+        } else if (datatype.equals("FLOAT")) {
             nbytes = 4;
         } else if (datatype.equals("DOUBLE")) {
             nbytes = 8;
@@ -435,9 +435,10 @@ public class Grid { //  implements Serializable
         //init output structure
         float[] ret = new float[points.length];
 
-        //load whole grid
-        float[] grid = getGrid();
-        int glen = grid.length;
+        //load whole grid, from the layer cache when it is enabled
+        GridCache.Layer layer = grid_data == null ? GridCache.get(this) : null;
+        float[] grid = layer == null ? getGrid() : layer.floats;
+        int glen = grid == null ? layer.length() : grid.length;
         int length = points.length;
         int i, pos;
 
@@ -445,7 +446,7 @@ public class Grid { //  implements Serializable
         for (i = 0; i < length; i++) {
             pos = getcellnumber(points[i][0], points[i][1]);
             if (pos >= 0 && pos < glen) {
-                ret[i] = grid[pos];
+                ret[i] = grid == null ? layer.get(pos) : grid[pos];
             } else {
                 ret[i] = Float.NaN;
             }
@@ -454,5 +455,214 @@ public class Grid { //  implements Serializable
         return ret;
     }
 
+    /**
+     * get values of grid for a block of regularly spaced points, row by row.
+     * <p/>
+     * point (c, r) is at x = x0 + c * xstep, y = y0 + r * ystep. Only the
+     * grid file rows under the block are read, unless the whole grid is
+     * already loaded or the layer cache is enabled.
+     *
+     * @param x0       x of the first column
+     * @param y0       y of row 0
+     * @param xstep    distance between columns
+     * @param ystep    distance between rows
+     * @param width    number of columns
+     * @param firstRow first row of the block
+     * @param rowCount number of rows in the block
+     * @return values as [(r - firstRow) * width + c], NaN for missing values
+     * and points outside of the grid
+     */
+    public float[] getValuesBlock(double x0, double y0, double xstep, double ystep, int width, int firstRow, int rowCount) {
+        float[] ret = new float[width * rowCount];
+
+        //grid file rows under the block
+        int minRow = nrows;
+        int maxRow = -1;
+        for (int r = 0; r < rowCount; r++) {
+            int pos = getcellnumber(xmin, y0 + (firstRow + r) * ystep);
+            if (pos >= 0) {
+                minRow = Math.min(minRow, pos / ncols);
+                maxRow = Math.max(maxRow, pos / ncols);
+            }
+        }
+        if (maxRow < 0) {
+            java.util.Arrays.fill(ret, Float.NaN);
+            return ret;
+        }
+
+        float[] rows;
+        int offset = 0;
+        GridCache.Layer layer = null;
+        if (grid_data != null) {
+            rows = grid_data;
+        } else if ((layer = GridCache.get(this)) != null) {
+            rows = layer.floats;
+        } else {
+            rows = readRows(minRow, maxRow - minRow + 1);
+            offset = minRow * ncols;
+        }
+
+        int i = 0;
+        for (int r = 0; r < rowCount; r++) {
+            double y = y0 + (firstRow + r) * ystep;
+            for (int c = 0; c < width; c++, i++) {
+                int pos = getcellnumber(x0 + c * xstep, y);
+                if (pos >= 0 && rows != null) {
+                    ret[i] = rows[pos - offset];
+                } else if (pos >= 0 && layer != null) {
+                    ret[i] = layer.get(pos);
+                } else {
+                    ret[i] = Float.NaN;
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * read whole rows of the grid file
+     *
+     * @param firstRow first row to read, 0 is the top row
+     * @param rowCount number of rows to read
+     * @return values as rows of ncols, NaN for missing values, or null when
+     * the file cannot be read
+     */
+    float[] readRows(int firstRow, int rowCount) {
+        int length = rowCount * ncols;
+        float[] ret = new float[length];
+
+        RandomAccessFile afile = null;
+        try {
+            File f2 = new File(filename + ".GRI");
+            if (!f2.exists()) {
+                afile = new RandomAccessFile(filename + ".gri", "r");
+            } else {
+                afile = new RandomAccessFile(filename + ".GRI", "r");
+            }
+
+            byte[] b = new byte[length * nbytes];
+            afile.seek((long) firstRow * ncols * nbytes);
+            afile.readFully(b);
+
+            ByteBuffer bb = ByteBuffer.wrap(b);
+            if (byteorderLSB) {
+                bb.order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            int i;
+            if (datatype.equalsIgnoreCase("UBYTE")) {
+                for (i = 0; i < length; i++) {
+                    ret[i] = bb.get() & 0xff;
+                }
+            } else if (datatype.equalsIgnoreCase("BYTE")) {
+                for (i = 0; i < length; i++) {
+                    ret[i] = bb.get();
+                }
+            } else if (datatype.equalsIgnoreCase("SHORT")) {
+                for (i = 0; i < length; i++) {
+                    ret[i] = bb.getShort();
+                }
+            } else if (datatype.equalsIgnoreCase("INT")) {
+                for (i = 0; i < length; i++) {
+                    ret[i] = bb.getInt();
+                }
+            } else if (datatype.equalsIgnoreCase("LONG")) {
+                for (i = 0; i < length; i++) {
+                    ret[i] = bb.getLong();
+                }
+            } else if (datatype.equalsIgnoreCase("FLOAT")) {
+                for (i = 0; i < length; i++) {
+                    ret[i] = bb.getFloat();
+                }
+            } else if (datatype.equalsIgnoreCase("DOUBLE")) {
+                for (i = 0; i < length; i++) {
+                    ret[i] = (float) bb.getDouble();
+                }
+            } else {
+                for (i = 0; i < length; i++) {
+                    ret[i] = Float.NaN;
+                }
+            }
+
+            //replace not a number
+            for (i = 0; i < length; i++) {
+                if (ret[i] == (float) nodatavalue) {
+                    ret[i] = Float.NaN;
+                } else {
+                    ret[i] *= rescale;
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("An error has occurred - probably a file error");
+            e.printStackTrace();
+            ret = null;
+        } finally {
+            if (afile != null) {
+                try {
+                    afile.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * read the whole grid file without decoding, for BYTE and UBYTE grids
+     *
+     * @return file values, or null when the file cannot be read
+     */
+    byte[] readBytes() {
+        return readFile(1);
+    }
 
-}
\ No newline at end of file
+    /**
+     * read the whole grid file without decoding, for SHORT grids
+     *
+     * @return file values, or null when the file cannot be read
+     */
+    short[] readShorts() {
+        byte[] b = readFile(2);
+        if (b == null) {
+            return null;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(b);
+        if (byteorderLSB) {
+            bb.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        short[] ret = new short[nrows * ncols];
+        bb.asShortBuffer().get(ret);
+        return ret;
+    }
+
+    private byte[] readFile(int size) {
+        byte[] b = null;
+        RandomAccessFile afile = null;
+        try {
+            File f2 = new File(filename + ".GRI");
+            if (!f2.exists()) {
+                afile = new RandomAccessFile(filename + ".gri", "r");
+            } else {
+                afile = new RandomAccessFile(filename + ".GRI", "r");
+            }
+
+            b = new byte[nrows * ncols * size];
+            afile.readFully(b);
+        } catch (Exception e) {
+            System.out.println("An error has occurred - probably a file error");
+            e.printStackTrace();
+            b = null;
+        } finally {
+            if (afile != null) {
+                try {
+                    afile.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return b;
+    }
+}
@@ -0,0 +1,274 @@
+/**************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia
+ * All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.spatial.util;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * process wide cache of decoded grid files, shared by all Grid instances
+ * <p/>
+ * a grid is cached whole, so any window or resolution sampled from it is
+ * read from memory. Grids are keyed by file path, size and modification
+ * time, so a changed file is read again. The least recently used grids are
+ * removed when the cache is larger than the budget. A grid larger than the
+ * budget is not cached and is read from file as before.
+ * <p/>
+ * the cache is disabled until a budget is set. With compact storage BYTE,
+ * UBYTE and SHORT grids are held in their own datatype and decoded as they
+ * are read, otherwise all grids are held as float.
+ *
+ * @author adam
+ */
+public class GridCache {
+
+    private static long budget = 0;
+    private static boolean compact = false;
+    private static long used = 0;
+    private static long hits = 0;
+    private static long misses = 0;
+
+    //least recently used first
+    private static final LinkedHashMap<String, Layer> layers = new LinkedHashMap<String, Layer>(16, 0.75f, true);
+
+    /**
+     * decoded values of a grid file
+     */
+    static class Layer {
+        //one of
+        float[] floats;
+        short[] shorts;
+        byte[] bytes;
+
+        boolean unsigned;
+        float nodatavalue;
+        float rescale;
+
+        long bytes() {
+            if (floats != null) {
+                return floats.length * 4L;
+            } else if (shorts != null) {
+                return shorts.length * 2L;
+            } else {
+                return bytes.length;
+            }
+        }
+
+        int length() {
+            if (floats != null) {
+                return floats.length;
+            } else if (shorts != null) {
+                return shorts.length;
+            } else {
+                return bytes.length;
+            }
+        }
+
+        /**
+         * @return value at a grid position, NaN for missing values
+         */
+        float get(int pos) {
+            if (floats != null) {
+                return floats[pos];
+            }
+            float v;
+            if (shorts != null) {
+                v = shorts[pos];
+            } else if (unsigned) {
+                v = bytes[pos] & 0xff;
+            } else {
+                v = bytes[pos];
+            }
+            if (v == nodatavalue) {
+                return Float.NaN;
+            }
+            return v * rescale;
+        }
+    }
+
+    /**
+     * set the size of the cache, removing grids when it is smaller
+     *
+     * @param bytes   budget in bytes, 0 to disable the cache and remove all
+     *                grids
+     * @param compact true to hold BYTE, UBYTE and SHORT grids in their own
+     *                datatype
+     */
+    public static synchronized void setBudget(long bytes, boolean compact) {
+        budget = Math.max(0, bytes);
+        if (GridCache.compact != compact) {
+            layers.clear();
+            used = 0;
+        }
+        GridCache.compact = compact;
+        evict(0);
+    }
+
+    public static synchronized long getBudget() {
+        return budget;
+    }
+
+    public static synchronized boolean enabled() {
+        return budget > 0;
+    }
+
+    /**
+     * @return bytes held by cached grids
+     */
+    public static synchronized long used() {
+        return used;
+    }
+
+    /**
+     * @return number of grids read from the cache
+     */
+    public static synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * @return number of grids read from file while the cache is enabled
+     */
+    public static synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * remove all grids and reset the counters
+     */
+    public static synchronized void clear() {
+        layers.clear();
+        used = 0;
+        hits = 0;
+        misses = 0;
+    }
+
+    /**
+     * get the decoded values of a grid, reading the grid file when it is not
+     * cached
+     *
+     * @param grid grid with the header read
+     * @return values, or null when the cache is disabled or the grid file
+     * cannot be read
+     */
+    static Layer get(Grid grid) {
+        String key = key(grid);
+        boolean useCompact;
+        synchronized (GridCache.class) {
+            if (budget <= 0 || key == null || grid.datatype == null) {
+                return null;
+            }
+            Layer layer = layers.get(key);
+            if (layer != null) {
+                hits++;
+                return layer;
+            }
+            misses++;
+            useCompact = compact;
+            if (size(grid, useCompact) > budget) {
+                return null;
+            }
+        }
+
+        //read outside of the lock so that other grids can be read at the
+        //same time
+        Layer layer = read(grid, useCompact);
+        if (layer == null) {
+            return null;
+        }
+
+        synchronized (GridCache.class) {
+            Layer current = layers.get(key);
+            if (current != null) {
+                return current;
+            }
+            evict(layer.bytes());
+            layers.put(key, layer);
+            used += layer.bytes();
+        }
+        return layer;
+    }
+
+    /**
+     * @return cache key for the grid file, or null when it does not exist
+     */
+    static String key(Grid grid) {
+        if (grid.filename == null) {
+            return null;
+        }
+        File gri = new File(grid.filename + ".gri");
+        if (!gri.exists()) {
+            gri = new File(grid.filename + ".GRI");
+        }
+        File grd = new File(grid.filename + ".grd");
+        if (!grd.exists()) {
+            grd = new File(grid.filename + ".GRD");
+        }
+        if (!gri.exists()) {
+            return null;
+        }
+        String path;
+        try {
+            path = gri.getCanonicalPath();
+        } catch (Exception e) {
+            path = gri.getAbsolutePath();
+        }
+        return path + "|" + gri.length() + "|" + gri.lastModified() + "|" + grd.lastModified();
+    }
+
+    /**
+     * @return bytes to hold a grid
+     */
+    static long size(Grid grid, boolean compact) {
+        long cells = (long) grid.nrows * grid.ncols;
+        if (compact && (grid.datatype.equalsIgnoreCase("UBYTE") || grid.datatype.equalsIgnoreCase("BYTE"))) {
+            return cells;
+        } else if (compact && grid.datatype.equalsIgnoreCase("SHORT")) {
+            return cells * 2;
+        } else {
+            return cells * 4;
+        }
+    }
+
+    /**
+     * remove least recently used grids until there is space for another
+     */
+    private static void evict(long bytes) {
+        Iterator<Map.Entry<String, Layer>> it = layers.entrySet().iterator();
+        while (used + bytes > budget && it.hasNext()) {
+            used -= it.next().getValue().bytes();
+            it.remove();
+        }
+    }
+
+    private static Layer read(Grid grid, boolean compact) {
+        Layer layer = new Layer();
+        layer.nodatavalue = (float) grid.nodatavalue;
+        layer.rescale = grid.rescale;
+        if (compact && (grid.datatype.equalsIgnoreCase("UBYTE") || grid.datatype.equalsIgnoreCase("BYTE"))) {
+            layer.bytes = grid.readBytes();
+            layer.unsigned = grid.datatype.equalsIgnoreCase("UBYTE");
+            return layer.bytes == null ? null : layer;
+        } else if (compact && grid.datatype.equalsIgnoreCase("SHORT")) {
+            layer.shorts = grid.readShorts();
+            return layer.shorts == null ? null : layer;
+        } else {
+            layer.floats = grid.readRows(0, grid.nrows);
+            return layer.floats == null ? null : layer;
+        }
+    }
+}
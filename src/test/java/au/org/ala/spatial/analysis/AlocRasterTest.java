@@ -0,0 +1,202 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis;
+
+import au.org.ala.spatial.util.Grid;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author adam
+ */
+public class AlocRasterTest {
+
+    //more than one band of rows for each output
+    static final int WIDTH = 300;
+    static final int HEIGHT = 4000;
+
+    File dir;
+
+    //group of each output cell from the top row down, -1 for missing values
+    int[] expected;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("alocraster", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * a raster of about 2 in 3 cells, added from the top row down so that
+     * they are not in order
+     */
+    AlocRaster raster(int numberOfGroups, int threads) {
+        Random random = new Random(1);
+        expected = new int[WIDTH * HEIGHT];
+        int n = 0;
+        for (int i = 0; i < expected.length; i++) {
+            //the last group is always present
+            expected[i] = i == 0 ? numberOfGroups - 1 : (random.nextInt(3) == 0 ? -1 : random.nextInt(numberOfGroups));
+            if (expected[i] >= 0) {
+                n++;
+            }
+        }
+
+        int[] cells = new int[n];
+        int[] groups = new int[n];
+        n = 0;
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] >= 0) {
+                cells[n] = (HEIGHT - i / WIDTH - 1) * WIDTH + i % WIDTH;
+                groups[n] = expected[i];
+                n++;
+            }
+        }
+        return new AlocRaster(cells, groups, WIDTH, HEIGHT, threads, null);
+    }
+
+    static int[][] colours(int numberOfGroups) {
+        int[][] colours = new int[numberOfGroups][];
+        for (int g = 0; g < numberOfGroups; g++) {
+            colours[g] = new int[]{g & 0xff, (g * 7) & 0xff, (g * 13) & 0xff};
+        }
+        return colours;
+    }
+
+    static double[] extents() {
+        return new double[]{WIDTH, HEIGHT, 110, -45, 110 + WIDTH * 0.01, -45 + HEIGHT * 0.01};
+    }
+
+    @Test
+    public void testRows() {
+        AlocRaster raster = raster(20, 1);
+        assertEquals(20, raster.numberOfGroups);
+        int[] labels = new int[WIDTH];
+        for (int r = 0; r < HEIGHT; r += 97) {
+            raster.row(r, labels);
+            for (int c = 0; c < WIDTH; c++) {
+                assertEquals(expected[r * WIDTH + c], labels[c]);
+                assertEquals(expected[r * WIDTH + c], raster.label(r, c));
+            }
+        }
+    }
+
+    @Test
+    public void testGrid() throws Exception {
+        //INT1U, INT2S and INT4BYTES
+        for (int numberOfGroups : new int[]{20, 300, 40000}) {
+            for (int threads : new int[]{1, 3}) {
+                AlocRaster raster = raster(numberOfGroups, threads);
+                String filename = new File(dir, "aloc" + numberOfGroups + "_" + threads).getPath();
+                raster.writeGrid(filename, extents(), 0.01f);
+                raster.close();
+
+                Grid grid = new Grid(filename);
+                assertEquals(WIDTH, grid.ncols);
+                assertEquals(HEIGHT, grid.nrows);
+                assertEquals(110, grid.xmin, 1e-6);
+                assertEquals(-45, grid.ymin, 1e-6);
+                assertEquals(numberOfGroups, grid.maxval, 0);
+                float[] values = grid.getGrid();
+                for (int i = 0; i < expected.length; i++) {
+                    if (expected[i] < 0) {
+                        assertTrue(Float.isNaN(values[i]));
+                    } else {
+                        assertEquals(expected[i] + 1, values[i], 0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAsc() throws Exception {
+        for (int threads : new int[]{1, 3}) {
+            AlocRaster raster = raster(20, threads);
+            File file = new File(dir, "aloc" + threads + ".asc");
+            raster.writeAsc(file.getPath(), extents(), 0.01f);
+            raster.close();
+
+            BufferedReader br = new BufferedReader(new FileReader(file));
+            try {
+                assertEquals("ncols " + WIDTH, br.readLine());
+                assertEquals("nrows " + HEIGHT, br.readLine());
+                assertEquals("xllcorner 110.0", br.readLine());
+                assertEquals("yllcorner -45.0", br.readLine());
+                assertEquals("cellsize 0.01", br.readLine());
+                assertEquals("NODATA_value -1", br.readLine());
+                for (int r = 0; r < HEIGHT; r++) {
+                    String[] values = br.readLine().split(" ");
+                    assertEquals(WIDTH, values.length);
+                    for (int c = 0; c < WIDTH; c++) {
+                        int g = expected[r * WIDTH + c];
+                        assertEquals(g < 0 ? "-1" : String.valueOf((double) (g + 1)), values[c]);
+                    }
+                }
+                assertNull(br.readLine());
+            } finally {
+                br.close();
+            }
+        }
+    }
+
+    @Test
+    public void testPng() throws Exception {
+        //palette and RGBA
+        for (int numberOfGroups : new int[]{20, 300}) {
+            for (int threads : new int[]{1, 3}) {
+                AlocRaster raster = raster(numberOfGroups, threads);
+                int[][] colours = colours(numberOfGroups);
+                File file = new File(dir, "aloc" + numberOfGroups + "_" + threads + ".png");
+                raster.writePng(file.getPath(), colours);
+                raster.close();
+
+                BufferedImage image = ImageIO.read(file);
+                assertEquals(WIDTH, image.getWidth());
+                assertEquals(HEIGHT, image.getHeight());
+                for (int r = 0; r < HEIGHT; r++) {
+                    for (int c = 0; c < WIDTH; c++) {
+                        int g = expected[r * WIDTH + c];
+                        int argb = image.getRGB(c, r);
+                        if (g < 0) {
+                            assertEquals(0, argb >>> 24);
+                        } else {
+                            int[] colour = colours[g];
+                            assertEquals(0xff000000 | (colour[0] << 16) | (colour[1] << 8) | colour[2], argb);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author adam
+ */
+public class AlocTilesTest {
+
+    File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("aloctiles", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            delete(files[i]);
+        }
+        file.delete();
+    }
+
+    static byte[] read(File file) throws Exception {
+        byte[] b = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < b.length) {
+                n += in.read(b, n, b.length - n);
+            }
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+
+    /**
+     * @param labels group of each cell from the top row down, -1 for missing
+     *               values
+     */
+    static AlocRaster raster(int[] labels, int width, int height) {
+        int n = 0;
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] >= 0) {
+                n++;
+            }
+        }
+        int[] cells = new int[n];
+        int[] groups = new int[n];
+        n = 0;
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] >= 0) {
+                cells[n] = (height - i / width - 1) * width + i % width;
+                groups[n] = labels[i];
+                n++;
+            }
+        }
+        return new AlocRaster(cells, groups, width, height, 1, null);
+    }
+
+    /**
+     * 1 x 1 degree from 110, -45 in cells of 0.01 degrees, without missing
+     * values
+     */
+    static AlocTiles tiles() {
+        Random random = new Random(1);
+        int[] labels = new int[100 * 100];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = random.nextInt(10);
+        }
+        AlocRaster raster = raster(labels, 100, 100);
+        return new AlocTiles(raster, AlocRasterTest.colours(raster.numberOfGroups),
+                new double[]{100, 100, 110, -45, 111, -44}, 0.01);
+    }
+
+    @Test
+    public void testMajority() {
+        assertEquals(0, AlocTiles.majority(0, 0, 0, 0));
+        assertEquals(2, AlocTiles.majority(0, 2, 2, 1));
+        assertEquals(4, AlocTiles.majority(0, 0, 0, 4));
+        //first of those equally common
+        assertEquals(3, AlocTiles.majority(3, 1, 1, 3));
+        assertEquals(1, AlocTiles.majority(1, 2, 3, 0));
+    }
+
+    @Test
+    public void testLevels() {
+        //odd width and height, so that the last column and row of each
+        //level have fewer cells
+        int[] labels = {
+                0, 0, 1, 2, -1,
+                1, 0, 1, 1, -1,
+                2, 2, -1, -1, 3};
+        AlocTiles tiles = new AlocTiles(raster(labels, 5, 3), AlocRasterTest.colours(4),
+                new double[]{5, 3, 0, 0, 5, 3}, 1);
+        tiles.buildLevels(2);
+        assertEquals(2, tiles.levels.size());
+
+        //group + 1 of the most common of each 2 x 2 cells, 0 when missing
+        assertEquals(3, tiles.levelWidth(1));
+        assertEquals(2, tiles.levelHeight(1));
+        assertArrayEquals(new char[]{1, 2, 0, 3, 0, 4}, tiles.levels.get(0));
+
+        //from the level before
+        assertEquals(2, tiles.levelWidth(2));
+        assertEquals(1, tiles.levelHeight(2));
+        assertArrayEquals(new char[]{1, 4}, tiles.levels.get(1));
+    }
+
+    @Test
+    public void testTilePositions() throws Exception {
+        AlocTiles tiles = tiles();
+
+        //the extent is in one tile at zoom 6, and two tiles of one column at
+        //zoom 8
+        assertEquals(1, tiles.write(dir.getPath(), 6, 6, false));
+        assertTrue(new File(dir, "6/51/40.png").exists());
+        assertEquals(2, tiles.write(dir.getPath(), 8, 8, false));
+        assertTrue(new File(dir, "8/206/162.png").exists());
+        assertTrue(new File(dir, "8/206/163.png").exists());
+        assertEquals(1, new File(dir, "8").list().length);
+        assertEquals(2, new File(dir, "8/206").list().length);
+
+        assertEquals(0.5, AlocTiles.tileY(0), 1e-12);
+        assertEquals(0, AlocTiles.tileY(AlocTiles.MAX_LATITUDE), 1e-9);
+    }
+
+    @Test
+    public void testTmsRows() throws Exception {
+        AlocTiles tiles = tiles();
+        File xyz = new File(dir, "xyz");
+        File tms = new File(dir, "tms");
+        assertEquals(5, tiles.write(xyz.getPath(), 3, 7, false));
+        assertEquals(5, tiles.write(tms.getPath(), 3, 7, true));
+
+        //one tile of each zoom, with rows numbered from the bottom
+        assertTrue(new File(tms, "6/51/23.png").exists());
+        for (int z = 3; z <= 7; z++) {
+            for (String x : new File(xyz, String.valueOf(z)).list()) {
+                for (String y : new File(xyz, z + "/" + x).list()) {
+                    int row = Integer.parseInt(y.substring(0, y.length() - 4));
+                    File file = new File(tms, z + "/" + x + "/" + ((1 << z) - 1 - row) + ".png");
+                    assertTrue(file.exists());
+                    assertArrayEquals(read(new File(xyz, z + "/" + x + "/" + y)), read(file));
+                }
+            }
+        }
+    }
+}
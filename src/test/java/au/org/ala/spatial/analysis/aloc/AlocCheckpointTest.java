@@ -0,0 +1,199 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import au.org.ala.spatial.analysis.AnalysisLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author adam
+ */
+public class AlocCheckpointTest {
+
+    File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("aloc", ".checkpoint");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+        new File(file.getPath() + ".copy").delete();
+    }
+
+    static void copy(File from, File to) throws Exception {
+        InputStream in = new FileInputStream(from);
+        OutputStream out = new FileOutputStream(to);
+        try {
+            byte[] b = new byte[1 << 16];
+            int n;
+            while ((n = in.read(b)) > 0) {
+                out.write(b, 0, n);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    static AlocJob job(float[] rows, File checkpoint, boolean resume) {
+        AlocJob job = new AlocJob(AlocTest.COLUMNS, 12);
+        job.threads = 2;
+        job.options.cacheSize = 8 * 1024;
+        job.options.metricsSampleSize = 0;
+        job.options.checkpointFilename = checkpoint.getPath();
+        job.options.checkpointInterval = 5;
+        job.options.resume = resume;
+        job.addBlock(rows);
+        return job;
+    }
+
+    AlocCheckpoint checkpoint() {
+        AlocCheckpoint cp = new AlocCheckpoint();
+        cp.nNoOfGroups = 2;
+        cp.nCols = 2;
+        cp.rowCounts = new int[]{2, 1};
+        cp.key = "key";
+        cp.iteration = 7;
+        cp.seedidxsize = 2;
+        cp.seeds = new double[]{0.5, 1, 0.25, Double.NaN};
+        cp.seedgroup_nonmissingvalues = new int[]{2, 2, 1, 0};
+        cp.groupsize = new int[]{2, 1};
+        cp.groupMovement = new double[]{0.1, 0.2};
+        cp.otherGroupMovement = new double[]{0.3, 0.4};
+        cp.groupsizeAdjustment = new int[]{1, -1};
+        cp.seedsNmvAdjustment = new int[]{1, 1, -1, -1};
+        cp.seedsAdjustment = new double[]{0.5, 0.5, -0.5, -0.5};
+        cp.groups = new short[]{0, 1, 0};
+        cp.minMovement = 3;
+        cp.minGroups = new int[]{0, 1, 1};
+        cp.minDists = new double[]{0.1, 0.2, 0.3};
+        cp.minSeeds = new double[]{0.4, 0.9, 0.2, 0.1};
+        cp.minCount = new int[]{1, 1, 2, 2};
+        return cp;
+    }
+
+    @Test
+    public void testWriteRead() throws Exception {
+        checkpoint().write(file.getPath());
+        AlocCheckpoint cp = AlocCheckpoint.read(file.getPath());
+        AlocCheckpoint expected = checkpoint();
+
+        assertNotNull(cp);
+        assertTrue(cp.matches(2, 2, new int[]{2, 1}, "key"));
+        assertEquals(expected.iteration, cp.iteration);
+        assertEquals(expected.seedidxsize, cp.seedidxsize);
+        assertArrayEquals(expected.seeds, cp.seeds, 0);
+        assertArrayEquals(expected.seedgroup_nonmissingvalues, cp.seedgroup_nonmissingvalues);
+        assertArrayEquals(expected.groupsize, cp.groupsize);
+        assertArrayEquals(expected.groupMovement, cp.groupMovement, 0);
+        assertArrayEquals(expected.otherGroupMovement, cp.otherGroupMovement, 0);
+        assertArrayEquals(expected.groupsizeAdjustment, cp.groupsizeAdjustment);
+        assertArrayEquals(expected.seedsNmvAdjustment, cp.seedsNmvAdjustment);
+        assertArrayEquals(expected.seedsAdjustment, cp.seedsAdjustment, 0);
+        assertArrayEquals(expected.groups, cp.groups);
+        assertEquals(expected.minMovement, cp.minMovement);
+        assertArrayEquals(expected.minGroups, cp.minGroups);
+        assertArrayEquals(expected.minDists, cp.minDists, 0);
+        assertArrayEquals(expected.minSeeds, cp.minSeeds, 0);
+        assertArrayEquals(expected.minCount, cp.minCount);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void testMatches() {
+        AlocCheckpoint cp = checkpoint();
+        assertTrue(cp.matches(2, 2, new int[]{2, 1}, "key"));
+        assertFalse(cp.matches(3, 2, new int[]{2, 1}, "key"));
+        assertFalse(cp.matches(2, 3, new int[]{2, 1}, "key"));
+        assertFalse(cp.matches(2, 2, new int[]{1, 2}, "key"));
+        assertFalse(cp.matches(2, 2, new int[]{2, 1}, "other key"));
+        assertFalse(cp.matches(2, 2, new int[]{2, 1}, null));
+    }
+
+    @Test
+    public void testReadOther() throws Exception {
+        assertNull(AlocCheckpoint.read(file.getPath() + ".missing"));
+
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        out.close();
+        assertNull(AlocCheckpoint.read(file.getPath()));
+    }
+
+    @Test
+    public void testReplace() throws Exception {
+        AlocCheckpoint cp = checkpoint();
+        cp.write(file.getPath());
+        cp.iteration = 8;
+        cp.write(file.getPath());
+        assertEquals(8, AlocCheckpoint.read(file.getPath()).iteration);
+    }
+
+    @Test
+    public void testResumeSameResult() throws Exception {
+        float[] rows = AlocTest.rows(30000, 15);
+        final File copy = new File(file.getPath() + ".copy");
+        file.delete();
+
+        //copy the checkpoint of iteration 5 before the next is written, as
+        //if the run stopped there. The log is written by the iteration loop,
+        //which waits for the checkpoint to be written.
+        AlocJob job = job(rows, file, false);
+        job.log = new AnalysisLog() {
+            @Override
+            public void log(String s) {
+                if (s.startsWith("moving (8)")) {
+                    try {
+                        for (int i = 0; i < 1000 && !file.exists(); i++) {
+                            Thread.sleep(10);
+                        }
+                        copy(file, copy);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
+        AlocResult full = job.run();
+        assertFalse(file.exists());
+
+        AlocCheckpoint cp = AlocCheckpoint.read(copy.getPath());
+        assertNotNull(cp);
+        assertEquals(5, cp.iteration);
+        assertTrue(full.iterations > 8);
+
+        AlocResult resumed = job(rows, copy, true).run();
+        assertArrayEquals(full.groups, resumed.groups);
+        assertArrayEquals(full.rowDistances, resumed.rowDistances, 0);
+        assertEquals(full.means.length, resumed.means.length);
+        for (int g = 0; g < full.means.length; g++) {
+            assertArrayEquals(full.means[g], resumed.means[g], 0);
+        }
+        assertEquals(full.iterations, resumed.iterations);
+    }
+}
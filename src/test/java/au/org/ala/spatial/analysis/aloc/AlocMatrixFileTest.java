@@ -0,0 +1,131 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author adam
+ */
+public class AlocMatrixFileTest {
+
+    static final int COLUMNS = 3;
+
+    File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("aloc", ".aloc");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * pieces of 5, 5 and 2 rows, cells and extents
+     */
+    ArrayList<Object> data() {
+        ArrayList<Object> data = new ArrayList<Object>();
+        int value = 0;
+        for (int rows : new int[]{5, 5, 2}) {
+            float[] piece = new float[rows * COLUMNS];
+            for (int i = 0; i < piece.length; i++) {
+                piece[i] = value++ == 7 ? Float.NaN : value * 0.5f;
+            }
+            data.add(piece);
+        }
+        data.add(new int[]{3, 1, 4, 1, 5, 9, 2, 6, 5, 3, 5, 8});
+        data.add(new double[]{110, -45, 155, -10, 0.01, 0.01});
+        return data;
+    }
+
+    static float[] rows(ArrayList<Object> data) {
+        int pieces = data.size() - 2;
+        int length = 0;
+        for (int i = 0; i < pieces; i++) {
+            length += Aloc.pieceLength(data, i);
+        }
+        float[] rows = new float[length];
+        int pos = 0;
+        for (int i = 0; i < pieces; i++) {
+            float[] piece = Aloc.piece(data, i);
+            System.arraycopy(piece, 0, rows, pos, piece.length);
+            pos += piece.length;
+        }
+        return rows;
+    }
+
+    @Test
+    public void testWriteMap() {
+        ArrayList<Object> data = data();
+        assertTrue(AlocMatrixFile.write(file.getPath(), data, COLUMNS));
+        assertEquals(AlocMatrixFile.dataOffset(12, 6) + 12L * COLUMNS * 4, file.length());
+
+        //at least 2 pieces of at most 4 rows
+        ArrayList<Object> mapped = AlocMatrixFile.map(file.getPath(), COLUMNS, 2, 4);
+        assertNotNull(mapped);
+        assertEquals(3 + 2, mapped.size());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(mapped.get(i) instanceof FloatBuffer);
+            assertEquals(4 * COLUMNS, Aloc.pieceLength(mapped, i));
+        }
+        assertArrayEquals(rows(data), rows(mapped), 0);
+        assertArrayEquals((int[]) data.get(3), (int[]) mapped.get(3));
+        assertArrayEquals((double[]) data.get(4), (double[]) mapped.get(4), 0);
+
+        //fewer rows per piece when more pieces are needed
+        mapped = AlocMatrixFile.map(file.getPath(), COLUMNS, 6, 4);
+        assertEquals(6 + 2, mapped.size());
+        assertArrayEquals(rows(data), rows(mapped), 0);
+    }
+
+    @Test
+    public void testMapIsPrivate() {
+        assertTrue(AlocMatrixFile.write(file.getPath(), data(), COLUMNS));
+        ArrayList<Object> mapped = AlocMatrixFile.map(file.getPath(), COLUMNS, 1, 100);
+        ((FloatBuffer) mapped.get(0)).put(0, 1000);
+        assertEquals(1000, Aloc.piece(mapped, 0)[0], 0);
+
+        mapped = AlocMatrixFile.map(file.getPath(), COLUMNS, 1, 100);
+        assertEquals(0.5f, Aloc.piece(mapped, 0)[0], 0);
+    }
+
+    @Test
+    public void testMapInvalid() {
+        assertNull(AlocMatrixFile.map(file.getPath(), COLUMNS, 1, 100));
+
+        assertTrue(AlocMatrixFile.write(file.getPath(), data(), COLUMNS));
+        assertNull(AlocMatrixFile.map(file.getPath(), COLUMNS + 1, 1, 100));
+    }
+
+    @Test
+    public void testKey() {
+        String[] grids = new String[]{file.getPath()};
+        String key = AlocMatrixFile.key(grids, new double[]{110, -45, 155, -10, 0.01, 0.01});
+        assertEquals(key, AlocMatrixFile.key(grids, new double[]{110, -45, 155, -10, 0.01, 0.01}));
+        assertFalse(key.equals(AlocMatrixFile.key(grids, new double[]{110, -45, 155, -10, 0.02, 0.02})));
+        assertTrue(key.endsWith(".aloc"));
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author adam
+ */
+public class AlocMetricsTest {
+
+    /**
+     * rows of two groups, the second column a copy of the first
+     */
+    static float[] rows(int nRows, boolean missing) {
+        Random random = new Random(1);
+        float[] rows = new float[nRows * 2];
+        for (int i = 0; i < nRows; i++) {
+            float v = (i % 2) * 10 + random.nextFloat();
+            rows[i * 2] = v;
+            rows[i * 2 + 1] = missing && i % 7 == 0 ? Float.NaN : v;
+        }
+        return rows;
+    }
+
+    static AlocMetrics calculate(float[] rows) {
+        int nRows = rows.length / 2;
+        int[] groups = new int[nRows];
+        double[] rowDistances = new double[nRows];
+        for (int i = 0; i < nRows; i++) {
+            groups[i] = i % 2;
+        }
+        ArrayList<Object> data = new ArrayList<Object>();
+        data.add(rows);
+        return AlocMetrics.calculate(data, 1, 2, new double[]{0, 0}, new double[]{11, 11}, groups, rowDistances, nRows, 2);
+    }
+
+    @Test
+    public void testMissingValues() {
+        AlocMetrics all = calculate(rows(200, false));
+        AlocMetrics missing = calculate(rows(200, true));
+
+        //distances over the columns present are the same, as the second
+        //column is a copy of the first
+        assertEquals(200, missing.sampleSize);
+        assertEquals(all.silhouette, missing.silhouette, 1e-9);
+        assertArrayEquals(all.groupSilhouette, missing.groupSilhouette, 1e-9);
+        assertTrue(missing.silhouette > 0.8);
+
+        assertFalse(Double.isNaN(missing.calinskiHarabasz));
+        assertTrue(missing.calinskiHarabasz > 100);
+    }
+
+    @Test
+    public void testJobMissingValues() {
+        float[] rows = AlocTest.rows(3000, 5);
+        AlocJob job = new AlocJob(AlocTest.COLUMNS, 5);
+        job.threads = 2;
+        job.options.metricsSampleSize = 500;
+        job.addBlock(rows);
+        AlocResult result = job.run();
+
+        assertEquals(500, result.metrics.sampleSize);
+        assertFalse(Double.isNaN(result.metrics.silhouette));
+        assertFalse(Double.isNaN(result.metrics.calinskiHarabasz));
+        for (double s : result.metrics.groupSilhouette) {
+            assertFalse(Double.isNaN(s));
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.analysis.aloc;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author adam
+ */
+public class AlocTest {
+
+    static final int COLUMNS = 4;
+
+    /**
+     * rows around a number of centres, with some missing values
+     */
+    static float[] rows(int nRows, int centres) {
+        Random random = new Random(1);
+        float[][] c = new float[centres][COLUMNS];
+        for (int i = 0; i < centres; i++) {
+            for (int j = 0; j < COLUMNS; j++) {
+                c[i][j] = random.nextFloat() * 100;
+            }
+        }
+        float[] rows = new float[nRows * COLUMNS];
+        for (int i = 0; i < nRows; i++) {
+            int centre = random.nextInt(centres);
+            for (int j = 0; j < COLUMNS; j++) {
+                rows[i * COLUMNS + j] = random.nextInt(50) == 0 ? Float.NaN : c[centre][j] + (float) random.nextGaussian() * 8;
+            }
+        }
+        return rows;
+    }
+
+    static AlocResult classify(float[] rows, int threads) {
+        return classify(rows, threads, 0);
+    }
+
+    static AlocResult classify(float[] rows, int threads, int workers) {
+        AlocJob job = new AlocJob(COLUMNS, 12);
+        job.threads = threads;
+        job.options.workers = workers;
+        //small pieces, for more pieces than blocks
+        job.options.cacheSize = 8 * 1024;
+        job.options.metricsSampleSize = 0;
+        job.addBlock(rows);
+        return job.run();
+    }
+
+    @Test
+    public void testThreadCountIndependent() {
+        float[] rows = rows(30000, 15);
+        AlocResult one = classify(rows, 1);
+        assertEquals(30000, one.groups.length);
+        assertTrue(one.iterations > 1);
+
+        for (int threads : new int[]{2, 5}) {
+            AlocResult other = classify(rows, threads);
+            assertArrayEquals("groups with " + threads + " threads", one.groups, other.groups);
+            assertArrayEquals("distances with " + threads + " threads", one.rowDistances, other.rowDistances, 0);
+            assertEquals(one.iterations, other.iterations);
+            assertEquals(one.metrics.dispersion, other.metrics.dispersion, 0);
+        }
+    }
+
+    @Test
+    public void testWorkersSameResult() {
+        float[] rows = rows(30000, 15);
+        AlocResult local = classify(rows, 2);
+        AlocResult workers = classify(rows, 2, 2);
+        assertArrayEquals(local.groups, workers.groups);
+        assertArrayEquals(local.rowDistances, workers.rowDistances, 0);
+        assertEquals(local.iterations, workers.iterations);
+        assertEquals(local.metrics.dispersion, workers.metrics.dispersion, 0);
+    }
+
+    @Test
+    public void testZeroCopyPieces() {
+        //range standardized rows
+        float[] rows = rows(30000, 15);
+        for (int j = 0; j < COLUMNS; j++) {
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            for (int i = j; i < rows.length; i += COLUMNS) {
+                min = Math.min(min, Float.isNaN(rows[i]) ? min : rows[i]);
+                max = Math.max(max, Float.isNaN(rows[i]) ? max : rows[i]);
+            }
+            for (int i = j; i < rows.length; i += COLUMNS) {
+                rows[i] = (rows[i] - min) / (max - min);
+            }
+        }
+        AlocResult copied = classify(rows, 2);
+
+        AlocJob job = new AlocJob(COLUMNS, 12);
+        job.threads = 2;
+        job.zeroCopy = true;
+        job.options.cacheSize = 8 * 1024;
+        job.options.metricsSampleSize = 0;
+        job.addBlock(rows);
+
+        java.util.ArrayList<Object> blocks = new java.util.ArrayList<Object>();
+        blocks.add(rows);
+        java.util.ArrayList<Object> pieces = job.split(blocks, 30000);
+        assertTrue(pieces.size() > 1);
+        int length = 0;
+        for (int k = 0; k < pieces.size(); k++) {
+            float[] piece = Aloc.piece(pieces, k);
+            for (int i = 0; i < piece.length; i++) {
+                assertEquals(rows[length + i], piece[i], 0);
+            }
+            length += piece.length;
+        }
+        assertEquals(rows.length, length);
+
+        AlocResult zeroCopy = job.run();
+        assertArrayEquals(copied.groups, zeroCopy.groups);
+        assertArrayEquals(copied.rowDistances, zeroCopy.rowDistances, 0);
+    }
+
+    @Test
+    public void testBlocks() {
+        AlocBlockData[] blocks = Aloc.blocks(200, 3, 2);
+        assertEquals(Aloc.BLOCKS, blocks.length);
+        assertEquals(0, blocks[0].firstPiece);
+        assertEquals(200, blocks[blocks.length - 1].endPiece);
+        for (int b = 1; b < blocks.length; b++) {
+            assertEquals(blocks[b - 1].endPiece, blocks[b].firstPiece);
+        }
+        assertEquals(5, Aloc.blocks(5, 3, 2).length);
+    }
+
+    @Test
+    public void testReduce() {
+        AlocBlockData[] blocks = Aloc.blocks(7, 2, 1);
+        assertNull(Aloc.reduce(blocks));
+
+        for (int b : new int[]{1, 4, 6}) {
+            blocks[b].adjusted = true;
+            blocks[b].groupsize[0] = b;
+            blocks[b].seeds_adjustment[1] = b * 0.5;
+            blocks[b].seeds_nmv_adjustment[1] = 1;
+        }
+        AlocBlockData sum = Aloc.reduce(blocks);
+        assertSame(blocks[0], sum);
+        assertEquals(11, sum.groupsize[0]);
+        assertEquals(0, sum.groupsize[1]);
+        assertEquals(5.5, sum.seeds_adjustment[1], 0);
+        assertEquals(3, sum.seeds_nmv_adjustment[1]);
+
+        for (AlocBlockData block : blocks) {
+            block.clear();
+            assertFalse(block.adjusted);
+            assertEquals(0, block.groupsize[0]);
+            assertEquals(0, block.seeds_adjustment[1], 0);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * ************************************************************************
+ * Copyright (C) 2010 Atlas of Living Australia All Rights Reserved.
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ * *************************************************************************
+ */
+package au.org.ala.spatial.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author adam
+ */
+public class GridCacheTest {
+
+    static final int SIZE = 10;
+
+    File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("gridcache", "");
+        dir.delete();
+        dir.mkdir();
+        GridCache.setBudget(0, false);
+        GridCache.clear();
+    }
+
+    @After
+    public void tearDown() {
+        GridCache.setBudget(0, false);
+        GridCache.clear();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * write a SIZE x SIZE float grid with values offset + cell number
+     */
+    Grid grid(String name, int offset) {
+        double[] values = new double[SIZE * SIZE];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = offset + i;
+        }
+        String filename = new File(dir, name).getPath();
+        new Grid(null).writeGrid(filename, values, 0, 0, SIZE, SIZE, 1, 1, SIZE, SIZE);
+        return new Grid(filename);
+    }
+
+    @Test
+    public void testDisabled() {
+        assertFalse(GridCache.enabled());
+        assertNull(GridCache.get(grid("a", 0)));
+        assertEquals(0, GridCache.misses());
+    }
+
+    @Test
+    public void testValues() {
+        GridCache.setBudget(1000, false);
+        GridCache.Layer layer = GridCache.get(grid("a", 5));
+        assertNotNull(layer);
+        assertEquals(SIZE * SIZE, layer.length());
+        for (int i = 0; i < layer.length(); i++) {
+            assertEquals(5 + i, layer.get(i), 0);
+        }
+        assertEquals(SIZE * SIZE * 4, GridCache.used());
+    }
+
+    @Test
+    public void testEviction() {
+        //room for two grids
+        GridCache.setBudget(SIZE * SIZE * 4 * 2, false);
+        Grid a = grid("a", 0);
+        Grid b = grid("b", 100);
+        Grid c = grid("c", 200);
+
+        GridCache.Layer layerA = GridCache.get(a);
+        GridCache.Layer layerB = GridCache.get(b);
+        assertSame(layerA, GridCache.get(a));
+        assertEquals(1, GridCache.hits());
+        assertEquals(2, GridCache.misses());
+
+        //b is least recently used
+        GridCache.get(c);
+        assertEquals(SIZE * SIZE * 4 * 2, GridCache.used());
+        assertSame(layerA, GridCache.get(a));
+        assertNotSame(layerB, GridCache.get(b));
+        assertEquals(2, GridCache.hits());
+        assertEquals(4, GridCache.misses());
+
+        //smaller budget removes grids
+        GridCache.setBudget(SIZE * SIZE * 4, false);
+        assertEquals(SIZE * SIZE * 4, GridCache.used());
+        GridCache.setBudget(0, false);
+        assertEquals(0, GridCache.used());
+    }
+
+    @Test
+    public void testLargerThanBudget() {
+        GridCache.setBudget(SIZE * SIZE * 4 - 1, false);
+        assertNull(GridCache.get(grid("a", 0)));
+        assertEquals(0, GridCache.used());
+        assertEquals(1, GridCache.misses());
+    }
+}